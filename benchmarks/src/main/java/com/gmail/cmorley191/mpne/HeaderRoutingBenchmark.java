@@ -0,0 +1,109 @@
+package com.gmail.cmorley191.mpne;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.gmail.cmorley191.mpne.MPNESocket.SocketPeerConnection;
+
+/**
+ * Measures routing a received packet to the listeners of its header -
+ * {@link SocketPeerConnection#packetReceived(ReceivedPacket)} - by the number
+ * of headers a peer listens for and their length.
+ * <p>
+ * The headers share every byte but the last, as with an application prefix
+ * followed by a message type, and the packet matches one of them.
+ *
+ * @author Charlie Morley
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderRoutingBenchmark {
+
+	/**
+	 * The number of headers the peer listens for.
+	 */
+	@Param({ "1", "8", "64" })
+	public int headerCount;
+
+	/**
+	 * The length of each header.
+	 */
+	@Param({ "1", "4", "16" })
+	public int headerLength;
+
+	/**
+	 * Whether the listeners receive a copy of the data ({@code copy}) or a
+	 * view of it ({@code view}).
+	 */
+	@Param({ "copy", "view" })
+	public String delivery;
+
+	private MPNESocket socket;
+	private SocketPeerConnection peer;
+	private ReceivedPacket packet;
+
+	@Setup(Level.Trial)
+	public void setUp(final Blackhole blackhole) throws Exception {
+		socket = new MPNESocket();
+		peer = socket.new SocketPeerConnection(InetAddress.getLoopbackAddress(), 1);
+		byte[] matched = null;
+		for (int k = 0; k < headerCount; k++) {
+			byte[] header = new byte[headerLength];
+			for (int i = 0; i < headerLength - 1; i++)
+				header[i] = (byte) ('a' + i);
+			header[headerLength - 1] = (byte) k;
+			if (k == headerCount / 2)
+				matched = header;
+			if (delivery.equals("copy"))
+				peer.addConnectionListener(new ConnectionListener() {
+
+					@Override
+					public void dataReceived(byte[] data) {
+						blackhole.consume(data);
+					}
+				}, header);
+			else
+				peer.addBufferListener(new ConnectionBufferListener() {
+
+					@Override
+					public void dataReceived(ByteBuffer data) {
+						blackhole.consume(data.remaining());
+					}
+				}, header);
+		}
+		ByteBuffer data = ByteBuffer.allocate(matched.length + 32);
+		data.put(matched);
+		packet = new ReceivedPacket(data, data.capacity());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		socket.close();
+	}
+
+	@Benchmark
+	public void route() {
+		peer.packetReceived(packet);
+	}
+}
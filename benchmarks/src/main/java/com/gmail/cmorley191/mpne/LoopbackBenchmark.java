@@ -0,0 +1,160 @@
+package com.gmail.cmorley191.mpne;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gmail.cmorley191.mpne.MPNESocket.SocketPeerConnection;
+
+/**
+ * Measures sending and receiving between two {@link MPNESocket MPNESockets}
+ * over the loopback interface - the throughput of one-way sends, and the
+ * latency of a message echoed back by the other socket - for both the
+ * {@code DatagramSocket} and the {@link MPNEEventLoop} channel backends.
+ *
+ * @author Charlie Morley
+ *
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackBenchmark {
+
+	/**
+	 * The backend of both sockets - {@code socket} for a
+	 * {@code DatagramSocket} and receiving thread, {@code channel} for a
+	 * channel on an event loop.
+	 */
+	@Param({ "socket", "channel" })
+	public String backend;
+
+	/**
+	 * The size of each message.
+	 */
+	@Param({ "16", "1024" })
+	public int messageSize;
+
+	private MPNEEventLoop eventLoop;
+	private MPNESocket client;
+	private MPNESocket server;
+	private SocketPeerConnection toServer;
+	private byte[] message;
+
+	/**
+	 * The number of messages the server has received.
+	 */
+	private volatile long received;
+
+	/**
+	 * The echoes the client has received, waited for by
+	 * {@link #roundTrip()}.
+	 */
+	private final ArrayBlockingQueue<byte[]> echoes = new ArrayBlockingQueue<byte[]>(1024);
+
+	/**
+	 * Counts the messages that arrived during a {@link LoopbackBenchmark#send
+	 * send} iteration, so that throughput can be compared with delivery.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Delivery {
+
+		private long start;
+
+		public long delivered;
+
+		@Setup(Level.Iteration)
+		public void start(LoopbackBenchmark benchmark) {
+			start = benchmark.received;
+			delivered = 0;
+		}
+
+		@TearDown(Level.Iteration)
+		public void finish(LoopbackBenchmark benchmark) throws InterruptedException {
+			// let the last sends arrive
+			Thread.sleep(100);
+			delivered = benchmark.received - start;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		if (backend.equals("channel")) {
+			eventLoop = new MPNEEventLoop();
+			client = new MPNESocket(eventLoop);
+			server = new MPNESocket(eventLoop);
+		} else {
+			client = new MPNESocket();
+			server = new MPNESocket();
+		}
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		final SocketPeerConnection toClient = server.new SocketPeerConnection(loopback, client.getPort());
+		toServer = client.new SocketPeerConnection(loopback, server.getPort());
+		toClient.addConnectionListener(new ConnectionListener() {
+
+			@Override
+			public void dataReceived(byte[] data) {
+				received++;
+				// only echo messages sent by roundTrip
+				if (data[0] == 1)
+					try {
+						toClient.send(data);
+					} catch (IOException e) {
+						// counted as a lost echo
+					}
+			}
+		});
+		toServer.addConnectionListener(new ConnectionListener() {
+
+			@Override
+			public void dataReceived(byte[] data) {
+				echoes.offer(data);
+			}
+		});
+		message = new byte[messageSize];
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		client.close();
+		server.close();
+		if (eventLoop != null)
+			eventLoop.close();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void send(Delivery delivery) throws IOException {
+		message[0] = 0;
+		toServer.send(message);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public byte[] roundTrip() throws IOException, InterruptedException {
+		echoes.clear();
+		message[0] = 1;
+		toServer.send(message);
+		// a lost datagram costs a second rather than stalling the run
+		return echoes.poll(1, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,87 @@
+package com.gmail.cmorley191.mpne;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gmail.cmorley191.mpne.MPNESocket.SocketPeerConnection;
+
+/**
+ * Measures finding the peers a received datagram belongs to by its sender's
+ * address and port - the lookup the receiving thread makes in the socket's
+ * {@link PeerIndex} for every datagram - by the number of peers.
+ * <p>
+ * Each invocation looks up the next of the peers' addresses in turn, as from
+ * senders taking turns.
+ *
+ * @author Charlie Morley
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeerLookupBenchmark {
+
+	/**
+	 * The number of peers in the index.
+	 */
+	@Param({ "1", "100", "10000" })
+	public int peerCount;
+
+	/**
+	 * Whether the peers have IPv4 ({@code 4}) or IPv6 ({@code 6}) addresses.
+	 */
+	@Param({ "4", "6" })
+	public int ipVersion;
+
+	private MPNESocket socket;
+	private PeerIndex index;
+	private InetAddress[] addresses;
+	private int[] ports;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		socket = new MPNESocket();
+		index = new PeerIndex();
+		addresses = new InetAddress[peerCount];
+		ports = new int[peerCount];
+		for (int i = 0; i < peerCount; i++) {
+			byte[] raw = new byte[ipVersion == 4 ? 4 : 16];
+			raw[0] = 10;
+			raw[raw.length - 2] = (byte) (i >> 8);
+			raw[raw.length - 1] = (byte) i;
+			addresses[i] = InetAddress.getByAddress(raw);
+			ports[i] = 20000 + i % 100;
+			index.add(socket.new SocketPeerConnection(addresses[i], ports[i]));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		socket.close();
+	}
+
+	@Benchmark
+	public SocketPeerConnection[] lookup() {
+		int i = next;
+		next = i + 1 == peerCount ? 0 : i + 1;
+		return index.get(addresses[i], ports[i]);
+	}
+}
@@ -0,0 +1,163 @@
+package com.gmail.cmorley191.mpne;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of the buffers an {@link MPNESocket} receives data into. Buffers are
+ * leased for each received packet and returned once every listener has
+ * finished with the data, so a socket in a steady state receives without
+ * allocating.
+ * <p>
+ * The pool's statistics are available through
+ * {@link MPNESocket#getBufferPool()}.
+ *
+ * @author Charlie Morley
+ *
+ */
+public final class BufferPool {
+
+	/**
+	 * The buffers available to be leased.
+	 */
+	private final ArrayBlockingQueue<ReceivedPacket> available;
+
+	/**
+	 * The maximum number of buffers kept in the pool.
+	 */
+	private final int capacity;
+
+	/**
+	 * The size of every buffer.
+	 */
+	private final int bufferSize;
+
+	/**
+	 * Whether the buffers are allocated outside of the Java heap, for use with
+	 * channels.
+	 */
+	private final boolean direct;
+
+	/**
+	 * The number of leases served by a pooled buffer.
+	 */
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * The number of leases that required allocating a buffer.
+	 */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Constructs an empty pool.
+	 *
+	 * @param capacity
+	 *            the maximum number of buffers kept in the pool
+	 * @param bufferSize
+	 *            the size in bytes of each buffer
+	 * @param direct
+	 *            {@code true} to allocate {@link ByteBuffer#allocateDirect(int)
+	 *            direct} buffers, {@code false} for heap buffers
+	 */
+	BufferPool(int capacity, int bufferSize, boolean direct) {
+		this.capacity = capacity;
+		this.bufferSize = bufferSize;
+		this.direct = direct;
+		available = new ArrayBlockingQueue<ReceivedPacket>(capacity);
+	}
+
+	/**
+	 * Leases a buffer from the pool, allocating one if none are available.
+	 *
+	 * @return an empty packet, leased to the caller
+	 */
+	ReceivedPacket acquire() {
+		ReceivedPacket packet = available.poll();
+		if (packet == null) {
+			misses.incrementAndGet();
+			return new ReceivedPacket(this,
+					direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize));
+		}
+		hits.incrementAndGet();
+		packet.lease();
+		return packet;
+	}
+
+	/**
+	 * Returns a released buffer to the pool. Buffers beyond the pool's
+	 * capacity are left to be garbage collected.
+	 *
+	 * @param packet
+	 *            the released packet
+	 */
+	void recycle(ReceivedPacket packet) {
+		available.offer(packet);
+	}
+
+	/**
+	 * Returns the maximum number of idle buffers this pool keeps.
+	 *
+	 * @return the capacity of this pool
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the size of the buffers in this pool.
+	 *
+	 * @return the size in bytes of each buffer
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Returns whether this pool's buffers are direct buffers.
+	 *
+	 * @return {@code true} if the buffers are allocated outside of the Java
+	 *         heap
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Returns the number of idle buffers currently in this pool.
+	 *
+	 * @return the number of buffers available to be leased without allocating
+	 */
+	public int getAvailable() {
+		return available.size();
+	}
+
+	/**
+	 * Returns the number of leases served by reusing a pooled buffer.
+	 *
+	 * @return the number of pool hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of leases that required allocating a new buffer.
+	 *
+	 * @return the number of pool misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the fraction of leases served by reusing a pooled buffer.
+	 *
+	 * @return the hit rate between 0 and 1, 0 if no buffers have been leased
+	 */
+	public double getHitRate() {
+		long hits = this.hits.get();
+		long total = hits + misses.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+}
@@ -0,0 +1,219 @@
+package com.gmail.cmorley191.mpne;
+
+import java.util.concurrent.TimeUnit;
+
+import com.gmail.cmorley191.mpne.MPNESocket.SocketPeerConnection;
+
+/**
+ * The congestion controller of a {@link SocketPeerConnection} - see
+ * {@link SocketPeerConnection#setCongestionControl(boolean)}. Limits the
+ * number of {@link ReliableChannel} messages in flight to the peer to a
+ * congestion window, adjusted as TCP Reno does (RFC 5681): the window grows
+ * by one message per message acknowledged until the first loss (slow start),
+ * then by one message per round trip, and halves on loss.
+ * <p>
+ * The peer's {@link SendPacer} is set to send the window once per minimum
+ * round trip time - faster by a quarter, or double during slow start, so that
+ * the window can fill - spreading the peer's datagrams evenly rather than in
+ * bursts that overrun queues along the way. The minimum is used, as BBR does,
+ * because the smoothed round trip time includes the time datagrams wait in
+ * queues - including the pacer's own - and pacing by it would slow the pacer
+ * as its queue grew.
+ *
+ * @author Charlie Morley
+ *
+ */
+final class CongestionController {
+
+	/**
+	 * The congestion window before any loss, in messages - as RFC 6928
+	 * recommends.
+	 */
+	static final int INITIAL_WINDOW = 10;
+
+	/**
+	 * The smallest congestion window, in messages.
+	 */
+	static final int MIN_WINDOW = 2;
+
+	/**
+	 * The largest congestion window, in messages.
+	 */
+	static final int MAX_WINDOW = 1 << 16;
+
+	/**
+	 * How long a minimum round trip time is trusted before it is replaced by
+	 * a later measurement, in case the path has changed.
+	 */
+	private static final long MIN_RTT_LIFETIME = TimeUnit.SECONDS.toNanos(10);
+
+	/**
+	 * The pacer sending the peer's datagrams.
+	 */
+	private final SendPacer pacer;
+
+	/**
+	 * The congestion window in messages.
+	 */
+	private double window = INITIAL_WINDOW;
+
+	/**
+	 * The window below which it grows by slow start.
+	 */
+	private double slowStartThreshold = MAX_WINDOW;
+
+	/**
+	 * The number of messages in flight - sent, and neither acknowledged nor
+	 * given up on.
+	 */
+	private int inFlight;
+
+	/**
+	 * The smoothed round trip time in nanoseconds, 0 until measured.
+	 */
+	private long smoothedRtt;
+
+	/**
+	 * The lowest round trip time measured in nanoseconds, 0 until measured.
+	 */
+	private long minRtt;
+
+	/**
+	 * The {@link System#nanoTime()} at which {@link #minRtt} was measured.
+	 */
+	private long minRttAt;
+
+	/**
+	 * The moving average size of the datagrams acknowledged.
+	 */
+	private long averageDatagram;
+
+	/**
+	 * The {@link System#nanoTime()} until which further losses are
+	 * considered part of the last, and do not shrink the window again.
+	 */
+	private long recoveryEnd;
+
+	/**
+	 * Whether a loss has been detected since {@link #recoveryEnd}.
+	 */
+	private boolean recovering;
+
+	/**
+	 * Constructs a controller pacing the datagrams sent by the pacer.
+	 *
+	 * @param pacer
+	 *            the pacer of the peer
+	 */
+	CongestionController(SendPacer pacer) {
+		this.pacer = pacer;
+	}
+
+	/**
+	 * Called before a message is sent for the first time, or retransmitted
+	 * after a timeout - counts it in flight if the window has room.
+	 *
+	 * @return {@code true} if the message may be sent, {@code false} if the
+	 *         window is full
+	 */
+	synchronized boolean sent() {
+		if (inFlight >= (int) window)
+			return false;
+		inFlight++;
+		return true;
+	}
+
+	/**
+	 * Called when messages counted by {@link #sent()} leave flight - they are
+	 * acknowledged, lost to a timeout, or their channel closes.
+	 *
+	 * @param count
+	 *            the number of messages
+	 */
+	synchronized void left(int count) {
+		inFlight = Math.max(inFlight - count, 0);
+	}
+
+	/**
+	 * Called when messages are acknowledged - grows the window.
+	 *
+	 * @param count
+	 *            the number of messages acknowledged
+	 * @param bytes
+	 *            the size of their datagrams
+	 * @param rtt
+	 *            the round trip time measured by the acknowledgement, 0 if
+	 *            none
+	 */
+	synchronized void acked(int count, int bytes, long rtt) {
+		if (rtt > 0) {
+			long now = System.nanoTime();
+			smoothedRtt = smoothedRtt == 0 ? rtt : (7 * smoothedRtt + rtt) / 8;
+			if (minRtt == 0 || rtt <= minRtt || now - minRttAt > MIN_RTT_LIFETIME) {
+				minRtt = rtt;
+				minRttAt = now;
+			}
+		}
+		long datagram = bytes / count;
+		averageDatagram = averageDatagram == 0 ? datagram : (7 * averageDatagram + datagram) / 8;
+		if (window < slowStartThreshold)
+			window = Math.min(window + count, slowStartThreshold);
+		else
+			window += (double) count / window;
+		window = Math.min(window, MAX_WINDOW);
+		updatePacingRate();
+	}
+
+	/**
+	 * Called when a message is found to be lost while later messages arrived
+	 * - halves the window, once per round trip.
+	 */
+	synchronized void lost() {
+		long now = System.nanoTime();
+		if (recovering && now - recoveryEnd < 0)
+			return;
+		slowStartThreshold = window = Math.max(window / 2, MIN_WINDOW);
+		recovering = true;
+		recoveryEnd = now + smoothedRtt;
+		updatePacingRate();
+	}
+
+	/**
+	 * Called when a channel's retransmission timeout expires - the path may
+	 * have failed entirely, so the window returns to its minimum and slow
+	 * start begins again.
+	 *
+	 * @param lost
+	 *            the number of messages counted in flight that are now
+	 *            considered lost
+	 */
+	synchronized void timedOut(int lost) {
+		inFlight = Math.max(inFlight - lost, 0);
+		slowStartThreshold = Math.max(window / 2, MIN_WINDOW);
+		window = MIN_WINDOW;
+		recovering = true;
+		recoveryEnd = System.nanoTime() + smoothedRtt;
+		updatePacingRate();
+	}
+
+	/**
+	 * Returns the congestion window.
+	 *
+	 * @return the window in messages
+	 */
+	synchronized int getWindow() {
+		return (int) window;
+	}
+
+	/**
+	 * Sets the pacer's rate from the window and minimum round trip time, once
+	 * both are known. Bursts of up to two datagrams are allowed.
+	 */
+	private void updatePacingRate() {
+		if (minRtt == 0 || averageDatagram == 0)
+			return;
+		double gain = window < slowStartThreshold ? 2 : 1.25;
+		long rate = (long) (gain * window * averageDatagram * 1e9 / minRtt);
+		pacer.setRate(Math.max(rate, 1), (int) Math.min(2 * averageDatagram, Integer.MAX_VALUE));
+	}
+}
@@ -0,0 +1,31 @@
+package com.gmail.cmorley191.mpne;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The listener interface for receiving data from a networking peer without
+ * copying it. Unlike a {@link ConnectionListener}, which receives its own copy
+ * of the data, every {@code ConnectionBufferListener} is given a read-only
+ * view of the buffer the data was received into.
+ * <p>
+ * The view is only valid for the duration of
+ * {@link #dataReceived(ByteBuffer)} - the buffer is reused for other data
+ * afterwards. Listeners that keep data beyond the call must copy it.
+ * 
+ * @author Charlie Morley
+ * @see MPNESocket.SocketPeerConnection#addBufferListener(ConnectionBufferListener,
+ *      byte[])
+ */
+public interface ConnectionBufferListener {
+
+	/**
+	 * Called when a connection this listener is listening to receives data.
+	 * 
+	 * @param data
+	 *            a read-only view of the data received from the connection.
+	 *            Its position is just past the header the listener was added
+	 *            with and its limit is the end of the data - the header itself
+	 *            is available from index 0.
+	 */
+	public void dataReceived(ByteBuffer data);
+}
@@ -0,0 +1,222 @@
+package com.gmail.cmorley191.mpne;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory methods for the {@link Executor Executors} an {@link MPNESocket}
+ * uses to distribute received data to its peers' {@link ConnectionListener
+ * ConnectionListeners}. See {@link MPNESocket#setDispatcher(Executor)}.
+ *
+ * @author Charlie Morley
+ *
+ */
+public final class Dispatchers {
+
+	/**
+	 * The behavior of a bounded dispatcher when its queue is full.
+	 *
+	 * @author Charlie Morley
+	 *
+	 */
+	public static enum OverflowPolicy {
+
+		/**
+		 * The receiving thread distributes the data itself. Receiving from the
+		 * socket pauses until the data is distributed, so excess data is
+		 * dropped by the operating system rather than queued in memory.
+		 */
+		CALLER_RUNS,
+
+		/**
+		 * The receiving thread waits for space in the queue.
+		 */
+		BLOCK,
+
+		/**
+		 * The submitted task is rejected. An {@link MPNESocket} discards the
+		 * data queued in the peer's mailbox, counting it as
+		 * {@link MPNESocket#getDroppedPacketCount() dropped} - see
+		 * {@link MPNESocket#setDispatcher(java.util.concurrent.Executor)}.
+		 */
+		DROP
+	}
+
+	/**
+	 * Counter used to name dispatcher threads.
+	 */
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	private Dispatchers() {
+	}
+
+	/**
+	 * Returns a dispatcher that distributes data on a fixed number of daemon
+	 * threads with a bounded queue of pending data.
+	 *
+	 * @param threads
+	 *            the number of threads distributing data
+	 * @param queueCapacity
+	 *            the maximum number of received packets waiting to be
+	 *            distributed
+	 * @param policy
+	 *            the behavior when {@code queueCapacity} packets are waiting
+	 * @return the new dispatcher - it must be shut down when no longer used
+	 * @throws IllegalArgumentException
+	 *             if {@code threads} or {@code queueCapacity} is less than 1
+	 */
+	public static ExecutorService fixedPool(int threads, int queueCapacity, OverflowPolicy policy) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be positive: " + threads);
+		if (queueCapacity < 1)
+			throw new IllegalArgumentException("queueCapacity must be positive: " + queueCapacity);
+
+		RejectedExecutionHandler handler;
+		switch (policy) {
+		case CALLER_RUNS:
+			handler = new ThreadPoolExecutor.CallerRunsPolicy();
+			break;
+		case BLOCK:
+			handler = new RejectedExecutionHandler() {
+
+				@Override
+				public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+					if (executor.isShutdown())
+						throw new RejectedExecutionException("dispatcher shut down");
+					try {
+						executor.getQueue().put(r);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RejectedExecutionException(e);
+					}
+				}
+			};
+			break;
+		default:
+			handler = new ThreadPoolExecutor.AbortPolicy();
+		}
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "MPNE-dispatch-" + threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, handler);
+	}
+
+	/**
+	 * Returns the dispatcher an {@link MPNESocket} uses by default - a
+	 * {@link #fixedPool(int, int, OverflowPolicy) fixed pool} with one thread
+	 * per available processor, a queue of 1024 packets, and the
+	 * {@link OverflowPolicy#CALLER_RUNS CALLER_RUNS} policy.
+	 *
+	 * @return the new dispatcher - it must be shut down when no longer used
+	 */
+	public static ExecutorService defaultPool() {
+		return fixedPool(Runtime.getRuntime().availableProcessors(), 1024, OverflowPolicy.CALLER_RUNS);
+	}
+
+	/**
+	 * Returns a dispatcher that distributes data on the receiving thread
+	 * itself. Listeners must return quickly, as no further data is received
+	 * from the socket until they do.
+	 *
+	 * @return the inline dispatcher
+	 */
+	public static Executor inline() {
+		return new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		};
+	}
+
+	/**
+	 * Returns a dispatcher that starts a new virtual thread for every received
+	 * packet. Like {@link #threadPerPacket()}, listeners may block without
+	 * delaying data for other listeners, but without the cost of creating a
+	 * platform thread per packet.
+	 * <p>
+	 * Virtual threads are only available on Java 21 and later (or earlier
+	 * versions with preview features enabled) - see
+	 * {@link #isVirtualThreadSupported()}.
+	 *
+	 * @return the new dispatcher
+	 * @throws UnsupportedOperationException
+	 *             if the running Java version does not support virtual threads
+	 */
+	public static ExecutorService virtualThreadPerPacket() {
+		Method factory = virtualThreadExecutorFactory();
+		if (factory == null)
+			throw new UnsupportedOperationException("virtual threads are not supported by this Java version");
+		try {
+			return (ExecutorService) factory.invoke(null);
+		} catch (InvocationTargetException e) {
+			throw new UnsupportedOperationException("virtual threads are not enabled", e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new UnsupportedOperationException("virtual threads are not accessible", e);
+		}
+	}
+
+	/**
+	 * Returns whether {@link #virtualThreadPerPacket()} is supported by the
+	 * running Java version.
+	 *
+	 * @return {@code true} if virtual threads can be created
+	 */
+	public static boolean isVirtualThreadSupported() {
+		try {
+			virtualThreadPerPacket().shutdown();
+			return true;
+		} catch (UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns {@code Executors.newVirtualThreadPerTaskExecutor()}, looked up
+	 * reflectively so this project still runs on Java versions without it.
+	 *
+	 * @return the factory method, {@code null} if it does not exist
+	 */
+	private static Method virtualThreadExecutorFactory() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns a dispatcher that starts a new thread for every received packet.
+	 * This is unbounded - under load it may create more threads than the
+	 * system can support - and is only suitable for low data rates.
+	 *
+	 * @return the thread-per-packet dispatcher
+	 * @see #virtualThreadPerPacket()
+	 */
+	public static Executor threadPerPacket() {
+		return new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+				new Thread(command).start();
+			}
+		};
+	}
+}
@@ -0,0 +1,221 @@
+package com.gmail.cmorley191.mpne;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The framing an {@link MPNESocket} uses for datagrams that carry more than one
+ * application message (or otherwise need interpreting before delivery).
+ * <p>
+ * A frame starts with the two marker bytes {@code F7 4D} followed by a type
+ * byte. Any other datagram is a single, unframed application message. An
+ * application message that itself starts with the marker is always sent inside
+ * a frame, so that it is never mistaken for one.
+ * <p>
+ * Frame types:
+ * <ul>
+ * <li>{@link #BUNDLE} - any number of messages, each preceded by its length as
+ * an unsigned 16-bit big-endian integer
+ * <li>{@link #RELIABLE} - one message of a {@link ReliableChannel}: the channel
+ * id, the 16-bit sequence number of the message, the 32-bit time it was sent
+ * in microseconds, the channel's acknowledgement (the 16-bit sequence number
+ * of the next message expected, a 32-bit field of the following messages
+ * received, then the send time of the last message received, or 0), then the
+ * message
+ * <li>{@link #RELIABLE_ACK} - a {@link ReliableChannel}'s acknowledgement
+ * alone: the channel id then the acknowledgement
+ * <li>{@link #FRAGMENT} - part of a message too large for one datagram: the
+ * 32-bit id of the message, its 32-bit length, the 16-bit size of each of its
+ * fragments (all but the last, which holds the rest), the 16-bit index of the
+ * fragment, a byte of flags, then the fragment's bytes of the message. With the
+ * {@link #FRAGMENT_COMPRESSED} flag the fragmented bytes are instead the
+ * content of a {@link #COMPRESSED} frame, too large for one datagram
+ * <li>{@link #SNAPSHOT} - a snapshot of a {@link SnapshotChannel}: the channel
+ * id, the 32-bit sequence number of the snapshot, the channel's
+ * acknowledgement (the 32-bit sequence number of the last snapshot received,
+ * or 0 if a full snapshot is needed), then the 32-bit sequence number of the
+ * baseline the snapshot is encoded against. With a baseline of 0 the rest of
+ * the frame is the snapshot; otherwise it is the 16-bit length of the
+ * snapshot, then runs of the snapshot XORed with the baseline - each the
+ * number of zero bytes, then the number of literal bytes, both as unsigned
+ * LEB128 variable-length integers, then the literal bytes. The bytes after
+ * the last run are unchanged.
+ * <li>{@link #SNAPSHOT_ACK} - a {@link SnapshotChannel}'s acknowledgement
+ * alone: the channel id then the acknowledgement
+ * <li>{@link #COMPRESSED} - one message compressed by a {@link PayloadCodec}:
+ * the codec's id, the length of the message as an unsigned LEB128
+ * variable-length integer, then the compressed bytes
+ * </ul>
+ * All integers are big-endian.
+ *
+ * @author Charlie Morley
+ *
+ */
+final class Frames {
+
+	/**
+	 * The first byte of every frame.
+	 */
+	static final byte MARKER_0 = (byte) 0xF7;
+
+	/**
+	 * The second byte of every frame.
+	 */
+	static final byte MARKER_1 = (byte) 0x4D;
+
+	/**
+	 * The number of bytes before a frame's content - the marker and type.
+	 */
+	static final int HEADER_LENGTH = 3;
+
+	/**
+	 * The type of frame holding length-prefixed messages.
+	 */
+	static final byte BUNDLE = 1;
+
+	/**
+	 * The type of frame holding a message of a {@link ReliableChannel}.
+	 */
+	static final byte RELIABLE = 2;
+
+	/**
+	 * The type of frame acknowledging messages of a {@link ReliableChannel}.
+	 */
+	static final byte RELIABLE_ACK = 3;
+
+	/**
+	 * The type of frame holding a fragment of a message.
+	 */
+	static final byte FRAGMENT = 4;
+
+	/**
+	 * The type of frame holding a snapshot of a {@link SnapshotChannel}.
+	 */
+	static final byte SNAPSHOT = 5;
+
+	/**
+	 * The type of frame acknowledging a snapshot of a
+	 * {@link SnapshotChannel}.
+	 */
+	static final byte SNAPSHOT_ACK = 6;
+
+	/**
+	 * The type of frame holding a compressed message.
+	 */
+	static final byte COMPRESSED = 7;
+
+	/**
+	 * The number of bytes before each message in a {@link #BUNDLE}.
+	 */
+	static final int BUNDLE_LENGTH_PREFIX = 2;
+
+	/**
+	 * The number of bytes before the data in a {@link #FRAGMENT}.
+	 */
+	static final int FRAGMENT_OVERHEAD = HEADER_LENGTH + 4 + 4 + 2 + 2 + 1;
+
+	/**
+	 * The flag of a {@link #FRAGMENT} whose message is compressed.
+	 */
+	static final byte FRAGMENT_COMPRESSED = 1;
+
+	/**
+	 * The largest number of fragments a message may be split into.
+	 */
+	static final int MAX_FRAGMENTS = 1 << 16;
+
+	private Frames() {
+	}
+
+	/**
+	 * Returns whether the remaining bytes of the buffer start with the frame
+	 * marker - whether they must be framed to be sent as a single message.
+	 *
+	 * @param data
+	 *            the message to check
+	 * @return {@code true} if the message starts with the frame marker
+	 */
+	static boolean startsWithMarker(ByteBuffer data) {
+		int position = data.position();
+		return data.remaining() >= 2 && data.get(position) == MARKER_0 && data.get(position + 1) == MARKER_1;
+	}
+
+	/**
+	 * Returns the type of frame in the received packet.
+	 *
+	 * @param p
+	 *            the received packet
+	 * @return the frame type, or -1 if the packet is an unframed message
+	 */
+	static int type(ReceivedPacket p) {
+		if (p.length < HEADER_LENGTH || p.get(0) != MARKER_0 || p.get(1) != MARKER_1)
+			return -1;
+		return p.get(2);
+	}
+
+	/**
+	 * Writes a frame header of the specified type.
+	 *
+	 * @param out
+	 *            the buffer to write to
+	 * @param type
+	 *            the frame type
+	 */
+	static void putHeader(ByteBuffer out, byte type) {
+		out.put(MARKER_0).put(MARKER_1).put(type);
+	}
+
+	/**
+	 * Writes the remaining bytes of a message into a {@link #BUNDLE},
+	 * preceded by their length. The message's position is unchanged.
+	 *
+	 * @param out
+	 *            the bundle being written
+	 * @param message
+	 *            the message to add, at most 65535 bytes
+	 */
+	static void putBundled(ByteBuffer out, ByteBuffer message) {
+		int position = message.position();
+		out.putShort((short) message.remaining());
+		out.put(message);
+		message.position(position);
+	}
+
+	/**
+	 * Writes the header of a {@link #FRAGMENT}, up to its data.
+	 *
+	 * @param out
+	 *            the buffer to write to
+	 * @param id
+	 *            the id of the fragmented message
+	 * @param length
+	 *            the length of the message
+	 * @param size
+	 *            the size of each fragment but the last
+	 * @param index
+	 *            the index of the fragment
+	 * @param flags
+	 *            the fragment's flags
+	 */
+	static void putFragmentHeader(ByteBuffer out, int id, int length, int size, int index, byte flags) {
+		putHeader(out, FRAGMENT);
+		out.putInt(id).putInt(length).putShort((short) size).putShort((short) index).put(flags);
+	}
+
+	/**
+	 * Writes a non-negative integer as an unsigned LEB128 variable-length
+	 * integer - 7 bits per byte, least significant first, with the top bit
+	 * set on every byte but the last.
+	 *
+	 * @param out
+	 *            the buffer to write to
+	 * @param value
+	 *            the integer to write
+	 */
+	static void putVarint(ByteBuffer out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.put((byte) (value | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+}
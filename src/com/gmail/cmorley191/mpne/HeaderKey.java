@@ -0,0 +1,118 @@
+package com.gmail.cmorley191.mpne;
+
+import java.util.Arrays;
+
+/**
+ * An immutable data header, comparable by value. Unlike a {@code byte[]}, a
+ * {@code HeaderKey} can be used as a key in hash-based collections.
+ * <p>
+ * Headers of up to 8 bytes are additionally packed into a single {@code long}
+ * so that they are compared without iterating over their bytes.
+ *
+ * @author Charlie Morley
+ *
+ */
+public final class HeaderKey {
+
+	/**
+	 * The header with no bytes, which matches all data.
+	 */
+	public static final HeaderKey EMPTY = new HeaderKey(new byte[0]);
+
+	/**
+	 * The bytes of the header. Never modified.
+	 */
+	final byte[] bytes;
+
+	/**
+	 * The bytes of the header packed big-endian into a {@code long}, or 0 if
+	 * the header is longer than 8 bytes.
+	 */
+	private final long packed;
+
+	/**
+	 * The cached hash code of the header.
+	 */
+	private final int hash;
+
+	private HeaderKey(byte[] bytes) {
+		this.bytes = bytes;
+		if (bytes.length <= 8) {
+			long packed = 0;
+			for (byte b : bytes)
+				packed = (packed << 8) | (b & 0xFF);
+			this.packed = packed;
+			hash = (int) (packed ^ (packed >>> 32)) * 31 + bytes.length;
+		} else {
+			packed = 0;
+			hash = Arrays.hashCode(bytes);
+		}
+	}
+
+	/**
+	 * Returns the key for the specified header bytes. The array is copied, so
+	 * later changes to it do not affect the key.
+	 *
+	 * @param header
+	 *            the bytes of the header
+	 * @return the key for {@code header}
+	 */
+	public static HeaderKey of(byte[] header) {
+		if (header.length == 0)
+			return EMPTY;
+		return new HeaderKey(header.clone());
+	}
+
+	/**
+	 * Returns the number of bytes in this header.
+	 *
+	 * @return the length of the header
+	 */
+	public int length() {
+		return bytes.length;
+	}
+
+	/**
+	 * Returns a copy of the bytes of this header.
+	 *
+	 * @return a new array containing the header
+	 */
+	public byte[] toByteArray() {
+		return bytes.clone();
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Header keys are equal if they contain the same bytes.
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
+		if (!(obj instanceof HeaderKey))
+			return false;
+		HeaderKey other = (HeaderKey) obj;
+		if (hash != other.hash || bytes.length != other.bytes.length)
+			return false;
+		if (bytes.length <= 8)
+			return packed == other.packed;
+		return Arrays.equals(bytes, other.bytes);
+	}
+
+	/**
+	 * Returns the header's bytes in hexadecimal, for example {@code 4a6f00}.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return builder.toString();
+	}
+}
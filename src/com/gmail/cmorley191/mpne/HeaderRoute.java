@@ -0,0 +1,52 @@
+package com.gmail.cmorley191.mpne;
+
+/**
+ * The listeners a peer delivers data with a specific header to. Never
+ * modified - a new route replaces the old one in the peer's {@link HeaderTrie}
+ * whenever the listeners change.
+ *
+ * @author Charlie Morley
+ *
+ */
+final class HeaderRoute {
+
+	/**
+	 * The header of the routed data.
+	 */
+	final HeaderKey header;
+
+	/**
+	 * The listeners receiving a copy of the data.
+	 */
+	final ConnectionListener[] listeners;
+
+	/**
+	 * The listeners receiving a view of the data.
+	 */
+	final ConnectionBufferListener[] bufferListeners;
+
+	/**
+	 * The time the listeners take to handle the data.
+	 */
+	final LatencyHistogram listenerTime;
+
+	/**
+	 * Constructs a route for the specified header.
+	 *
+	 * @param header
+	 *            the header of the routed data
+	 * @param listeners
+	 *            the listeners receiving a copy of the data
+	 * @param bufferListeners
+	 *            the listeners receiving a view of the data
+	 * @param listenerTime
+	 *            the histogram the listeners' execution time is recorded in
+	 */
+	HeaderRoute(HeaderKey header, ConnectionListener[] listeners, ConnectionBufferListener[] bufferListeners,
+			LatencyHistogram listenerTime) {
+		this.header = header;
+		this.listeners = listeners;
+		this.bufferListeners = bufferListeners;
+		this.listenerTime = listenerTime;
+	}
+}
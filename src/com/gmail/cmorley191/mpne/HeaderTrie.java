@@ -0,0 +1,235 @@
+package com.gmail.cmorley191.mpne;
+
+import java.util.Arrays;
+
+/**
+ * An immutable byte trie mapping data headers to values, used to find every
+ * header that prefixes a packet's data in a single pass over the data.
+ * <p>
+ * Walk the trie from the {@link #root()} one data byte at a time with
+ * {@link Node#child(byte)} - each node reached carries the value of the
+ * header ending there, if any. No allocation is needed to route a packet.
+ * <p>
+ * Updates copy only the nodes along the updated header's path and return a
+ * new trie, so a trie can be read by any number of threads while being
+ * replaced.
+ *
+ * @author Charlie Morley
+ *
+ * @param <V>
+ *            the type of the values mapped to headers
+ */
+final class HeaderTrie<V> {
+
+	/**
+	 * A node of the trie, reached by the bytes of a header prefix.
+	 *
+	 * @author Charlie Morley
+	 *
+	 * @param <V>
+	 *            the type of the values mapped to headers
+	 */
+	static final class Node<V> {
+
+		/**
+		 * Above this many children, children are found by binary search
+		 * rather than a linear scan.
+		 */
+		private static final int LINEAR_SEARCH_LIMIT = 8;
+
+		/**
+		 * The bytes leading to each child, sorted.
+		 */
+		private final byte[] keys;
+
+		/**
+		 * The children of this node, in the order of {@link #keys}.
+		 */
+		private final Node<V>[] children;
+
+		/**
+		 * The value of the header ending at this node, {@code null} if none.
+		 */
+		final V value;
+
+		private Node(byte[] keys, Node<V>[] children, V value) {
+			this.keys = keys;
+			this.children = children;
+			this.value = value;
+		}
+
+		/**
+		 * Returns the child reached by the specified byte.
+		 *
+		 * @param b
+		 *            the next byte of the data
+		 * @return the child node, {@code null} if no header continues with
+		 *         {@code b}
+		 */
+		Node<V> child(byte b) {
+			int index = indexOf(b);
+			return index < 0 ? null : children[index];
+		}
+
+		/**
+		 * Returns the index of the child reached by the specified byte, or
+		 * {@code -(insertion point) - 1} if there is none.
+		 */
+		private int indexOf(byte b) {
+			if (keys.length <= LINEAR_SEARCH_LIMIT) {
+				for (int i = 0; i < keys.length; i++) {
+					if (keys[i] == b)
+						return i;
+					if (keys[i] > b)
+						return -i - 1;
+				}
+				return -keys.length - 1;
+			}
+			return Arrays.binarySearch(keys, b);
+		}
+
+		/**
+		 * Returns whether this node has neither a value nor children.
+		 */
+		private boolean isEmpty() {
+			return value == null && keys.length == 0;
+		}
+
+		/**
+		 * Returns a copy of this node with the specified value.
+		 */
+		private Node<V> withValue(V value) {
+			return new Node<V>(keys, children, value);
+		}
+
+		/**
+		 * Returns a copy of this node with the child reached by {@code b}
+		 * replaced, or removed if {@code child} is {@code null}.
+		 */
+		private Node<V> withChild(byte b, Node<V> child) {
+			int index = indexOf(b);
+			if (index >= 0) {
+				if (child != null) {
+					Node<V>[] updated = children.clone();
+					updated[index] = child;
+					return new Node<V>(keys, updated, value);
+				}
+				byte[] updatedKeys = new byte[keys.length - 1];
+				Node<V>[] updated = newArray(children.length - 1);
+				System.arraycopy(keys, 0, updatedKeys, 0, index);
+				System.arraycopy(keys, index + 1, updatedKeys, index, keys.length - index - 1);
+				System.arraycopy(children, 0, updated, 0, index);
+				System.arraycopy(children, index + 1, updated, index, children.length - index - 1);
+				return new Node<V>(updatedKeys, updated, value);
+			}
+			if (child == null)
+				return this;
+			index = -index - 1;
+			byte[] updatedKeys = new byte[keys.length + 1];
+			Node<V>[] updated = newArray(children.length + 1);
+			System.arraycopy(keys, 0, updatedKeys, 0, index);
+			System.arraycopy(keys, index, updatedKeys, index + 1, keys.length - index);
+			System.arraycopy(children, 0, updated, 0, index);
+			System.arraycopy(children, index, updated, index + 1, children.length - index);
+			updatedKeys[index] = b;
+			updated[index] = child;
+			return new Node<V>(updatedKeys, updated, value);
+		}
+
+		@SuppressWarnings("unchecked")
+		private static <V> Node<V>[] newArray(int length) {
+			return (Node<V>[]) new Node<?>[length];
+		}
+	}
+
+	/**
+	 * The node reached by the empty header.
+	 */
+	private final Node<V> root;
+
+	/**
+	 * Constructs an empty trie.
+	 */
+	HeaderTrie() {
+		this(new Node<V>(new byte[0], Node.<V> newArray(0), null));
+	}
+
+	private HeaderTrie(Node<V> root) {
+		this.root = root;
+	}
+
+	/**
+	 * Returns the node reached by the empty header - the starting point for
+	 * matching data.
+	 *
+	 * @return the root node
+	 */
+	Node<V> root() {
+		return root;
+	}
+
+	/**
+	 * Returns whether no header is mapped.
+	 *
+	 * @return {@code true} if the trie is empty
+	 */
+	boolean isEmpty() {
+		return root.isEmpty();
+	}
+
+	/**
+	 * Returns the value mapped to exactly the specified header.
+	 *
+	 * @param header
+	 *            the header to look up
+	 * @return the value, {@code null} if none is mapped
+	 */
+	V get(byte[] header) {
+		Node<V> node = root;
+		for (int i = 0; i < header.length && node != null; i++)
+			node = node.child(header[i]);
+		return node == null ? null : node.value;
+	}
+
+	/**
+	 * Returns a trie with the specified header mapped to the specified value.
+	 * This trie is unchanged.
+	 *
+	 * @param header
+	 *            the header to map
+	 * @param value
+	 *            the value for the header, or {@code null} to remove the
+	 *            header
+	 * @return the updated trie
+	 */
+	HeaderTrie<V> with(byte[] header, V value) {
+		Node<V> updated = with(root, header, 0, value);
+		if (updated == null)
+			return new HeaderTrie<V>();
+		return new HeaderTrie<V>(updated);
+	}
+
+	/**
+	 * Returns a copy of {@code node} (which may be {@code null}) with the
+	 * remainder of {@code header} from {@code depth} mapped to {@code value},
+	 * or {@code null} if the resulting node would be empty.
+	 */
+	private static <V> Node<V> with(Node<V> node, byte[] header, int depth, V value) {
+		Node<V> updated;
+		if (depth == header.length) {
+			if (node == null)
+				updated = new Node<V>(new byte[0], Node.<V> newArray(0), value);
+			else
+				updated = node.withValue(value);
+		} else {
+			if (node == null) {
+				if (value == null)
+					return null;
+				node = new Node<V>(new byte[0], Node.<V> newArray(0), null);
+			}
+			byte b = header[depth];
+			updated = node.withChild(b, with(node.child(b), header, depth + 1, value));
+		}
+		return updated.isEmpty() ? null : updated;
+	}
+}
@@ -0,0 +1,502 @@
+package com.gmail.cmorley191.mpne;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * A fast {@link PayloadCodec} producing the LZ4 block format - literal bytes
+ * and back-references of at least 4 bytes within the last 64 KiB, found
+ * greedily with a hash table. Best suited to large messages that repeat
+ * themselves: serialized objects with the same field names and tags, tiles
+ * of a map, and so on.
+ * <p>
+ * Small messages seldom repeat themselves, but often repeat each other. For
+ * these, construct the codec with a dictionary - typical content, such as
+ * one {@link #trainDictionary(Collection, int) trained} from sample messages
+ * - which back-references may reach into as if it preceded every message.
+ * Both ends must use the same dictionary.
+ * <p>
+ * Each thread's hash table is kept and reused for every message it
+ * compresses, with any codec: entries are tagged with the position they were
+ * stored at in a running count of bytes compressed, so entries from earlier
+ * messages are recognized as stale without clearing the table.
+ * Decompression needs no state.
+ *
+ * @author Charlie Morley
+ *
+ */
+public final class LZ4Codec implements PayloadCodec {
+
+	/**
+	 * The largest dictionary - the furthest a back-reference may reach.
+	 */
+	public static final int MAX_DICTIONARY_SIZE = 0xFFFF;
+
+	/**
+	 * The shortest back-reference.
+	 */
+	private static final int MIN_MATCH = 4;
+
+	/**
+	 * The number of bits of the hash of 4 bytes indexing the hash table.
+	 */
+	private static final int HASH_BITS = 12;
+
+	/**
+	 * The number of bytes at the end of a message that are always literal.
+	 */
+	private static final int LAST_LITERALS = 5;
+
+	/**
+	 * How far from the end of a message the last back-reference must start.
+	 */
+	private static final int MATCH_FIND_LIMIT = 12;
+
+	/**
+	 * The number of bits of the count of consecutive positions without a match
+	 * that are ignored when skipping ahead - every 64 positions without a
+	 * match, the search skips one position more.
+	 */
+	private static final int SKIP_TRIGGER = 6;
+
+	/**
+	 * The length of the byte sequences counted by
+	 * {@link #trainDictionary(Collection, int)}.
+	 */
+	private static final int TRAINING_GRAM = 6;
+
+	/**
+	 * The length of the segments of samples a trained dictionary is made of.
+	 */
+	private static final int TRAINING_SEGMENT = 32;
+
+	/**
+	 * A thread's hash table.
+	 *
+	 * @author Charlie Morley
+	 *
+	 */
+	private static final class State {
+
+		/**
+		 * The positions of recently hashed 4 byte sequences, each plus the
+		 * {@link #epoch} of the message it was stored for.
+		 */
+		final int[] table = new int[1 << HASH_BITS];
+
+		/**
+		 * The number added to the positions stored for the current message -
+		 * greater than every entry stored for previous messages.
+		 */
+		int epoch = 1;
+
+		/**
+		 * Starts compressing a message, clearing the table only when the epoch
+		 * would overflow.
+		 *
+		 * @return the epoch of the message
+		 */
+		int start(int length) {
+			if (epoch > Integer.MAX_VALUE - length) {
+				Arrays.fill(table, 0);
+				epoch = 1;
+			}
+			int start = epoch;
+			epoch += length;
+			return start;
+		}
+	}
+
+	/**
+	 * Each compressing thread's hash table.
+	 */
+	private static final ThreadLocal<State> STATES = new ThreadLocal<State>() {
+
+		@Override
+		protected State initialValue() {
+			return new State();
+		}
+	};
+
+	/**
+	 * The id of this codec.
+	 */
+	private final int id;
+
+	/**
+	 * The dictionary, {@code null} if none.
+	 */
+	private final byte[] dictionary;
+
+	/**
+	 * The last position in the {@link #dictionary} of each hash of 4 bytes,
+	 * or -1. Never changed once constructed, so shared by every thread.
+	 */
+	private final int[] dictionaryTable;
+
+	/**
+	 * Constructs a codec without a dictionary.
+	 *
+	 * @param id
+	 *            the id naming the codec in compressed datagrams, from 1 to
+	 *            255
+	 * @throws IllegalArgumentException
+	 *             if {@code id} is out of range
+	 */
+	public LZ4Codec(int id) {
+		this(id, null);
+	}
+
+	/**
+	 * Constructs a codec with a dictionary.
+	 *
+	 * @param id
+	 *            the id naming the codec in compressed datagrams, from 1 to
+	 *            255
+	 * @param dictionary
+	 *            typical content of messages, of which only the last
+	 *            {@link #MAX_DICTIONARY_SIZE} bytes are used, or {@code null}
+	 *            for none. The array is copied.
+	 * @throws IllegalArgumentException
+	 *             if {@code id} is out of range
+	 */
+	public LZ4Codec(int id, byte[] dictionary) {
+		if (id < 1 || id > 255)
+			throw new IllegalArgumentException("id must be between 1 and 255: " + id);
+		this.id = id;
+		if (dictionary == null || dictionary.length == 0) {
+			this.dictionary = null;
+			dictionaryTable = null;
+			return;
+		}
+		this.dictionary = Arrays.copyOfRange(dictionary, Math.max(dictionary.length - MAX_DICTIONARY_SIZE, 0),
+				dictionary.length);
+		dictionaryTable = new int[1 << HASH_BITS];
+		Arrays.fill(dictionaryTable, -1);
+		for (int i = 0; i + MIN_MATCH <= this.dictionary.length; i++)
+			dictionaryTable[hash(dictionaryInt(i))] = i;
+	}
+
+	@Override
+	public int getId() {
+		return id;
+	}
+
+	@Override
+	public int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	@Override
+	public void compress(ByteBuffer src, ByteBuffer dst) {
+		int base = src.position();
+		int length = src.remaining();
+		int anchor = 0;
+		if (length > MATCH_FIND_LIMIT) {
+			State state = STATES.get();
+			int[] table = state.table;
+			int epoch = state.start(length);
+			int matchLimit = length - LAST_LITERALS;
+			int findLimit = length - MATCH_FIND_LIMIT;
+			int dictionaryLength = dictionary == null ? 0 : dictionary.length;
+			int misses = 0;
+			int i = 0;
+			while (i < findLimit) {
+				int sequence = src.getInt(base + i);
+				int hash = hash(sequence);
+				int candidate = table[hash] - epoch;
+				table[hash] = epoch + i;
+				int distance;
+				int matchLength;
+				if (candidate >= 0 && i - candidate <= 0xFFFF && src.getInt(base + candidate) == sequence) {
+					matchLength = MIN_MATCH + count(src, base + i + MIN_MATCH, base + candidate + MIN_MATCH,
+							base + matchLimit);
+					while (i > anchor && candidate > 0 && src.get(base + i - 1) == src.get(base + candidate - 1)) {
+						i--;
+						candidate--;
+						matchLength++;
+					}
+					distance = i - candidate;
+				} else if (dictionary != null && (candidate = dictionaryTable[hash]) >= 0
+						&& i + dictionaryLength - candidate <= 0xFFFF && dictionaryInt(candidate) == sequence) {
+					matchLength = MIN_MATCH
+							+ countDictionary(src, base, base + i + MIN_MATCH, candidate + MIN_MATCH, base + matchLimit);
+					distance = i + dictionaryLength - candidate;
+				} else {
+					i += 1 + (misses++ >>> SKIP_TRIGGER);
+					continue;
+				}
+				misses = 0;
+				putSequence(dst, src, base + anchor, i - anchor, distance, matchLength);
+				i += matchLength;
+				anchor = i;
+			}
+		}
+		int literals = length - anchor;
+		dst.put((byte) (Math.min(literals, 15) << 4));
+		if (literals >= 15)
+			putLength(dst, literals - 15);
+		copy(src, base + anchor, dst, literals);
+	}
+
+	/**
+	 * Returns the number of bytes from {@code a} equal to those from
+	 * {@code b}, up to {@code limit}.
+	 */
+	private static int count(ByteBuffer src, int a, int b, int limit) {
+		int start = a;
+		while (a + 8 <= limit && src.getLong(a) == src.getLong(b)) {
+			a += 8;
+			b += 8;
+		}
+		while (a < limit && src.get(a) == src.get(b)) {
+			a++;
+			b++;
+		}
+		return a - start;
+	}
+
+	/**
+	 * Returns the number of bytes from {@code a} equal to those of the
+	 * dictionary from {@code d} - and on into the message from {@code base}
+	 * if the dictionary's end is reached - up to {@code limit}.
+	 */
+	private int countDictionary(ByteBuffer src, int base, int a, int d, int limit) {
+		int start = a;
+		while (a < limit && d < dictionary.length && dictionary[d] == src.get(a)) {
+			a++;
+			d++;
+		}
+		if (d == dictionary.length)
+			a += count(src, a, base, limit);
+		return a - start;
+	}
+
+	/**
+	 * Writes a sequence - literal bytes of the source then a back-reference.
+	 */
+	private static void putSequence(ByteBuffer dst, ByteBuffer src, int literalStart, int literals, int distance,
+			int matchLength) {
+		int match = matchLength - MIN_MATCH;
+		dst.put((byte) ((Math.min(literals, 15) << 4) | Math.min(match, 15)));
+		if (literals >= 15)
+			putLength(dst, literals - 15);
+		copy(src, literalStart, dst, literals);
+		dst.put((byte) distance).put((byte) (distance >>> 8));
+		if (match >= 15)
+			putLength(dst, match - 15);
+	}
+
+	private static void putLength(ByteBuffer dst, int length) {
+		while (length >= 255) {
+			dst.put((byte) 255);
+			length -= 255;
+		}
+		dst.put((byte) length);
+	}
+
+	/**
+	 * Copies bytes of {@code src} from an index to {@code dst}'s position,
+	 * advancing it.
+	 */
+	private static void copy(ByteBuffer src, int from, ByteBuffer dst, int length) {
+		if (src.hasArray() && dst.hasArray()) {
+			int position = dst.position();
+			System.arraycopy(src.array(), src.arrayOffset() + from, dst.array(), dst.arrayOffset() + position,
+					length);
+			dst.position(position + length);
+			return;
+		}
+		for (int i = 0; i < length; i++)
+			dst.put(src.get(from + i));
+	}
+
+	@Override
+	public boolean decompress(ByteBuffer src, ByteBuffer dst) {
+		int in = src.position();
+		int end = src.limit();
+		int start = dst.position();
+		int out = start;
+		int limit = dst.limit();
+		int dictionaryLength = dictionary == null ? 0 : dictionary.length;
+		ByteBuffer literal = null;
+		while (in < end) {
+			int token = src.get(in++) & 0xFF;
+			int literals = token >>> 4;
+			if (literals == 15) {
+				int b;
+				do {
+					if (in == end)
+						return false;
+					b = src.get(in++) & 0xFF;
+					literals += b;
+				} while (b == 255 && literals <= limit);
+			}
+			if (literals > end - in || literals > limit - out)
+				return false;
+			if (literals > 0) {
+				if (literal == null)
+					literal = src.duplicate();
+				literal.limit(in + literals).position(in);
+				dst.position(out);
+				dst.put(literal);
+				in += literals;
+				out += literals;
+			}
+			if (in == end)
+				break;
+			if (end - in < 2)
+				return false;
+			int distance = (src.get(in) & 0xFF) | (src.get(in + 1) & 0xFF) << 8;
+			in += 2;
+			int matchLength = token & 15;
+			if (matchLength == 15) {
+				int b;
+				do {
+					if (in == end)
+						return false;
+					b = src.get(in++) & 0xFF;
+					matchLength += b;
+				} while (b == 255 && matchLength <= limit);
+			}
+			matchLength += MIN_MATCH;
+			if (distance == 0 || distance > out - start + dictionaryLength || matchLength > limit - out)
+				return false;
+			int from = out - distance;
+			for (; from < start && matchLength > 0; from++, matchLength--)
+				dst.put(out++, dictionary[dictionaryLength - start + from]);
+			if (matchLength > 0 && dst.hasArray() && out - from >= matchLength) {
+				System.arraycopy(dst.array(), dst.arrayOffset() + from, dst.array(), dst.arrayOffset() + out,
+						matchLength);
+				out += matchLength;
+			} else
+				while (matchLength-- > 0)
+					dst.put(out++, dst.get(from++));
+		}
+		if (out != limit)
+			return false;
+		dst.position(out);
+		return true;
+	}
+
+	private static int hash(int sequence) {
+		return (sequence * -1640531535) >>> (32 - HASH_BITS);
+	}
+
+	/**
+	 * Returns 4 bytes of the dictionary as a big-endian integer, as
+	 * {@link ByteBuffer#getInt(int)} reads a message.
+	 */
+	private int dictionaryInt(int index) {
+		return (dictionary[index] << 24) | ((dictionary[index + 1] & 0xFF) << 16)
+				| ((dictionary[index + 2] & 0xFF) << 8) | (dictionary[index + 3] & 0xFF);
+	}
+
+	/**
+	 * Builds a dictionary from sample messages, for
+	 * {@link #LZ4Codec(int, byte[])}. Counts how many samples each short
+	 * sequence of bytes appears in, then repeatedly takes the segment of a
+	 * sample covering the most common sequences not yet taken, until the
+	 * dictionary is full. The most common segments are placed last, nearest
+	 * the messages, where back-references to them are cheapest.
+	 * <p>
+	 * The samples should be representative of the messages to be compressed
+	 * - a few hundred or more. Training takes time proportional to the total
+	 * length of the samples times the number of segments taken, so is best
+	 * done once, with the dictionary shipped to both ends.
+	 *
+	 * @param samples
+	 *            the sample messages
+	 * @param size
+	 *            the maximum size of the dictionary, up to
+	 *            {@link #MAX_DICTIONARY_SIZE}
+	 * @return the dictionary - shorter than {@code size} if the samples have
+	 *         too little in common to fill it
+	 * @throws IllegalArgumentException
+	 *             if {@code size} is not positive or greater than
+	 *             {@code MAX_DICTIONARY_SIZE}
+	 */
+	public static byte[] trainDictionary(Collection<byte[]> samples, int size) {
+		if (size < 1 || size > MAX_DICTIONARY_SIZE)
+			throw new IllegalArgumentException("size must be between 1 and " + MAX_DICTIONARY_SIZE + ": " + size);
+		byte[][] data = samples.toArray(new byte[samples.size()][]);
+		HashMap<Long, Integer> ids = new HashMap<Long, Integer>();
+		int[] counts = new int[1024];
+		int[] lastSample = new int[1024];
+		int[][] grams = new int[data.length][];
+		for (int s = 0; s < data.length; s++) {
+			byte[] sample = data[s];
+			int[] g = grams[s] = new int[Math.max(sample.length - TRAINING_GRAM + 1, 0)];
+			for (int i = 0; i < g.length; i++) {
+				long key = 0;
+				for (int j = 0; j < TRAINING_GRAM; j++)
+					key = (key << 8) | (sample[i + j] & 0xFF);
+				Integer id = ids.get(key);
+				if (id == null) {
+					id = ids.size();
+					ids.put(key, id);
+					if (id == counts.length) {
+						counts = Arrays.copyOf(counts, id * 2);
+						lastSample = Arrays.copyOf(lastSample, id * 2);
+					}
+				}
+				if (lastSample[id] != s + 1) {
+					lastSample[id] = s + 1;
+					counts[id]++;
+				}
+				g[i] = id;
+			}
+		}
+		ArrayList<byte[]> segments = new ArrayList<byte[]>();
+		int total = 0;
+		while (total < size) {
+			long best = 0;
+			int bestSample = -1;
+			int bestStart = 0;
+			for (int s = 0; s < data.length; s++) {
+				int[] g = grams[s];
+				int window = Math.min(TRAINING_SEGMENT - TRAINING_GRAM + 1, g.length);
+				long score = 0;
+				for (int i = 0; i < g.length; i++) {
+					score += score(counts, g[i]);
+					if (i >= window)
+						score -= score(counts, g[i - window]);
+					if (i >= window - 1 && score > best) {
+						best = score;
+						bestSample = s;
+						bestStart = i - window + 1;
+					}
+				}
+			}
+			if (bestSample < 0)
+				break;
+			byte[] sample = data[bestSample];
+			int length = Math.min(Math.min(TRAINING_SEGMENT, sample.length - bestStart), size - total);
+			segments.add(Arrays.copyOfRange(sample, bestStart, bestStart + length));
+			total += length;
+			int[] g = grams[bestSample];
+			for (int i = bestStart; i < g.length && i + TRAINING_GRAM <= bestStart + length; i++)
+				counts[g[i]] = 0;
+		}
+		byte[] dictionary = new byte[total];
+		int position = 0;
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			byte[] segment = segments.get(i);
+			System.arraycopy(segment, 0, dictionary, position, segment.length);
+			position += segment.length;
+		}
+		return dictionary;
+	}
+
+	/**
+	 * Returns the value of a sequence in a dictionary - the number of samples
+	 * it appears in, if more than one.
+	 */
+	private static int score(int[] counts, int id) {
+		int count = counts[id];
+		return count > 1 ? count : 0;
+	}
+}
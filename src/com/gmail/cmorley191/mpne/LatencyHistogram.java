@@ -0,0 +1,204 @@
+package com.gmail.cmorley191.mpne;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A distribution of durations in nanoseconds, recorded concurrently without
+ * locking.
+ * <p>
+ * Durations are counted in log-linear buckets in the manner of HdrHistogram:
+ * every power of 2 range is divided into 32 equal buckets, so any recorded
+ * value is reported to within about 3% of its true value, from nanoseconds up
+ * to centuries, in a fixed 15 KiB of counters.
+ * <p>
+ * The histograms returned by {@link MPNEMetrics} are snapshots and do not
+ * change.
+ *
+ * @author Charlie Morley
+ *
+ */
+public final class LatencyHistogram {
+
+	/**
+	 * The base 2 logarithm of the number of buckets each power of 2 range is
+	 * divided into.
+	 */
+	private static final int SUB_BUCKET_BITS = 5;
+
+	/**
+	 * The number of buckets each power of 2 range is divided into.
+	 */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * The number of buckets - values below {@code 2 * SUB_BUCKETS} each have
+	 * their own bucket, and every larger power of 2 range has
+	 * {@code SUB_BUCKETS}.
+	 */
+	private static final int BUCKETS = 2 * SUB_BUCKETS + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+	/**
+	 * The number of values recorded in each bucket.
+	 */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * The number of values recorded.
+	 */
+	private final LongAdder count = new LongAdder();
+
+	/**
+	 * The sum of the values recorded.
+	 */
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * The largest value recorded.
+	 */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Constructs an empty histogram.
+	 */
+	LatencyHistogram() {
+	}
+
+	/**
+	 * Returns the bucket counting the specified value.
+	 */
+	private static int bucket(long value) {
+		if (value < 2 * SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int sub = (int) (value >>> shift);
+		return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (sub - SUB_BUCKETS);
+	}
+
+	/**
+	 * Returns the largest value counted by the specified bucket.
+	 */
+	private static long highestValue(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS)
+			return bucket;
+		int shift = (bucket - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+		long sub = (bucket - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos
+	 *            the duration in nanoseconds - negative durations are recorded
+	 *            as 0
+	 */
+	void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(bucket(nanos));
+		count.increment();
+		sum.add(nanos);
+		long current;
+		while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos))
+			;
+	}
+
+	/**
+	 * Returns a copy of this histogram. Values recorded during the copy may
+	 * be partially included.
+	 *
+	 * @return the copy
+	 */
+	LatencyHistogram snapshot() {
+		LatencyHistogram copy = new LatencyHistogram();
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			long c = counts.get(i);
+			if (c != 0) {
+				copy.counts.set(i, c);
+				total += c;
+			}
+		}
+		// the bucket counts are authoritative, so the count agrees with
+		// percentiles computed from them
+		copy.count.add(total);
+		copy.sum.add(sum.sum());
+		copy.max.set(max.get());
+		return copy;
+	}
+
+	/**
+	 * Returns the number of durations recorded.
+	 *
+	 * @return the count
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the longest duration recorded.
+	 *
+	 * @return the maximum in nanoseconds, 0 if none was recorded
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the mean of the durations recorded.
+	 *
+	 * @return the mean in nanoseconds, 0 if none was recorded
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * Returns the duration at or below which the specified percentage of
+	 * recorded durations fall, to within the histogram's precision.
+	 *
+	 * @param percentile
+	 *            the percentage, from 0 to 100 - for example 99 for the 99th
+	 *            percentile
+	 * @return the duration in nanoseconds, 0 if none was recorded
+	 * @throws IllegalArgumentException
+	 *             if {@code percentile} is not between 0 and 100
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (!(percentile >= 0 && percentile <= 100))
+			throw new IllegalArgumentException("percentile must be between 0 and 100: " + percentile);
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			total += counts.get(i);
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestValue(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Returns a summary of this histogram in microseconds.
+	 *
+	 * @return the count, mean, median, 99th percentile and maximum
+	 */
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus", getCount(), getMean() / 1000,
+				micros(getValueAtPercentile(50)), micros(getValueAtPercentile(99)), micros(getMax()));
+	}
+
+	private static double micros(long nanos) {
+		return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+	}
+}
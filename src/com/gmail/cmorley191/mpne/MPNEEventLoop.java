@@ -0,0 +1,236 @@
+package com.gmail.cmorley191.mpne;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single thread receiving data for any number of channel-based
+ * {@link MPNESocket MPNESockets}. Where a socket constructed on a port has its
+ * own receiving thread, sockets constructed on an {@code MPNEEventLoop} share
+ * the loop's thread, which waits on all of their channels at once with a
+ * {@link Selector}.
+ * <p>
+ * Received data is still distributed to listeners by each socket's dispatcher
+ * - see {@link MPNESocket#setDispatcher(java.util.concurrent.Executor)}. The
+ * loop also runs the timeouts of each socket's {@link TimerWheel}, waking
+ * from waiting on the channels when one is due. An exception thrown while
+ * serving one socket is passed to the loop thread's uncaught exception
+ * handler, and the loop goes on serving the others.
+ *
+ * @author Charlie Morley
+ *
+ */
+public final class MPNEEventLoop {
+
+	/**
+	 * Receives notification that a channel registered with an
+	 * {@code MPNEEventLoop} has data to be read.
+	 *
+	 * @author Charlie Morley
+	 *
+	 */
+	static interface Handler {
+
+		/**
+		 * Called on the loop's thread when the channel has data to be read.
+		 */
+		void channelReadable();
+	}
+
+	/**
+	 * Counter used to name loop threads.
+	 */
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	/**
+	 * The selector waiting on the registered channels.
+	 */
+	private final Selector selector;
+
+	/**
+	 * The timer wheels the loop drives. Only accessed by the loop's thread.
+	 */
+	private final ArrayList<TimerWheel> wheels = new ArrayList<TimerWheel>();
+
+	/**
+	 * Tasks to be run on the loop's thread, such as registering channels.
+	 */
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * The thread running the loop.
+	 */
+	private final Thread thread;
+
+	/**
+	 * Flag for whether the loop is running. {@link #close()} sets this to
+	 * {@code false}.
+	 */
+	private volatile boolean running = true;
+
+	/**
+	 * Constructs and starts a new event loop.
+	 *
+	 * @throws IOException
+	 *             if the selector cannot be opened
+	 */
+	public MPNEEventLoop() throws IOException {
+		selector = Selector.open();
+		thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				loop();
+			}
+		}, "MPNE-event-loop-" + threadCount.incrementAndGet());
+		thread.start();
+	}
+
+	/**
+	 * Waits for readable channels and runs queued tasks and due timeouts
+	 * until closed.
+	 */
+	private void loop() {
+		long wait = -1;
+		while (running) {
+			try {
+				if (wait < 0)
+					selector.select();
+				else if (wait == 0)
+					selector.selectNow();
+				else
+					// select has millisecond precision, and 0 would wait
+					// indefinitely
+					selector.select((wait + 999999) / 1000000);
+			} catch (IOException e) {
+				break;
+			}
+			// a failing task or handler must not stop the loop serving every
+			// other socket, so each is reported as the timer wheels report
+			// failing timeouts
+			Runnable task;
+			while ((task = tasks.poll()) != null)
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					Thread thread = Thread.currentThread();
+					thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+				}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				try {
+					if (key.isValid() && key.isReadable())
+						((Handler) key.attachment()).channelReadable();
+				} catch (RuntimeException e) {
+					Thread thread = Thread.currentThread();
+					thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+				}
+			}
+			wait = -1;
+			for (int i = 0; i < wheels.size(); i++) {
+				long next = wheels.get(i).advance();
+				if (next >= 0 && (wait < 0 || next < wait))
+					wait = next;
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// the loop is finished either way
+		}
+	}
+
+	/**
+	 * Runs the task on the loop's thread.
+	 *
+	 * @param task
+	 *            the task to run
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Starts notifying the handler whenever the channel has data to be read.
+	 * The channel must be in non-blocking mode. Closing the channel stops the
+	 * notifications.
+	 *
+	 * @param channel
+	 *            the channel to wait on
+	 * @param handler
+	 *            the handler to notify
+	 */
+	void register(final SelectableChannel channel, final Handler handler) {
+		execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					channel.register(selector, SelectionKey.OP_READ, handler);
+				} catch (ClosedChannelException e) {
+					// closed before the loop got to it - nothing to wait on
+				}
+			}
+		});
+	}
+
+	/**
+	 * Starts driving the timer wheel - running its due timeouts on the loop's
+	 * thread - until it is removed.
+	 *
+	 * @param wheel
+	 *            the wheel to drive
+	 */
+	void addTimerWheel(final TimerWheel wheel) {
+		execute(new Runnable() {
+
+			@Override
+			public void run() {
+				wheels.add(wheel);
+			}
+		});
+	}
+
+	/**
+	 * Stops driving the timer wheel.
+	 *
+	 * @param wheel
+	 *            the wheel to stop driving
+	 */
+	void removeTimerWheel(final TimerWheel wheel) {
+		execute(new Runnable() {
+
+			@Override
+			public void run() {
+				wheels.remove(wheel);
+			}
+		});
+	}
+
+	/**
+	 * Wakes the loop's thread from waiting on the channels, so that it
+	 * recalculates when the next timeout is due.
+	 */
+	void wakeup() {
+		selector.wakeup();
+	}
+
+	/**
+	 * Stops the loop. Sockets using the loop stop receiving data, but are not
+	 * closed.
+	 */
+	public void close() {
+		running = false;
+		selector.wakeup();
+	}
+}
@@ -0,0 +1,202 @@
+package com.gmail.cmorley191.mpne;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A snapshot of the activity of an {@link MPNESocket} since it was
+ * constructed, returned by {@link MPNESocket#getMetrics()}. Never modified -
+ * take another snapshot to see later activity.
+ * <p>
+ * The same values are available to monitoring tools through JMX - see
+ * {@link MPNESocket#registerMBean()}.
+ *
+ * @author Charlie Morley
+ *
+ */
+public final class MPNEMetrics {
+
+	private final long datagramsReceived;
+	private final long bytesReceived;
+	private final long datagramsSent;
+	private final long bytesSent;
+	private final long unknownPeerPackets;
+	private final long truncatedPackets;
+	private final long droppedPackets;
+	private final long incompleteMessages;
+	private final long dispatchQueueDepth;
+	private final long bufferPoolHits;
+	private final long bufferPoolMisses;
+	private final LatencyHistogram receiveLatency;
+	private final Map<HeaderKey, LatencyHistogram> listenerTimes;
+
+	MPNEMetrics(long datagramsReceived, long bytesReceived, long datagramsSent, long bytesSent,
+			long unknownPeerPackets, long truncatedPackets, long droppedPackets, long incompleteMessages,
+			long dispatchQueueDepth, long bufferPoolHits, long bufferPoolMisses, LatencyHistogram receiveLatency,
+			Map<HeaderKey, LatencyHistogram> listenerTimes) {
+		this.datagramsReceived = datagramsReceived;
+		this.bytesReceived = bytesReceived;
+		this.datagramsSent = datagramsSent;
+		this.bytesSent = bytesSent;
+		this.unknownPeerPackets = unknownPeerPackets;
+		this.truncatedPackets = truncatedPackets;
+		this.droppedPackets = droppedPackets;
+		this.incompleteMessages = incompleteMessages;
+		this.dispatchQueueDepth = dispatchQueueDepth;
+		this.bufferPoolHits = bufferPoolHits;
+		this.bufferPoolMisses = bufferPoolMisses;
+		this.receiveLatency = receiveLatency;
+		this.listenerTimes = Collections.unmodifiableMap(listenerTimes);
+	}
+
+	/**
+	 * Returns the number of datagrams received, including those discarded.
+	 *
+	 * @return the datagram count
+	 */
+	public long getDatagramsReceived() {
+		return datagramsReceived;
+	}
+
+	/**
+	 * Returns the number of payload bytes in the datagrams received.
+	 *
+	 * @return the byte count
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * Returns the number of datagrams sent. A bundle of several messages
+	 * counts once.
+	 *
+	 * @return the datagram count
+	 */
+	public long getDatagramsSent() {
+		return datagramsSent;
+	}
+
+	/**
+	 * Returns the number of payload bytes in the datagrams sent, including
+	 * framing.
+	 *
+	 * @return the byte count
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * Returns the number of datagrams discarded because no peer with the
+	 * sender's address and port was open.
+	 *
+	 * @return the datagram count
+	 */
+	public long getUnknownPeerPackets() {
+		return unknownPeerPackets;
+	}
+
+	/**
+	 * Returns the number of datagrams discarded because they were larger than
+	 * {@link MPNESocket#MAX_DATAGRAM_SIZE}.
+	 *
+	 * @return the datagram count
+	 */
+	public long getTruncatedPackets() {
+		return truncatedPackets;
+	}
+
+	/**
+	 * Returns the number of datagrams discarded because their peer's
+	 * {@link MPNESocket#setMailboxCapacity(int) mailbox} was full, or the
+	 * {@link MPNESocket#setDispatcher(java.util.concurrent.Executor)
+	 * dispatcher} rejected the task to deliver them.
+	 *
+	 * @return the datagram count
+	 */
+	public long getDroppedPackets() {
+		return droppedPackets;
+	}
+
+	/**
+	 * Returns the number of messages received in fragments that were
+	 * discarded before all of their fragments arrived.
+	 *
+	 * @return the message count
+	 * @see MPNESocket#setReassemblyTimeout(long, java.util.concurrent.TimeUnit)
+	 */
+	public long getIncompleteMessages() {
+		return incompleteMessages;
+	}
+
+	/**
+	 * Returns the number of received datagrams waiting in peers' mailboxes to
+	 * be distributed to listeners when the snapshot was taken.
+	 *
+	 * @return the queue depth
+	 */
+	public long getDispatchQueueDepth() {
+		return dispatchQueueDepth;
+	}
+
+	/**
+	 * Returns the number of times a receive buffer was reused from the
+	 * socket's {@link BufferPool}.
+	 *
+	 * @return the hit count
+	 */
+	public long getBufferPoolHits() {
+		return bufferPoolHits;
+	}
+
+	/**
+	 * Returns the number of times the socket's {@link BufferPool} was empty
+	 * and a receive buffer was allocated.
+	 *
+	 * @return the miss count
+	 */
+	public long getBufferPoolMisses() {
+		return bufferPoolMisses;
+	}
+
+	/**
+	 * Returns the distribution of the time from receiving a datagram to
+	 * starting to distribute it to listeners - the time spent waiting in the
+	 * peer's mailbox and the dispatcher.
+	 *
+	 * @return the receive-to-listener latency
+	 */
+	public LatencyHistogram getReceiveLatency() {
+		return receiveLatency;
+	}
+
+	/**
+	 * Returns the distribution of the time listeners take to handle data, by
+	 * the header the listeners were added with. The time for a header covers
+	 * all of a peer's listeners for that header, across every peer of the
+	 * socket.
+	 *
+	 * @return the listener execution times by header
+	 */
+	public Map<HeaderKey, LatencyHistogram> getListenerTimes() {
+		return listenerTimes;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		s.append("received ").append(datagramsReceived).append(" datagrams (").append(bytesReceived)
+				.append(" bytes), sent ").append(datagramsSent).append(" datagrams (").append(bytesSent)
+				.append(" bytes)\n");
+		s.append("discarded ").append(unknownPeerPackets).append(" from unknown peers, ").append(truncatedPackets)
+				.append(" truncated, ").append(droppedPackets).append(" on full mailboxes, ").append(incompleteMessages)
+				.append(" incomplete messages\n");
+		s.append("dispatch queue depth ").append(dispatchQueueDepth).append(", buffer pool hits ")
+				.append(bufferPoolHits).append(" misses ").append(bufferPoolMisses).append('\n');
+		s.append("receive latency ").append(receiveLatency);
+		for (Map.Entry<HeaderKey, LatencyHistogram> e : listenerTimes.entrySet())
+			s.append("\nlisteners [").append(e.getKey()).append("] ").append(e.getValue());
+		return s.toString();
+	}
+}
@@ -1,13 +1,44 @@
 package com.gmail.cmorley191.mpne;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * A peer-to-peer IP implementation - based on {@link ConnectionListener} and
@@ -23,6 +54,12 @@ import java.util.HashMap;
  * {@code SocketPeerConnection} - upon construction the {@code MPNESocket} is
  * automatically receiving data from the socket and forwarding it to the
  * respective {@code SocketPeerConnections} based on source address and port.
+ * <p>
+ * An {@code MPNESocket} constructed on a port manages a {@link DatagramSocket}
+ * with its own receiving thread. An {@code MPNESocket} constructed on an
+ * {@link MPNEEventLoop} instead manages a non-blocking {@link DatagramChannel}
+ * receiving into direct buffers, and shares the loop's thread with every other
+ * socket on the loop.
  * 
  * @author Charlie Morley
  *
@@ -31,28 +68,356 @@ public final class MPNESocket {
 
 	/**
 	 * The socket this {@code MPNESocket} manages incoming and outgoing data
-	 * for.
+	 * for, {@code null} if this {@code MPNESocket} manages a {@link #channel}.
 	 */
 	private final DatagramSocket socket;
 
 	/**
-	 * The set of peers this socket is receiving from and sending to.
+	 * The channel this {@code MPNESocket} manages incoming and outgoing data
+	 * for, {@code null} if this {@code MPNESocket} manages a {@link #socket}.
+	 * The first of the {@link #shards} if there are several.
+	 */
+	private final DatagramChannel channel;
+
+	/**
+	 * Every channel this {@code MPNESocket} receives data from - bound to the
+	 * same port if there is more than one. Empty if this {@code MPNESocket}
+	 * manages a {@link #socket}.
+	 */
+	private final DatagramChannel[] shards;
+
+	/**
+	 * The event loops created by this {@code MPNESocket} for its
+	 * {@link #shards}, closed along with it.
 	 */
-	private final ArrayList<SocketPeerConnection> peers = new ArrayList<SocketPeerConnection>();
+	private final MPNEEventLoop[] ownedEventLoops;
+
+	/**
+	 * The set of peers this socket is receiving from and sending to, indexed
+	 * by address and port.
+	 */
+	private final PeerIndex peers = new PeerIndex();
 
 	/**
 	 * The thread managing incoming data and distributing it to the respective
-	 * peers in {@link peers}.
+	 * peers in {@link peers}, {@code null} if data is received by an
+	 * {@link MPNEEventLoop} instead.
 	 */
 	private final ReceivingThread receivingThread;
 
+	/**
+	 * The executor distributing received data to the peers' listeners. See
+	 * {@link #setDispatcher(Executor)}.
+	 */
+	private volatile Executor dispatcher;
+
+	/**
+	 * The dispatcher created by this socket, shut down when replaced or when
+	 * the socket is closed. {@code null} once a caller supplies their own.
+	 */
+	private ExecutorService ownedDispatcher;
+
+	/**
+	 * The largest datagram payload that can be sent over UDP/IPv4.
+	 */
+	public static final int MAX_DATAGRAM_SIZE = 65507;
+
+	/**
+	 * The default size of the largest datagram sent to a peer with an IPv4
+	 * address - the 1500 byte Ethernet MTU less the 20 byte IPv4 and 8 byte
+	 * UDP headers.
+	 */
+	public static final int IPV4_DATAGRAM_SIZE = 1472;
+
+	/**
+	 * The default size of the largest datagram sent to a peer with an IPv6
+	 * address - the 1280 byte minimum IPv6 MTU less the 40 byte IPv6 and 8
+	 * byte UDP headers, so that no IPv6 path needs to fragment it.
+	 */
+	public static final int IPV6_DATAGRAM_SIZE = 1232;
+
+	/**
+	 * The number of idle buffers kept by {@link #bufferPool}.
+	 */
+	private static final int BUFFER_POOL_CAPACITY = 1024;
+
+	/**
+	 * The size in bytes of the largest datagram this socket sends, 0 for the
+	 * default of the peer's address family. See
+	 * {@link #setMaxDatagramSize(int)}.
+	 */
+	private volatile int maxDatagramSize;
+
+	/**
+	 * The size in bytes of the largest datagram this socket receives, 0 to
+	 * follow {@link #maxDatagramSize}. See
+	 * {@link #setMaxReceivedDatagramSize(int)}.
+	 */
+	private volatile int maxReceivedDatagramSize;
+
+	/**
+	 * The pool of buffers data is received into. Buffers are one byte larger
+	 * than {@link #getMaxReceivedDatagramSize()} so that truncated datagrams
+	 * can be detected. Replaced by a pool of the new size when that size
+	 * changes; buffers leased from the previous pool return to it, and are
+	 * collected with it.
+	 */
+	private volatile BufferPool bufferPool;
+
+	/**
+	 * The number of received datagrams discarded because they were larger
+	 * than {@link #getMaxReceivedDatagramSize()}.
+	 */
+	private final LongAdder truncatedPackets = new LongAdder();
+
+	/**
+	 * The number of datagrams received, including those discarded.
+	 */
+	private final LongAdder datagramsReceived = new LongAdder();
+
+	/**
+	 * The number of payload bytes in the {@link #datagramsReceived}.
+	 */
+	private final LongAdder bytesReceived = new LongAdder();
+
+	/**
+	 * The number of datagrams sent.
+	 */
+	private final LongAdder datagramsSent = new LongAdder();
+
+	/**
+	 * The number of payload bytes in the {@link #datagramsSent}.
+	 */
+	private final LongAdder bytesSent = new LongAdder();
+
+	/**
+	 * The number of datagrams discarded rather than sent because the
+	 * {@link #channel channel's} send buffer was full.
+	 */
+	private final LongAdder unsentDatagrams = new LongAdder();
+
+	/**
+	 * The number of received datagrams discarded because no peer had the
+	 * sender's address and port.
+	 */
+	private final LongAdder unknownPeerPackets = new LongAdder();
+
+	/**
+	 * The number of received packets waiting in peers' mailboxes.
+	 */
+	private final LongAdder dispatchQueueDepth = new LongAdder();
+
+	/**
+	 * The time from receiving each datagram to starting to distribute it.
+	 */
+	private final LatencyHistogram receiveLatency = new LatencyHistogram();
+
+	/**
+	 * The time listeners take to handle data, by the header they were added
+	 * with. Histograms are shared by every peer's {@link HeaderRoute} for the
+	 * header, and kept once the header has no listeners left.
+	 */
+	private final ConcurrentHashMap<HeaderKey, LatencyHistogram> listenerTimes = new ConcurrentHashMap<HeaderKey, LatencyHistogram>();
+
+	/**
+	 * The timer wheel shared by this socket's peers and listeners. See
+	 * {@link #getTimerWheel()}.
+	 */
+	private final TimerWheel timerWheel;
+
+	/**
+	 * The event loop driving the {@link #timerWheel}, {@code null} if the
+	 * {@link #receivingThread} drives it.
+	 */
+	private final MPNEEventLoop timerLoop;
+
+	/**
+	 * The callback offered senders with no peers, {@code null} if none. See
+	 * {@link #setPeerAcceptor(PeerAcceptor)}.
+	 */
+	private volatile PeerAcceptor peerAcceptor;
+
+	/**
+	 * The number of entries in {@link #rejectedSenders}.
+	 */
+	private static final int REJECTED_SENDERS = 1024;
+
+	/**
+	 * How long data from a sender the {@link #peerAcceptor} rejected is
+	 * discarded without offering the sender again, in milliseconds.
+	 */
+	private static final int REJECTION_MILLIS = 1000;
+
+	/**
+	 * Senders recently rejected by the {@link #peerAcceptor}, indexed by the
+	 * low bits of the sender's {@link PeerIndex#hash(InetAddress, int) hash}.
+	 * Each entry holds 32 further bits of the hash, identifying the sender,
+	 * above the time in milliseconds at which the rejection expires. Entries
+	 * of different senders overwrite each other, at worst offering a sender
+	 * again sooner.
+	 */
+	private final AtomicLongArray rejectedSenders = new AtomicLongArray(REJECTED_SENDERS);
+
+	/**
+	 * The name this socket is registered with JMX under, {@code null} if it
+	 * is not registered. See {@link #registerMBean()}.
+	 */
+	private ObjectName mbeanName;
+
+	/**
+	 * Each sending thread's buffer for building outgoing datagrams. See
+	 * {@link #sendBuffer(int)}.
+	 */
+	private final ThreadLocal<ByteBuffer> sendBuffers = new ThreadLocal<ByteBuffer>();
+
+	/**
+	 * Each sending thread's buffer for compressing messages. See
+	 * {@link #compressBuffer(int)}.
+	 */
+	private final ThreadLocal<ByteBuffer> compressBuffers = new ThreadLocal<ByteBuffer>();
+
+	/**
+	 * The capacity above which a buffer for compressing a message is not kept
+	 * for the next message.
+	 */
+	private static final int MAX_KEPT_COMPRESS_BUFFER = 1 << 20;
+
+	/**
+	 * Each sending thread's packet for sending datagrams over the
+	 * {@link #socket}, so that threads sending concurrently - even to the
+	 * same peer - never share a packet.
+	 */
+	private final ThreadLocal<DatagramPacket> sendPackets = new ThreadLocal<DatagramPacket>() {
+
+		@Override
+		protected DatagramPacket initialValue() {
+			return new DatagramPacket(new byte[0], 0);
+		}
+	};
+
+	/**
+	 * Messages queued by {@link SocketPeerConnection#sendAsync(byte[])},
+	 * waiting for the {@link #sendingThread}.
+	 */
+	private final LinkedBlockingQueue<OutboundMessage> outbound = new LinkedBlockingQueue<OutboundMessage>();
+
+	/**
+	 * The number of asynchronously sent messages that have not yet been sent.
+	 */
+	private final AtomicInteger outboundDepth = new AtomicInteger();
+
+	/**
+	 * The thread sending asynchronously sent messages, started when the first
+	 * message is queued.
+	 */
+	private SendingThread sendingThread;
+
+	/**
+	 * How long in nanoseconds the {@link #sendingThread} waits for further
+	 * messages before sending a partial datagram. See
+	 * {@link #setSendCoalescingDelay(long, TimeUnit)}.
+	 */
+	private volatile long sendCoalescingDelay = 0;
+
+	/**
+	 * The listener notified of the {@link #outboundDepth} reaching
+	 * {@link #sendQueueHighWaterMark}, {@code null} if none.
+	 */
+	private volatile SendQueueListener sendQueueListener;
+
+	/**
+	 * The queue depth at which the {@link #sendQueueListener} is notified.
+	 */
+	private volatile int sendQueueHighWaterMark = Integer.MAX_VALUE;
+
+	/**
+	 * Whether the queue has reached the high-water mark and not yet drained.
+	 */
+	private final AtomicBoolean sendQueueHigh = new AtomicBoolean();
+
+	/**
+	 * Flag set by {@link #close()}.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * The maximum number of received packets waiting to be distributed to a
+	 * single peer. See {@link #setMailboxCapacity(int)}.
+	 */
+	private volatile int mailboxCapacity = 1024;
+
+	/**
+	 * The maximum number of datagrams a channel-based socket receives before
+	 * distributing them. See {@link #setReceiveBatchSize(int)}.
+	 */
+	private volatile int receiveBatchSize = 64;
+
+	/**
+	 * The number of received packets discarded because their peer's mailbox
+	 * was full, or the dispatcher rejected the task to empty it.
+	 */
+	private final LongAdder droppedPackets = new LongAdder();
+
+	/**
+	 * The largest message that can be sent or received, in bytes.
+	 */
+	public static final int MAX_MESSAGE_SIZE = 1 << 30;
+
+	/**
+	 * The smallest buffer a message is reassembled into is
+	 * 2<sup>{@value}</sup> bytes.
+	 */
+	private static final int MIN_MESSAGE_BUFFER_BITS = 12;
+
+	/**
+	 * The largest message reassembled from fragments, in bytes. See
+	 * {@link #setMaxMessageSize(int)}.
+	 */
+	private volatile int maxMessageSize = 1 << 20;
+
+	/**
+	 * How long in nanoseconds a message may take to be reassembled from its
+	 * fragments. See {@link #setReassemblyTimeout(long, TimeUnit)}.
+	 */
+	private volatile long reassemblyTimeout = TimeUnit.SECONDS.toNanos(5);
+
+	/**
+	 * The pools of buffers messages are reassembled into, by size - the pool
+	 * at index <i>i</i> holds buffers of 2<sup>{@link #MIN_MESSAGE_BUFFER_BITS}
+	 * + <i>i</i></sup> bytes.
+	 */
+	private final BufferPool[] messagePools = newMessagePools();
+
+	/**
+	 * The number of fragmented messages discarded before all of their
+	 * fragments were received.
+	 */
+	private final LongAdder incompleteMessages = new LongAdder();
+
+	/**
+	 * The codecs that decompress received messages, indexed by id.
+	 */
+	private final AtomicReferenceArray<PayloadCodec> codecs = new AtomicReferenceArray<PayloadCodec>(256);
+
+	/**
+	 * The id of the next message sent in fragments. See
+	 * {@link #nextFragmentId()}.
+	 */
+	private final AtomicInteger fragmentIds = new AtomicInteger();
+
+	/**
+	 * The multicast groups the {@link #channel} has joined. Only accessed
+	 * while synchronized on this socket.
+	 */
+	private final ArrayList<MembershipKey> memberships = new ArrayList<MembershipKey>();
+
 	/**
 	 * Constructs a new socket bound to any available port.
 	 * 
 	 * @throws SocketException
 	 */
 	public MPNESocket() throws SocketException {
-		this(new DatagramSocket());
+		this(openSocket(0));
 	}
 
 	/**
@@ -63,7 +428,72 @@ public final class MPNESocket {
 	 * @throws SocketException
 	 */
 	public MPNESocket(int port) throws SocketException {
-		this(new DatagramSocket(port));
+		this(openSocket(port));
+	}
+
+	/**
+	 * Constructs a new channel-based socket bound to any available port,
+	 * receiving data on the specified event loop.
+	 * 
+	 * @param eventLoop
+	 *            the loop receiving data for this socket
+	 * @throws IOException
+	 *             if the channel cannot be opened or bound
+	 */
+	public MPNESocket(MPNEEventLoop eventLoop) throws IOException {
+		this(eventLoop, 0);
+	}
+
+	/**
+	 * Constructs a new channel-based socket bound to the specified port,
+	 * receiving data on the specified event loop.
+	 * 
+	 * @param eventLoop
+	 *            the loop receiving data for this socket
+	 * @param port
+	 *            the port of this socket
+	 * @throws IOException
+	 *             if the channel cannot be opened or bound
+	 */
+	public MPNESocket(MPNEEventLoop eventLoop, int port) throws IOException {
+		this(new DatagramChannel[] { openChannel(port, false) }, new MPNEEventLoop[] { eventLoop }, false);
+	}
+
+	/**
+	 * Constructs a new channel-based socket receiving on several channels
+	 * bound to the same port, each with its own {@link MPNEEventLoop}, so that
+	 * receiving is spread across that many threads.
+	 * <p>
+	 * The channels are bound with the {@code SO_REUSEPORT} option, with which
+	 * the operating system (Linux, for example) distributes incoming datagrams
+	 * across the channels by sender. Every channel delivers to the same
+	 * {@link SocketPeerConnection SocketPeerConnections}, whichever channel a
+	 * peer's data arrives on. Data is sent from the first channel.
+	 * 
+	 * @param port
+	 *            the port of this socket, 0 for any available port
+	 * @param shards
+	 *            the number of channels, and receiving threads, to open
+	 * @throws IOException
+	 *             if the channels cannot be opened or bound
+	 * @throws UnsupportedOperationException
+	 *             if the platform does not support {@code SO_REUSEPORT}
+	 */
+	public MPNESocket(int port, int shards) throws IOException {
+		this(openShards(port, shards));
+	}
+
+	/**
+	 * Constructs the {@code MPNESocket} with the specified open, non-blocking
+	 * channels, each served by a new event loop owned by the socket.
+	 * 
+	 * @param channels
+	 *            the channels, closed if the loops cannot be constructed
+	 * @throws IOException
+	 *             if a loop cannot be constructed
+	 */
+	private MPNESocket(DatagramChannel[] channels) throws IOException {
+		this(channels, newEventLoops(channels), true);
 	}
 
 	/**
@@ -74,13 +504,203 @@ public final class MPNESocket {
 	 */
 	private MPNESocket(DatagramSocket socket) {
 		this.socket = socket;
+		channel = null;
+		shards = new DatagramChannel[0];
+		ownedEventLoops = new MPNEEventLoop[0];
+		bufferPool = new BufferPool(BUFFER_POOL_CAPACITY, IPV4_DATAGRAM_SIZE + 1, false);
+		ownedDispatcher = Dispatchers.defaultPool();
+		dispatcher = ownedDispatcher;
+		timerWheel = new TimerWheel(1, TimeUnit.MILLISECONDS, new Runnable() {
+
+			@Override
+			public void run() {
+				wakeReceivingThread();
+			}
+		});
+		timerLoop = null;
 		receivingThread = new ReceivingThread();
 		receivingThread.start();
 	}
 
+	/**
+	 * Constructs the {@code MPNESocket} with the specified open, non-blocking
+	 * channels and registers each with the respective event loop.
+	 * 
+	 * @param channels
+	 * @param eventLoops
+	 * @param ownsEventLoops
+	 *            whether the loops are closed with this socket
+	 */
+	private MPNESocket(DatagramChannel[] channels, MPNEEventLoop[] eventLoops, boolean ownsEventLoops) {
+		socket = null;
+		channel = channels[0];
+		shards = channels;
+		ownedEventLoops = ownsEventLoops ? eventLoops : new MPNEEventLoop[0];
+		bufferPool = new BufferPool(BUFFER_POOL_CAPACITY, IPV4_DATAGRAM_SIZE + 1, true);
+		ownedDispatcher = Dispatchers.defaultPool();
+		dispatcher = ownedDispatcher;
+		receivingThread = null;
+		timerLoop = eventLoops[0];
+		timerWheel = new TimerWheel(1, TimeUnit.MILLISECONDS, new Runnable() {
+
+			@Override
+			public void run() {
+				timerLoop.wakeup();
+			}
+		});
+		timerLoop.addTimerWheel(timerWheel);
+		for (int i = 0; i < channels.length; i++)
+			eventLoops[i].register(channels[i], new ChannelReceiver(channels[i]));
+	}
+
+	/**
+	 * Opens a socket bound to the specified port - a {@link MulticastSocket},
+	 * so that it can {@link #joinGroup(InetAddress, NetworkInterface) join}
+	 * multicast groups, but without the {@code SO_REUSEADDR} option a
+	 * {@code MulticastSocket} otherwise enables, so that binding fails if the
+	 * port is in use as it would for any other {@code DatagramSocket}.
+	 * 
+	 * @param port
+	 *            the port to bind to, 0 for any available port
+	 * @return the open socket
+	 * @throws SocketException
+	 *             if the socket cannot be opened or bound
+	 */
+	private static DatagramSocket openSocket(int port) throws SocketException {
+		MulticastSocket socket;
+		try {
+			socket = new MulticastSocket(null);
+		} catch (SocketException e) {
+			throw e;
+		} catch (IOException e) {
+			SocketException wrapped = new SocketException(e.getMessage());
+			wrapped.initCause(e);
+			throw wrapped;
+		}
+		try {
+			socket.setReuseAddress(false);
+			socket.bind(new InetSocketAddress(port));
+		} catch (SocketException | RuntimeException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	/**
+	 * Opens a non-blocking channel bound to the specified port.
+	 * 
+	 * @param port
+	 *            the port to bind to, 0 for any available port
+	 * @param reusePort
+	 *            whether to enable {@code SO_REUSEPORT} before binding
+	 * @return the open channel
+	 * @throws IOException
+	 *             if the channel cannot be opened or bound
+	 */
+	private static DatagramChannel openChannel(int port, boolean reusePort) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			if (reusePort)
+				enableReusePort(channel);
+			channel.bind(new InetSocketAddress(port));
+			channel.configureBlocking(false);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/**
+	 * Opens the specified number of non-blocking channels bound to the same
+	 * port with {@code SO_REUSEPORT}.
+	 * 
+	 * @param port
+	 *            the port to bind to, 0 for any available port
+	 * @param count
+	 *            the number of channels
+	 * @return the open channels
+	 * @throws IOException
+	 *             if the channels cannot be opened or bound
+	 */
+	private static DatagramChannel[] openShards(int port, int count) throws IOException {
+		if (count < 1)
+			throw new IllegalArgumentException("shards must be positive: " + count);
+		DatagramChannel[] channels = new DatagramChannel[count];
+		try {
+			for (int i = 0; i < count; i++) {
+				channels[i] = openChannel(port, true);
+				// every further shard joins the port the first was bound to
+				port = channels[0].socket().getLocalPort();
+			}
+		} catch (IOException | RuntimeException e) {
+			for (DatagramChannel c : channels)
+				if (c != null)
+					c.close();
+			throw e;
+		}
+		return channels;
+	}
+
+	/**
+	 * Enables {@code SO_REUSEPORT} on the channel. The option is looked up by
+	 * name, as {@code StandardSocketOptions.SO_REUSEPORT} does not exist
+	 * before Java 9.
+	 * 
+	 * @param channel
+	 *            the unbound channel
+	 * @throws IOException
+	 *             if the option cannot be set
+	 * @throws UnsupportedOperationException
+	 *             if the channel does not support the option
+	 */
+	@SuppressWarnings("unchecked")
+	private static void enableReusePort(DatagramChannel channel) throws IOException {
+		for (SocketOption<?> option : channel.supportedOptions())
+			if (option.name().equals("SO_REUSEPORT") && option.type() == Boolean.class) {
+				channel.setOption((SocketOption<Boolean>) option, true);
+				return;
+			}
+		throw new UnsupportedOperationException("SO_REUSEPORT is not supported on this platform");
+	}
+
+	/**
+	 * Constructs an event loop for each of the channels. If a loop cannot be
+	 * constructed, the loops already constructed and the channels are closed,
+	 * so that nothing is left bound or running.
+	 * 
+	 * @param channels
+	 *            the channels the loops are to serve
+	 * @return the running loops
+	 * @throws IOException
+	 *             if a loop cannot be constructed
+	 */
+	private static MPNEEventLoop[] newEventLoops(DatagramChannel[] channels) throws IOException {
+		MPNEEventLoop[] loops = new MPNEEventLoop[channels.length];
+		try {
+			for (int i = 0; i < loops.length; i++)
+				loops[i] = new MPNEEventLoop();
+		} catch (IOException | RuntimeException e) {
+			for (MPNEEventLoop loop : loops)
+				if (loop != null)
+					loop.close();
+			for (DatagramChannel c : channels)
+				try {
+					c.close();
+				} catch (IOException suppressed) {
+					e.addSuppressed(suppressed);
+				}
+			throw e;
+		}
+		return loops;
+	}
+
 	/**
 	 * Thread for managing incoming data and distributing it to the respective
-	 * peer in {@link MPNESocket#peers}.
+	 * peer in {@link MPNESocket#peers}. Also drives the
+	 * {@link MPNESocket#timerWheel}, receiving with a timeout while timeouts
+	 * are pending.
 	 * 
 	 * @author Charlie Morley
 	 *
@@ -95,54 +715,1423 @@ public final class MPNESocket {
 
 		@Override
 		public void run() {
+			DatagramPacket receivingPacket = new DatagramPacket(new byte[0], 0);
+			int receiveTimeout = 0;
 			while (running) {
-				DatagramPacket receivingPacket = new DatagramPacket(new byte[1000], 1000);
+				long wait = timerWheel.advance();
+				int millis = wait < 0 ? 0 : (int) Math.min(Math.max((wait + 999999) / 1000000, 1), Integer.MAX_VALUE);
+				if (millis != receiveTimeout)
+					try {
+						socket.setSoTimeout(millis);
+						receiveTimeout = millis;
+					} catch (SocketException e) {
+						// closed - the receive fails too
+					}
+				ReceivedPacket lease = bufferPool.acquire();
+				receivingPacket.setData(lease.buffer.array());
 				try {
 					socket.receive(receivingPacket);
+				} catch (SocketTimeoutException e) {
+					lease.release();
+					continue;
 				} catch (IOException e) {
+					lease.release();
 					if (e.getMessage().equals("socket closed"))
 						running = false;
 					continue;
 				}
-				synchronized (peers) {
-					for (SocketPeerConnection peer : peers) {
-						if (!running)
-							break;
-						if (peer.getAddress().equals(receivingPacket.getAddress())
-								&& peer.getPort() == receivingPacket.getPort())
-							new Thread(new Runnable() {
-
-								@Override
-								public void run() {
-									peer.packetReceived(receivingPacket);
-								}
-							}).start();
-					}
+				lease.length = receivingPacket.getLength();
+				if (lease.length == 0 && receivingPacket.getAddress().isLoopbackAddress()
+						&& receivingPacket.getPort() == socket.getLocalPort()) {
+					// sent by wakeReceivingThread
+					lease.release();
+					continue;
 				}
+				if (running)
+					datagramReceived(lease, receivingPacket.getAddress(), receivingPacket.getPort(), null);
+				else
+					lease.release();
 			}
 		}
 	}
 
 	/**
-	 * Returns the port number on the local host to which this socket is bound.
+	 * Receives data from one of the {@link MPNESocket#shards} whenever the
+	 * {@link MPNEEventLoop} finds it readable, and distributes it to the
+	 * respective peer in {@link MPNESocket#peers}.
 	 * 
-	 * @return the port number on the local host to which this socket is bound,
-	 *         -1 if the socket is closed
-	 * @see java.net.DatagramSocket#getLocalPort()
-	 */
-	public int getPort() {
-		return socket.getLocalPort();
-	}
-
-	/**
-	 * Closes the socket. Causes any current and further receiving or sending
-	 * attempts over the socket to throw an exception. This {@code MPNESocket's}
-	 * inner threads are shut down.
+	 * @author Charlie Morley
+	 *
 	 */
-	public void close() {
-		receivingThread.running = false;
-		socket.close();
-	}
+	private final class ChannelReceiver implements MPNEEventLoop.Handler {
+
+		/**
+		 * The channel this receiver receives from.
+		 */
+		private final DatagramChannel channel;
+
+		/**
+		 * The packets of the current batch, reused between batches.
+		 */
+		private ReceivedPacket[] batch = new ReceivedPacket[0];
+
+		/**
+		 * The senders of the packets in {@link #batch}.
+		 */
+		private InetSocketAddress[] senders = new InetSocketAddress[0];
+
+		/**
+		 * The peers whose mailboxes received data in the current batch and
+		 * must be submitted to the dispatcher.
+		 */
+		private final ArrayList<SocketPeerConnection> scheduled = new ArrayList<SocketPeerConnection>();
+
+		ChannelReceiver(DatagramChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Receives every available datagram up to the
+		 * {@link MPNESocket#setReceiveBatchSize(int) batch size}, then
+		 * distributes them to their peers' mailboxes, then submits each
+		 * mailbox that received data to the dispatcher once.
+		 */
+		@Override
+		public void channelReadable() {
+			int limit = receiveBatchSize;
+			if (batch.length < limit) {
+				batch = new ReceivedPacket[limit];
+				senders = new InetSocketAddress[limit];
+			}
+			int count = 0;
+			while (count < limit) {
+				ReceivedPacket lease = bufferPool.acquire();
+				lease.buffer.clear();
+				SocketAddress source;
+				try {
+					source = channel.receive(lease.buffer);
+				} catch (IOException e) {
+					source = null;
+				}
+				if (source == null) {
+					lease.release();
+					break;
+				}
+				lease.length = lease.buffer.position();
+				batch[count] = lease;
+				senders[count] = (InetSocketAddress) source;
+				count++;
+			}
+			for (int i = 0; i < count; i++) {
+				datagramReceived(batch[i], senders[i].getAddress(), senders[i].getPort(), scheduled);
+				batch[i] = null;
+				senders[i] = null;
+			}
+			for (int i = 0; i < scheduled.size(); i++)
+				scheduled.get(i).dispatchMailbox();
+			scheduled.clear();
+		}
+	}
+
+	/**
+	 * A message queued by {@link SocketPeerConnection#sendAsync(byte[])}.
+	 * 
+	 * @author Charlie Morley
+	 *
+	 */
+	private static final class OutboundMessage {
+
+		/**
+		 * The peer to send the message to.
+		 */
+		final SocketPeerConnection peer;
+
+		/**
+		 * The message.
+		 */
+		final ByteBuffer data;
+
+		/**
+		 * The future completed once the message is sent.
+		 */
+		final CompletableFuture<Void> future;
+
+		OutboundMessage(SocketPeerConnection peer, ByteBuffer data, CompletableFuture<Void> future) {
+			this.peer = peer;
+			this.data = data;
+			this.future = future;
+		}
+	}
+
+	/**
+	 * Thread for sending the messages queued by
+	 * {@link SocketPeerConnection#sendAsync(byte[])}. Messages are grouped by
+	 * peer and each peer's messages are sent with
+	 * {@link SocketPeerConnection#sendBatch(List)} - once a datagram's worth
+	 * is waiting, or once the queue is empty and the
+	 * {@link MPNESocket#setSendCoalescingDelay(long, TimeUnit) coalescing
+	 * delay} has passed.
+	 * 
+	 * @author Charlie Morley
+	 *
+	 */
+	private final class SendingThread extends Thread {
+
+		/**
+		 * The peers with messages waiting to be sent, in the order their
+		 * first message was queued. Each peer is listed once, until the
+		 * coalescing delay passes, even if its messages were sent sooner -
+		 * see {@link SocketPeerConnection#asyncWaiting}.
+		 */
+		private final ArrayList<SocketPeerConnection> waiting = new ArrayList<SocketPeerConnection>();
+
+		@Override
+		public void run() {
+			long deadline = 0;
+			try {
+				while (!closed) {
+					OutboundMessage m;
+					if (waiting.isEmpty())
+						m = outbound.take();
+					else
+						m = outbound.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+					for (; m != null; m = outbound.poll()) {
+						if (waiting.isEmpty())
+							deadline = System.nanoTime() + sendCoalescingDelay;
+						SocketPeerConnection peer = m.peer;
+						if (!peer.asyncWaiting) {
+							peer.asyncWaiting = true;
+							waiting.add(peer);
+						}
+						peer.asyncMessages.add(m.data);
+						peer.asyncFutures.add(m.future);
+						peer.asyncBytes += Frames.BUNDLE_LENGTH_PREFIX + m.data.remaining();
+						if (Frames.HEADER_LENGTH + peer.asyncBytes >= peer.maxDatagramSize())
+							flush(peer);
+					}
+					if (System.nanoTime() - deadline >= 0) {
+						for (SocketPeerConnection peer : waiting) {
+							flush(peer);
+							peer.asyncWaiting = false;
+						}
+						waiting.clear();
+					}
+				}
+			} catch (InterruptedException e) {
+				// closed
+			}
+			for (SocketPeerConnection peer : waiting) {
+				outboundDepth.addAndGet(-peer.asyncFutures.size());
+				fail(peer.asyncFutures);
+				peer.asyncFutures.clear();
+			}
+			failQueued();
+		}
+
+		/**
+		 * Sends the peer's waiting messages and completes their futures.
+		 */
+		private void flush(SocketPeerConnection peer) {
+			int count = peer.asyncMessages.size();
+			if (count == 0)
+				return;
+			try {
+				peer.sendBatch(peer.asyncMessages);
+				for (CompletableFuture<Void> future : peer.asyncFutures)
+					future.complete(null);
+			} catch (IOException e) {
+				for (CompletableFuture<Void> future : peer.asyncFutures)
+					future.completeExceptionally(e);
+			}
+			peer.asyncMessages.clear();
+			peer.asyncFutures.clear();
+			peer.asyncBytes = 0;
+			int depth = outboundDepth.addAndGet(-count);
+			SendQueueListener listener = sendQueueListener;
+			if (depth <= sendQueueHighWaterMark / 2 && sendQueueHigh.compareAndSet(true, false) && listener != null)
+				listener.sendQueueDrained(MPNESocket.this, depth);
+		}
+	}
+
+	/**
+	 * Queues a message for the {@link #sendingThread}, starting the thread if
+	 * necessary.
+	 * 
+	 * @param message
+	 *            the message to send
+	 */
+	private void queueSend(OutboundMessage message) {
+		synchronized (this) {
+			if (sendingThread == null && !closed) {
+				sendingThread = new SendingThread();
+				sendingThread.start();
+			}
+		}
+		int depth = outboundDepth.incrementAndGet();
+		outbound.add(message);
+		if (closed) {
+			// the sending thread may already have finished
+			failQueued();
+			return;
+		}
+		SendQueueListener listener = sendQueueListener;
+		if (depth >= sendQueueHighWaterMark && sendQueueHigh.compareAndSet(false, true) && listener != null)
+			listener.sendQueueHigh(this, depth);
+	}
+
+	/**
+	 * Completes every queued message's future exceptionally, after this
+	 * socket has been closed.
+	 */
+	private void failQueued() {
+		OutboundMessage m;
+		while ((m = outbound.poll()) != null) {
+			outboundDepth.decrementAndGet();
+			m.future.completeExceptionally(new IOException("Socket closed"));
+		}
+	}
+
+	/**
+	 * Completes the futures exceptionally, after this socket has been closed.
+	 */
+	private void fail(ArrayList<CompletableFuture<Void>> futures) {
+		for (CompletableFuture<Void> future : futures)
+			future.completeExceptionally(new IOException("Socket closed"));
+	}
+
+	/**
+	 * Distributes a received datagram to the peers with the sender's address
+	 * and port, or releases it if it was truncated or there are no such peers.
+	 * 
+	 * @param lease
+	 *            the packet the datagram was received into
+	 * @param address
+	 *            the address of the sender
+	 * @param port
+	 *            the port of the sender
+	 * @param scheduled
+	 *            the list to add peers to whose mailboxes must be submitted
+	 *            to the dispatcher by the caller, or {@code null} to submit
+	 *            them immediately
+	 */
+	private void datagramReceived(ReceivedPacket lease, InetAddress address, int port,
+			ArrayList<SocketPeerConnection> scheduled) {
+		lease.receivedAt = System.nanoTime();
+		datagramsReceived.increment();
+		bytesReceived.add(lease.length);
+		if (lease.length == lease.buffer.capacity()) {
+			// the datagram filled the spare byte, so it did not fit
+			lease.release();
+			truncatedPackets.increment();
+			return;
+		}
+		SocketPeerConnection[] receivers = peers.get(address, port);
+		if (receivers == null)
+			receivers = acceptPeer(address, port);
+		if (receivers == null) {
+			lease.release();
+			unknownPeerPackets.increment();
+			return;
+		}
+		// a packet can only be queued in one mailbox, so peers sharing an
+		// address and port beyond the first each get a copy
+		for (int i = 0; i < receivers.length; i++) {
+			ReceivedPacket packet = i < receivers.length - 1 ? lease.duplicate() : lease;
+			if (receivers[i].offer(packet)) {
+				if (scheduled == null)
+					receivers[i].dispatchMailbox();
+				else
+					scheduled.add(receivers[i]);
+			}
+		}
+	}
+
+	/**
+	 * Returns the timer wheel of this socket, on which its peers retransmit
+	 * {@link ReliableChannel} messages and release paced datagrams, and on
+	 * which applications can schedule their own timeouts - keepalives or
+	 * evicting idle peers, for example. The wheel ticks every millisecond.
+	 * Its timeouts run on this socket's receiving thread, or the event loop
+	 * of its first channel, and stop when this socket is closed.
+	 * 
+	 * @return the socket's timer wheel
+	 */
+	public TimerWheel getTimerWheel() {
+		return timerWheel;
+	}
+
+	/**
+	 * Wakes the {@link #receivingThread} from waiting for data, so that it
+	 * runs newly due timeouts, by sending it an empty datagram - which it
+	 * recognizes by its loopback sender and discards.
+	 */
+	private void wakeReceivingThread() {
+		try {
+			socket.send(new DatagramPacket(new byte[0], 0, InetAddress.getLoopbackAddress(), socket.getLocalPort()));
+		} catch (IOException e) {
+			// closed - nothing left to wake
+		}
+	}
+
+	/**
+	 * Returns whether {@link #close()} has been called.
+	 * 
+	 * @return {@code true} if this socket is closed
+	 */
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Offers a sender with no peers to the {@link #peerAcceptor}, unless the
+	 * sender was recently rejected.
+	 * 
+	 * @param address
+	 *            the address of the sender
+	 * @param port
+	 *            the port of the sender
+	 * @return the sender's peers if the acceptor accepted it, {@code null}
+	 *         otherwise
+	 */
+	private SocketPeerConnection[] acceptPeer(InetAddress address, int port) {
+		PeerAcceptor acceptor = peerAcceptor;
+		if (acceptor == null)
+			return null;
+		long hash = PeerIndex.hash(address, port);
+		int slot = (int) hash & (REJECTED_SENDERS - 1);
+		// never 0, so that an empty entry matches no sender
+		long sender = (hash >>> 32) | 1;
+		int now = (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+		long entry = rejectedSenders.get(slot);
+		if (entry >>> 32 == sender && (int) entry - now > 0)
+			return null;
+		SocketPeerConnection peer;
+		try {
+			peer = acceptor.acceptPeer(this, address, port);
+		} catch (RuntimeException e) {
+			Thread thread = Thread.currentThread();
+			thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+			peer = null;
+		}
+		if (peer == null) {
+			rejectedSenders.set(slot, (sender << 32) | ((now + REJECTION_MILLIS) & 0xFFFFFFFFL));
+			return null;
+		}
+		return peers.get(address, port);
+	}
+
+	/**
+	 * Returns the calling thread's buffer for building outgoing datagrams,
+	 * cleared. The buffer is direct if this socket manages a channel.
+	 * 
+	 * @param capacity
+	 *            the minimum capacity of the buffer
+	 * @return the thread's send buffer
+	 */
+	ByteBuffer sendBuffer(int capacity) {
+		ByteBuffer buffer = sendBuffers.get();
+		if (buffer == null || buffer.capacity() < capacity) {
+			capacity = Math.max(capacity, IPV4_DATAGRAM_SIZE);
+			buffer = channel != null ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+			sendBuffers.set(buffer);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns the calling thread's buffer for compressing a message, cleared.
+	 * Buffers larger than {@link #MAX_KEPT_COMPRESS_BUFFER} are allocated for
+	 * the one message.
+	 * 
+	 * @param capacity
+	 *            the minimum capacity of the buffer
+	 * @return the thread's compression buffer
+	 */
+	ByteBuffer compressBuffer(int capacity) {
+		if (capacity > MAX_KEPT_COMPRESS_BUFFER)
+			return ByteBuffer.allocate(capacity);
+		ByteBuffer buffer = compressBuffers.get();
+		if (buffer == null || buffer.capacity() < capacity) {
+			buffer = ByteBuffer.allocate(Math.max(capacity, IPV4_DATAGRAM_SIZE));
+			compressBuffers.set(buffer);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Sends the remaining bytes of the buffer as one datagram over the
+	 * {@link #channel}. As the channel is non-blocking, a datagram with no
+	 * room in the operating system's full send buffer is discarded - as a
+	 * congested network would discard it - rather than stalling the sending
+	 * thread, which may be an event loop, until there is room.
+	 * 
+	 * @param data
+	 *            the data to send
+	 * @param target
+	 *            the address and port to send to
+	 * @return {@code true} if the datagram was sent, {@code false} if it was
+	 *         discarded
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private boolean sendDatagram(ByteBuffer data, InetSocketAddress target) throws IOException {
+		int length = data.remaining();
+		if (channel.send(data, target) > 0 || length == 0)
+			return true;
+		unsentDatagrams.increment();
+		return false;
+	}
+
+	/**
+	 * Sends the remaining bytes of the buffer as one datagram to the specified
+	 * address, counting it in the metrics. The buffer's position is unchanged.
+	 * 
+	 * @param datagram
+	 *            the datagram to send
+	 * @param target
+	 *            the address and port to send to
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	void sendTo(ByteBuffer datagram, InetSocketAddress target) throws IOException {
+		int length = datagram.remaining();
+		if (channel != null) {
+			int position = datagram.position();
+			boolean sent = sendDatagram(datagram, target);
+			datagram.position(position);
+			if (!sent)
+				return;
+		} else {
+			DatagramPacket packet = sendPacket(datagram);
+			packet.setSocketAddress(target);
+			socket.send(packet);
+		}
+		datagramsSent.increment();
+		bytesSent.add(length);
+	}
+
+	/**
+	 * Sends the remaining bytes of the buffer as one datagram to each of the
+	 * peers - through a peer's pacer if it is paced - all from the one
+	 * buffer, without copying it per peer. The buffer's position is
+	 * unchanged.
+	 * 
+	 * @param datagram
+	 *            the datagram to send
+	 * @param peers
+	 *            the peers to send to
+	 * @throws IOException
+	 *             the last error sending to a peer, once the datagram has been
+	 *             sent to the others
+	 */
+	void sendToAll(ByteBuffer datagram, SocketPeerConnection[] peers) throws IOException {
+		IOException failure = null;
+		int position = datagram.position();
+		DatagramPacket packet = null;
+		int sent = 0;
+		for (SocketPeerConnection peer : peers)
+			try {
+				if (peer.pacer.isEnabled()) {
+					peer.pacer.send(datagram);
+					continue;
+				}
+				if (channel != null)
+					try {
+						if (!sendDatagram(datagram, peer.target))
+							continue;
+					} finally {
+						datagram.position(position);
+					}
+				else {
+					if (packet == null)
+						packet = sendPacket(datagram);
+					packet.setSocketAddress(peer.target);
+					socket.send(packet);
+				}
+				sent++;
+			} catch (IOException e) {
+				failure = e;
+			}
+		datagramsSent.add(sent);
+		bytesSent.add((long) sent * datagram.remaining());
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Returns the calling thread's packet for sending over the
+	 * {@link #socket}, holding the remaining bytes of the buffer - without
+	 * copying them if the buffer is backed by an array.
+	 */
+	private DatagramPacket sendPacket(ByteBuffer datagram) {
+		DatagramPacket packet = sendPackets.get();
+		if (datagram.hasArray())
+			packet.setData(datagram.array(), datagram.arrayOffset() + datagram.position(), datagram.remaining());
+		else {
+			byte[] copy = new byte[datagram.remaining()];
+			datagram.duplicate().get(copy);
+			packet.setData(copy);
+		}
+		return packet;
+	}
+
+	/**
+	 * Joins an IP multicast group, so that this socket also receives the
+	 * datagrams sent to the group at this socket's port - such as those of a
+	 * {@link PeerGroup} sending by
+	 * {@link PeerGroup#setMulticastAddress(InetSocketAddress) multicast}.
+	 * Datagrams received from the group are delivered by their sender's
+	 * address, as any others are: to the sender's
+	 * {@link SocketPeerConnection}, or through the
+	 * {@link #setPeerAcceptor(PeerAcceptor) peer acceptor}.
+	 * <p>
+	 * Multicast datagrams are usually confined to the local network.
+	 * 
+	 * @param group
+	 *            the multicast address of the group
+	 * @param networkInterface
+	 *            the network interface to receive the group's datagrams on
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws IllegalArgumentException
+	 *             if {@code group} is not a multicast address
+	 * @throws UnsupportedOperationException
+	 *             if this socket has more than one shard - each would
+	 *             receive every datagram sent to the group
+	 */
+	public synchronized void joinGroup(InetAddress group, NetworkInterface networkInterface) throws IOException {
+		if (!group.isMulticastAddress())
+			throw new IllegalArgumentException("Not a multicast address: " + group);
+		if (shards.length > 1)
+			throw new UnsupportedOperationException("Multicast is not supported by sharded sockets");
+		if (channel != null) {
+			MembershipKey key = channel.join(group, networkInterface);
+			if (!memberships.contains(key))
+				memberships.add(key);
+		} else
+			((MulticastSocket) socket).joinGroup(new InetSocketAddress(group, 0), networkInterface);
+	}
+
+	/**
+	 * Leaves an IP multicast group joined with
+	 * {@link #joinGroup(InetAddress, NetworkInterface)}. Has no effect if the
+	 * group was not joined on the interface.
+	 * 
+	 * @param group
+	 *            the multicast address of the group
+	 * @param networkInterface
+	 *            the network interface the group was joined on
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public synchronized void leaveGroup(InetAddress group, NetworkInterface networkInterface) throws IOException {
+		if (channel != null) {
+			for (int i = 0; i < memberships.size(); i++) {
+				MembershipKey key = memberships.get(i);
+				if (key.group().equals(group) && key.networkInterface().equals(networkInterface)) {
+					key.drop();
+					memberships.remove(i);
+					return;
+				}
+			}
+			return;
+		}
+		try {
+			((MulticastSocket) socket).leaveGroup(new InetSocketAddress(group, 0), networkInterface);
+		} catch (SocketException e) {
+			// not a member
+		}
+	}
+
+	/**
+	 * Sets the network interface this socket sends multicast datagrams on -
+	 * those of a {@link PeerGroup} with a
+	 * {@link PeerGroup#setMulticastAddress(InetSocketAddress) multicast
+	 * address}. By default the operating system chooses, by its routes.
+	 * 
+	 * @param networkInterface
+	 *            the interface to send multicast datagrams on
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void setMulticastInterface(NetworkInterface networkInterface) throws IOException {
+		if (channel != null)
+			channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+		else
+			((MulticastSocket) socket).setNetworkInterface(networkInterface);
+	}
+
+	/**
+	 * Returns the port number on the local host to which this socket is bound.
+	 * 
+	 * @return the port number on the local host to which this socket is bound,
+	 *         -1 if the socket is closed
+	 * @see java.net.DatagramSocket#getLocalPort()
+	 */
+	public int getPort() {
+		if (channel != null)
+			return channel.socket().getLocalPort();
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Returns the number of distinct peer addresses and ports this socket is
+	 * currently receiving from.
+	 * 
+	 * @return the number of address and port pairs with at least one open
+	 *         {@link SocketPeerConnection}
+	 */
+	public int getPeerCount() {
+		return peers.size();
+	}
+
+	/**
+	 * Sets the executor that distributes received data to the
+	 * {@link ConnectionListener ConnectionListeners} of this socket's peers.
+	 * See {@link Dispatchers} for the provided dispatchers.
+	 * <p>
+	 * Data from each peer is queued in that peer's mailbox and delivered in
+	 * the order it was received. Whenever a peer with no delivery in progress
+	 * receives data, one task is submitted to the dispatcher, which delivers
+	 * that peer's queued data until its mailbox is empty - so a single peer's
+	 * listeners are never called concurrently, while different peers are
+	 * served in parallel.
+	 * <p>
+	 * By default an {@code MPNESocket} uses its own
+	 * {@link Dispatchers#defaultPool() pool}, which is shut down when replaced
+	 * by this method or when the socket is closed. Dispatchers set by this
+	 * method are never shut down by the socket.
+	 * <p>
+	 * If the dispatcher rejects a task (by throwing a
+	 * {@link RejectedExecutionException}) the data queued for the peer is
+	 * discarded and counted as {@link #getDroppedPacketCount() dropped}.
+	 * 
+	 * @param dispatcher
+	 *            the executor to distribute received data on
+	 * @see #setMailboxCapacity(int)
+	 */
+	public synchronized void setDispatcher(Executor dispatcher) {
+		if (dispatcher == null)
+			throw new NullPointerException("dispatcher");
+		this.dispatcher = dispatcher;
+		if (ownedDispatcher != null && ownedDispatcher != dispatcher)
+			ownedDispatcher.shutdown();
+		ownedDispatcher = null;
+	}
+
+	/**
+	 * Sets the maximum number of received packets that may be waiting to be
+	 * distributed to any one peer. Further packets from that peer are
+	 * discarded until its listeners catch up. Defaults to 1024.
+	 * 
+	 * @param capacity
+	 *            the maximum number of packets queued per peer
+	 * @throws IllegalArgumentException
+	 *             if {@code capacity} is less than 1
+	 * @see #getDroppedPacketCount()
+	 */
+	public void setMailboxCapacity(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		mailboxCapacity = capacity;
+	}
+
+	/**
+	 * Sets the size of the largest datagram this socket sends to any peer.
+	 * Larger messages are sent to peers in fragments of this size. Unless a
+	 * {@link #setMaxReceivedDatagramSize(int) receive size} is set, datagrams
+	 * of this size are received too.
+	 * <p>
+	 * By default peers with IPv4 addresses are sent datagrams of up to
+	 * {@link #IPV4_DATAGRAM_SIZE} bytes, and those with IPv6 addresses up to
+	 * {@link #IPV6_DATAGRAM_SIZE} - sizes that no common path fragments at
+	 * the IP level, whatever this host's own interfaces support.
+	 * 
+	 * @param size
+	 *            the maximum datagram size in bytes, up to
+	 *            {@link #MAX_DATAGRAM_SIZE}, or 0 to restore the defaults
+	 * @throws IllegalArgumentException
+	 *             if {@code size} is negative or greater than
+	 *             {@code MAX_DATAGRAM_SIZE}
+	 */
+	public void setMaxDatagramSize(int size) {
+		if (size < 0 || size > MAX_DATAGRAM_SIZE)
+			throw new IllegalArgumentException("size must be between 0 and " + MAX_DATAGRAM_SIZE + ": " + size);
+		maxDatagramSize = size;
+		resizeBufferPool();
+	}
+
+	/**
+	 * Returns the size of the largest datagram this socket sends to any
+	 * peer.
+	 * 
+	 * @return the maximum datagram size in bytes, 0 if peers are sent
+	 *         datagrams of the default size for their address
+	 * @see #setMaxDatagramSize(int)
+	 */
+	public int getMaxDatagramSize() {
+		return maxDatagramSize;
+	}
+
+	/**
+	 * Returns the size of the largest datagram this socket sends to a peer
+	 * with the specified address.
+	 * 
+	 * @param address
+	 *            the address of the peer
+	 * @return the {@link #setMaxDatagramSize(int) maximum datagram size} if
+	 *         one is set, otherwise the default for the address's family
+	 */
+	public int getMaxDatagramSize(InetAddress address) {
+		int size = maxDatagramSize;
+		if (size != 0)
+			return size;
+		return address instanceof Inet6Address ? IPV6_DATAGRAM_SIZE : IPV4_DATAGRAM_SIZE;
+	}
+
+	/**
+	 * Sets the size of the largest datagram this socket can receive. Larger
+	 * datagrams are truncated by the operating system - they are discarded
+	 * and counted by {@link #getTruncatedPacketCount()} rather than delivered
+	 * incomplete. A receive already waiting for data when the size is changed
+	 * still uses the previous size.
+	 * <p>
+	 * Every datagram is received into, and waits in its peer's mailbox in, a
+	 * buffer of this size, so the size bounds the memory each waiting
+	 * datagram holds. By default it is the
+	 * {@link #setMaxDatagramSize(int) maximum datagram size} this socket
+	 * sends, or {@link #IPV4_DATAGRAM_SIZE} if that is not set - enough for
+	 * peers sending datagrams of their own default size. Set it to
+	 * {@link #MAX_DATAGRAM_SIZE} to receive datagrams of any size, at the
+	 * cost of 64 KiB per buffer.
+	 * 
+	 * @param size
+	 *            the maximum received datagram size in bytes, up to
+	 *            {@link #MAX_DATAGRAM_SIZE}, or 0 to restore the default
+	 * @throws IllegalArgumentException
+	 *             if {@code size} is negative or greater than
+	 *             {@code MAX_DATAGRAM_SIZE}
+	 */
+	public void setMaxReceivedDatagramSize(int size) {
+		if (size < 0 || size > MAX_DATAGRAM_SIZE)
+			throw new IllegalArgumentException("size must be between 0 and " + MAX_DATAGRAM_SIZE + ": " + size);
+		maxReceivedDatagramSize = size;
+		resizeBufferPool();
+	}
+
+	/**
+	 * Returns the size of the largest datagram this socket can receive.
+	 * 
+	 * @return the maximum received datagram size in bytes
+	 * @see #setMaxReceivedDatagramSize(int)
+	 */
+	public int getMaxReceivedDatagramSize() {
+		int size = maxReceivedDatagramSize;
+		if (size != 0)
+			return size;
+		return Math.max(maxDatagramSize, IPV4_DATAGRAM_SIZE);
+	}
+
+	/**
+	 * Replaces the {@link #bufferPool} if its buffers no longer fit the
+	 * {@link #getMaxReceivedDatagramSize() receive size}.
+	 */
+	private synchronized void resizeBufferPool() {
+		int size = getMaxReceivedDatagramSize() + 1;
+		BufferPool pool = bufferPool;
+		if (pool.getBufferSize() != size)
+			bufferPool = new BufferPool(BUFFER_POOL_CAPACITY, size, pool.isDirect());
+	}
+
+	/**
+	 * Returns the number of received datagrams that were discarded because
+	 * they were larger than the {@link #getMaxReceivedDatagramSize() maximum
+	 * received datagram size}.
+	 * 
+	 * @return the number of truncated datagrams since this socket was
+	 *         constructed
+	 * @see #setMaxReceivedDatagramSize(int)
+	 */
+	public long getTruncatedPacketCount() {
+		return truncatedPackets.sum();
+	}
+
+	/**
+	 * Sets the size of the operating system's buffer of datagrams received by
+	 * this socket but not yet read - on every channel, if this socket has
+	 * several. Datagrams arriving while the buffer is full are lost. The
+	 * default, set by the operating system, is often only a few hundred
+	 * datagrams - less than the fragments of a single large message - so a
+	 * socket receiving large messages from unpaced peers should enlarge it.
+	 * The operating system may limit the size.
+	 * 
+	 * @param size
+	 *            the buffer size in bytes
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws IllegalArgumentException
+	 *             if {@code size} is less than 1
+	 * @see SocketPeerConnection#setPacingRate(long, int)
+	 */
+	public void setReceiveBufferSize(int size) throws IOException {
+		if (size < 1)
+			throw new IllegalArgumentException("size must be positive: " + size);
+		if (socket != null)
+			socket.setReceiveBufferSize(size);
+		for (DatagramChannel shard : shards)
+			shard.setOption(StandardSocketOptions.SO_RCVBUF, size);
+	}
+
+	/**
+	 * Returns the size of the operating system's buffer of datagrams received
+	 * by this socket but not yet read.
+	 * 
+	 * @return the buffer size in bytes
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @see #setReceiveBufferSize(int)
+	 */
+	public int getReceiveBufferSize() throws IOException {
+		if (socket != null)
+			return socket.getReceiveBufferSize();
+		return channel.getOption(StandardSocketOptions.SO_RCVBUF);
+	}
+
+	/**
+	 * Sets the size of the largest message this socket reassembles from
+	 * fragments. Messages larger than the
+	 * {@link #setMaxDatagramSize(int) maximum datagram size} are sent as
+	 * several datagrams and reassembled by the receiving socket, which
+	 * discards any message larger than this size without storing its
+	 * fragments. Sending is not limited by this size. Defaults to 1 MiB.
+	 * 
+	 * @param size
+	 *            the maximum message size in bytes, up to
+	 *            {@link #MAX_MESSAGE_SIZE}
+	 * @throws IllegalArgumentException
+	 *             if {@code size} is less than 1 or greater than
+	 *             {@code MAX_MESSAGE_SIZE}
+	 */
+	public void setMaxMessageSize(int size) {
+		if (size < 1 || size > MAX_MESSAGE_SIZE)
+			throw new IllegalArgumentException("size must be between 1 and " + MAX_MESSAGE_SIZE + ": " + size);
+		maxMessageSize = size;
+	}
+
+	/**
+	 * Returns the size of the largest message this socket reassembles from
+	 * fragments.
+	 * 
+	 * @return the maximum message size in bytes
+	 * @see #setMaxMessageSize(int)
+	 */
+	public int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * Sets how long this socket waits for the remaining fragments of a
+	 * message once its first fragment arrives. A message still incomplete
+	 * after the timeout - because one of its datagrams was lost - is
+	 * discarded and counted by {@link #getIncompleteMessageCount()}.
+	 * Defaults to 5 seconds.
+	 * 
+	 * @param timeout
+	 *            the reassembly timeout
+	 * @param unit
+	 *            the unit of {@code timeout}
+	 * @throws IllegalArgumentException
+	 *             if {@code timeout} is not positive
+	 */
+	public void setReassemblyTimeout(long timeout, TimeUnit unit) {
+		if (timeout <= 0)
+			throw new IllegalArgumentException("timeout must be positive: " + timeout);
+		reassemblyTimeout = unit.toNanos(timeout);
+	}
+
+	/**
+	 * Returns how long this socket waits for the remaining fragments of a
+	 * message.
+	 * 
+	 * @param unit
+	 *            the unit of the returned timeout
+	 * @return the reassembly timeout
+	 * @see #setReassemblyTimeout(long, TimeUnit)
+	 */
+	public long getReassemblyTimeout(TimeUnit unit) {
+		return unit.convert(reassemblyTimeout, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Returns the number of fragmented messages that were discarded before
+	 * all of their fragments were received - because they timed out, or
+	 * because too many of the peer's messages were being reassembled at once.
+	 * 
+	 * @return the number of incomplete messages since this socket was
+	 *         constructed
+	 * @see #setReassemblyTimeout(long, TimeUnit)
+	 */
+	public long getIncompleteMessageCount() {
+		return incompleteMessages.sum();
+	}
+
+	/**
+	 * Returns the pools for {@link #messagePools}, each keeping up to 4 heap
+	 * buffers.
+	 */
+	private static BufferPool[] newMessagePools() {
+		BufferPool[] pools = new BufferPool[31 - MIN_MESSAGE_BUFFER_BITS];
+		for (int i = 0; i < pools.length; i++)
+			pools[i] = new BufferPool(4, 1 << (MIN_MESSAGE_BUFFER_BITS + i), false);
+		return pools;
+	}
+
+	/**
+	 * Leases a buffer to reassemble a message into, from the pool of the
+	 * smallest buffers large enough.
+	 * 
+	 * @param length
+	 *            the length of the message, up to {@link #MAX_MESSAGE_SIZE}
+	 * @return an empty packet, leased to the caller
+	 */
+	ReceivedPacket acquireMessageBuffer(int length) {
+		int bits = 32 - Integer.numberOfLeadingZeros(length - 1);
+		return messagePools[Math.max(bits - MIN_MESSAGE_BUFFER_BITS, 0)].acquire();
+	}
+
+	/**
+	 * Counts a fragmented message discarded before it was complete.
+	 */
+	void messageIncomplete() {
+		incompleteMessages.increment();
+	}
+
+	/**
+	 * Returns the id of the next message this socket sends in fragments.
+	 * Counted per socket rather than per peer, so that the ids of messages
+	 * sent to a peer alone and to a {@link PeerGroup} it belongs to never
+	 * coincide.
+	 * 
+	 * @return the message id
+	 */
+	int nextFragmentId() {
+		return fragmentIds.getAndIncrement();
+	}
+
+	/**
+	 * Registers a codec to decompress the messages this socket receives that
+	 * were compressed with its id. Registering the codec already registered
+	 * under its id has no effect. Called by
+	 * {@link SocketPeerConnection#setCompression(byte[], PayloadCodec)} for
+	 * the codecs this socket sends with, so only sockets that receive
+	 * compressed messages without sending them need to call it.
+	 * <p>
+	 * Compressed messages whose codec is not registered are discarded.
+	 * 
+	 * @param codec
+	 *            the codec to register
+	 * @throws IllegalArgumentException
+	 *             if the codec's id is not between 1 and 255
+	 * @throws IllegalStateException
+	 *             if a different codec is registered under the same id
+	 */
+	public void registerCodec(PayloadCodec codec) {
+		int id = codec.getId();
+		if (id < 1 || id > 255)
+			throw new IllegalArgumentException("Codec id must be between 1 and 255: " + id);
+		if (!codecs.compareAndSet(id, null, codec) && codecs.get(id) != codec)
+			throw new IllegalStateException("Another codec is registered with id " + id);
+	}
+
+	/**
+	 * Unregisters a codec, so that the messages received compressed with its
+	 * id are discarded. Has no effect if the codec is not registered.
+	 * 
+	 * @param codec
+	 *            the codec to unregister
+	 */
+	public void unregisterCodec(PayloadCodec codec) {
+		int id = codec.getId();
+		if (id >= 1 && id <= 255)
+			codecs.compareAndSet(id, codec, null);
+	}
+
+	/**
+	 * Decompresses a message - the content of a {@link Frames#COMPRESSED}
+	 * frame: its codec id, length and compressed bytes - into a buffer leased
+	 * from the {@link #messagePools}.
+	 * 
+	 * @param p
+	 *            the packet holding the compressed message
+	 * @param offset
+	 *            the index of the codec id in the packet
+	 * @param end
+	 *            the index after the compressed bytes
+	 * @return the message, starting at index 0 of a packet leased to the
+	 *         caller to release, or {@code null} if its codec is not
+	 *         registered, it is malformed, or it is larger than the
+	 *         {@link #setMaxMessageSize(int) maximum message size}
+	 */
+	private ReceivedPacket decompress(ReceivedPacket p, int offset, int end) {
+		if (end - offset < 2)
+			return null;
+		PayloadCodec codec = codecs.get(p.get(offset++) & 0xFF);
+		if (codec == null)
+			return null;
+		int length = 0;
+		for (int shift = 0;; shift += 7) {
+			if (offset == end || shift > 28)
+				return null;
+			byte b = p.get(offset++);
+			length |= (b & 0x7F) << shift;
+			if (b >= 0)
+				break;
+		}
+		if (length <= 0 || length > maxMessageSize)
+			return null;
+		ReceivedPacket message = acquireMessageBuffer(length);
+		ByteBuffer out = message.buffer;
+		out.clear();
+		out.limit(length);
+		boolean decompressed;
+		try {
+			decompressed = codec.decompress(p.view(offset, end - offset), out);
+		} catch (RuntimeException e) {
+			decompressed = false;
+		}
+		if (!decompressed) {
+			message.release();
+			return null;
+		}
+		message.length = length;
+		message.receivedAt = p.receivedAt;
+		return message;
+	}
+
+	/**
+	 * Sets how long the sending thread waits for further messages queued by
+	 * {@link SocketPeerConnection#sendAsync(byte[])} before sending a
+	 * datagram that is not yet full. A longer delay coalesces more messages
+	 * into each datagram at the cost of latency. Defaults to 0 - messages are
+	 * sent as soon as the queue is empty, coalescing only the messages that
+	 * were queued while the previous ones were sent.
+	 * 
+	 * @param delay
+	 *            the maximum time to hold a partial datagram
+	 * @param unit
+	 *            the unit of {@code delay}
+	 */
+	public void setSendCoalescingDelay(long delay, TimeUnit unit) {
+		if (delay < 0)
+			throw new IllegalArgumentException("delay must not be negative: " + delay);
+		sendCoalescingDelay = unit.toNanos(delay);
+	}
+
+	/**
+	 * Sets the listener notified when the number of messages queued by
+	 * {@link SocketPeerConnection#sendAsync(byte[])} reaches
+	 * {@code highWaterMark}, and again when it falls to half of it.
+	 * Applications can use this to stop producing messages until the queue
+	 * drains.
+	 * 
+	 * @param listener
+	 *            the listener to notify, {@code null} for none
+	 * @param highWaterMark
+	 *            the number of queued messages at which {@code listener} is
+	 *            notified
+	 * @throws IllegalArgumentException
+	 *             if {@code highWaterMark} is less than 1
+	 */
+	public void setSendQueueListener(SendQueueListener listener, int highWaterMark) {
+		if (highWaterMark < 1)
+			throw new IllegalArgumentException("highWaterMark must be positive: " + highWaterMark);
+		sendQueueHighWaterMark = highWaterMark;
+		sendQueueListener = listener;
+	}
+
+	/**
+	 * Returns the number of messages queued by
+	 * {@link SocketPeerConnection#sendAsync(byte[])} that have not yet been
+	 * sent.
+	 * 
+	 * @return the depth of the outbound queue
+	 */
+	public int getSendQueueDepth() {
+		return outboundDepth.get();
+	}
+
+	/**
+	 * Returns the pool of buffers this socket receives data into, for
+	 * monitoring its size and hit rate. The pool is replaced, and its
+	 * statistics start again, when the
+	 * {@link #setMaxReceivedDatagramSize(int) receive size} changes.
+	 * 
+	 * @return this socket's buffer pool
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Sets the maximum number of datagrams received in one batch by a socket
+	 * constructed on an {@link MPNEEventLoop}. Whenever the channel has data,
+	 * every available datagram up to this limit is received before any are
+	 * distributed, and each peer that received data is then submitted to the
+	 * dispatcher once for the whole batch. Larger batches reduce the cost per
+	 * datagram at high data rates, at the expense of other sockets on the same
+	 * loop waiting longer. A batch size of 1 receives one datagram at a time.
+	 * Defaults to 64.
+	 * <p>
+	 * Sockets with their own receiving thread always receive one datagram at
+	 * a time.
+	 * 
+	 * @param size
+	 *            the maximum number of datagrams per batch
+	 * @throws IllegalArgumentException
+	 *             if {@code size} is less than 1
+	 */
+	public void setReceiveBatchSize(int size) {
+		if (size < 1)
+			throw new IllegalArgumentException("size must be positive: " + size);
+		receiveBatchSize = size;
+	}
+
+	/**
+	 * Returns the number of datagrams this socket discarded rather than sent
+	 * because the operating system's send buffer was full. Only sockets
+	 * served by {@link MPNEEventLoop event loops}, whose channels never block,
+	 * discard datagrams - others wait for room in the buffer.
+	 * 
+	 * @return the number of unsent datagrams since this socket was
+	 *         constructed
+	 */
+	public long getUnsentDatagramCount() {
+		return unsentDatagrams.sum();
+	}
+
+	/**
+	 * Returns the number of received packets that were discarded because
+	 * their peer's mailbox was full, or the {@link #setDispatcher(Executor)
+	 * dispatcher} rejected the task to deliver them.
+	 * 
+	 * @return the number of discarded packets since this socket was
+	 *         constructed
+	 * @see #setMailboxCapacity(int)
+	 */
+	public long getDroppedPacketCount() {
+		return droppedPackets.sum();
+	}
+
+	/**
+	 * Sets the callback offered data from senders this socket has no
+	 * {@link SocketPeerConnection} for. The acceptor may construct a peer for
+	 * the sender, which then receives the data; otherwise the data is
+	 * discarded, and the sender's data is discarded without consulting the
+	 * acceptor again for one second.
+	 * <p>
+	 * Without an acceptor, which is the default, data from unknown senders is
+	 * discarded. Either way, discarded data is counted by
+	 * {@link MPNEMetrics#getUnknownPeerPackets()}.
+	 * 
+	 * @param acceptor
+	 *            the acceptor, or {@code null} to accept no unknown senders
+	 */
+	public void setPeerAcceptor(PeerAcceptor acceptor) {
+		peerAcceptor = acceptor;
+		// senders rejected by the previous acceptor may be accepted now
+		for (int i = 0; i < REJECTED_SENDERS; i++)
+			rejectedSenders.set(i, 0);
+	}
+
+	/**
+	 * Returns a snapshot of this socket's activity since it was constructed.
+	 * 
+	 * @return the current metrics
+	 */
+	public MPNEMetrics getMetrics() {
+		HashMap<HeaderKey, LatencyHistogram> times = new HashMap<HeaderKey, LatencyHistogram>();
+		for (Map.Entry<HeaderKey, LatencyHistogram> e : listenerTimes.entrySet())
+			times.put(e.getKey(), e.getValue().snapshot());
+		return new MPNEMetrics(datagramsReceived.sum(), bytesReceived.sum(), datagramsSent.sum(), bytesSent.sum(),
+				unknownPeerPackets.sum(), truncatedPackets.sum(), droppedPackets.sum(), incompleteMessages.sum(),
+				dispatchQueueDepth.sum(), bufferPool.getHits(), bufferPool.getMisses(), receiveLatency.snapshot(),
+				times);
+	}
+
+	/**
+	 * Registers this socket with the platform MBean server, so that its
+	 * {@link #getMetrics() metrics} can be watched with JMX tools such as
+	 * JConsole. The socket is registered under
+	 * {@code com.gmail.cmorley191.mpne:type=MPNESocket,port=}<i>port</i> and
+	 * unregistered when closed.
+	 * 
+	 * @return the name the socket is registered under
+	 * @throws JMException
+	 *             if the socket cannot be registered, for example because
+	 *             another socket is registered under the same name
+	 * @see MPNESocketMXBean
+	 */
+	public synchronized ObjectName registerMBean() throws JMException {
+		if (mbeanName == null) {
+			ObjectName name = new ObjectName("com.gmail.cmorley191.mpne:type=MPNESocket,port=" + getPort());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new Management(), name);
+			mbeanName = name;
+		}
+		return mbeanName;
+	}
+
+	/**
+	 * Unregisters this socket from the platform MBean server, if registered.
+	 */
+	private synchronized void unregisterMBean() {
+		if (mbeanName == null)
+			return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.unregisterMBean(mbeanName);
+		} catch (JMException e) {
+			// already unregistered by someone else
+		}
+		mbeanName = null;
+	}
+
+	/**
+	 * The JMX view of this socket. See {@link #registerMBean()}.
+	 * 
+	 * @author Charlie Morley
+	 *
+	 */
+	private final class Management implements MPNESocketMXBean {
+
+		@Override
+		public int getPort() {
+			return MPNESocket.this.getPort();
+		}
+
+		@Override
+		public int getPeerCount() {
+			return MPNESocket.this.getPeerCount();
+		}
+
+		@Override
+		public long getDatagramsReceived() {
+			return datagramsReceived.sum();
+		}
+
+		@Override
+		public long getBytesReceived() {
+			return bytesReceived.sum();
+		}
+
+		@Override
+		public long getDatagramsSent() {
+			return datagramsSent.sum();
+		}
+
+		@Override
+		public long getBytesSent() {
+			return bytesSent.sum();
+		}
+
+		@Override
+		public long getUnknownPeerPackets() {
+			return unknownPeerPackets.sum();
+		}
+
+		@Override
+		public long getTruncatedPackets() {
+			return truncatedPackets.sum();
+		}
+
+		@Override
+		public long getDroppedPackets() {
+			return droppedPackets.sum();
+		}
+
+		@Override
+		public long getIncompleteMessages() {
+			return incompleteMessages.sum();
+		}
+
+		@Override
+		public long getDispatchQueueDepth() {
+			return dispatchQueueDepth.sum();
+		}
+
+		@Override
+		public int getSendQueueDepth() {
+			return MPNESocket.this.getSendQueueDepth();
+		}
+
+		@Override
+		public double getBufferPoolHitRate() {
+			return bufferPool.getHitRate();
+		}
+
+		@Override
+		public double getReceiveLatencyMean() {
+			return receiveLatency.getMean();
+		}
+
+		@Override
+		public long getReceiveLatency50thPercentile() {
+			return receiveLatency.getValueAtPercentile(50);
+		}
+
+		@Override
+		public long getReceiveLatency99thPercentile() {
+			return receiveLatency.getValueAtPercentile(99);
+		}
+
+		@Override
+		public long getReceiveLatencyMax() {
+			return receiveLatency.getMax();
+		}
+
+		@Override
+		public Map<String, Long> getListenerTime99thPercentiles() {
+			TreeMap<String, Long> percentiles = new TreeMap<String, Long>();
+			for (Map.Entry<HeaderKey, LatencyHistogram> e : listenerTimes.entrySet())
+				percentiles.put(e.getKey().toString(), e.getValue().getValueAtPercentile(99));
+			return percentiles;
+		}
+	}
+
+	/**
+	 * Closes the socket. Causes any current and further receiving or sending
+	 * attempts over the socket to throw an exception. This {@code MPNESocket's}
+	 * inner threads are shut down.
+	 */
+	public void close() {
+		closed = true;
+		synchronized (this) {
+			if (sendingThread != null)
+				sendingThread.interrupt();
+		}
+		if (channel != null) {
+			for (DatagramChannel shard : shards)
+				try {
+					shard.close();
+				} catch (IOException e) {
+					// the channel is unusable either way
+				}
+			for (MPNEEventLoop loop : ownedEventLoops)
+				loop.close();
+		} else {
+			receivingThread.running = false;
+			socket.close();
+		}
+		synchronized (this) {
+			if (ownedDispatcher != null)
+				ownedDispatcher.shutdown();
+		}
+		timerWheel.close();
+		if (timerLoop != null)
+			timerLoop.removeTimerWheel(timerWheel);
+		unregisterMBean();
+	}
 
 	/**
 	 * A peer connection over a network socket, specifically a
@@ -162,18 +2151,126 @@ public final class MPNESocket {
 	 * @author Charlie Morley
 	 *
 	 */
-	public final class SocketPeerConnection implements PeerConnection, Comparable<SocketPeerConnection> {
+	public final class SocketPeerConnection extends MessageSender implements PeerConnection, Comparable<SocketPeerConnection> {
+
+		/**
+		 * The address and port of this peer.
+		 */
+		private final InetSocketAddress target;
+
+		/**
+		 * The messages queued by {@link #sendAsync(byte[])} that the sending
+		 * thread is coalescing. Only accessed by the sending thread.
+		 */
+		private final ArrayList<ByteBuffer> asyncMessages = new ArrayList<ByteBuffer>();
+
+		/**
+		 * The futures of the {@link #asyncMessages}.
+		 */
+		private final ArrayList<CompletableFuture<Void>> asyncFutures = new ArrayList<CompletableFuture<Void>>();
+
+		/**
+		 * The number of bytes the {@link #asyncMessages} occupy in a bundle.
+		 */
+		private int asyncBytes;
 
 		/**
-		 * The reused packet for sending data to this peer.
+		 * Whether this peer is in the sending thread's list of waiting peers.
+		 * Only accessed by the sending thread.
 		 */
-		private final DatagramPacket sendPacket;
+		private boolean asyncWaiting;
 
 		/**
 		 * The mapping of data headers to the set of {@code ConnectionListeners}
-		 * that are listening for those headers from this peer.
+		 * that are listening for those headers from this peer. Only accessed
+		 * while synchronized on this peer.
 		 */
-		private final HashMap<byte[], ArrayList<ConnectionListener>> receiveListeners = new HashMap<byte[], ArrayList<ConnectionListener>>();
+		private final HashMap<HeaderKey, ArrayList<ConnectionListener>> receiveListeners = new HashMap<HeaderKey, ArrayList<ConnectionListener>>();
+
+		/**
+		 * The mapping of data headers to the set of
+		 * {@code ConnectionBufferListeners} that are listening for those
+		 * headers from this peer. Only accessed while synchronized on this
+		 * peer.
+		 */
+		private final HashMap<HeaderKey, ArrayList<ConnectionBufferListener>> receiveBufferListeners = new HashMap<HeaderKey, ArrayList<ConnectionBufferListener>>();
+
+		/**
+		 * The headers of {@link #receiveListeners} and
+		 * {@link #receiveBufferListeners} arranged as a trie, used to route
+		 * received data in one pass. Never modified - a new trie is published
+		 * whenever the listeners change, so received data is routed without
+		 * locking this peer.
+		 */
+		private volatile HeaderTrie<HeaderRoute> routes = new HeaderTrie<HeaderRoute>();
+
+		/**
+		 * The open {@link ReliableChannel ReliableChannels} of this peer. Never
+		 * modified - a new array replaces the old one when channels open or
+		 * close.
+		 */
+		private volatile ReliableChannel[] channels = new ReliableChannel[0];
+
+		/**
+		 * The open {@link SnapshotChannel SnapshotChannels} of this peer.
+		 * Never modified - a new array replaces the old one when channels
+		 * open or close.
+		 */
+		private volatile SnapshotChannel[] snapshotChannels = new SnapshotChannel[0];
+
+		/**
+		 * The pacer limiting the rate of datagrams sent to this peer.
+		 */
+		private final SendPacer pacer = new SendPacer(this);
+
+		/**
+		 * The congestion controller of this peer's reliable channels,
+		 * {@code null} if congestion control is disabled. See
+		 * {@link #setCongestionControl(boolean)}.
+		 */
+		volatile CongestionController congestion;
+
+		/**
+		 * The reassembler of the messages this peer receives in fragments.
+		 */
+		private final Reassembler reassembler = new Reassembler(this);
+
+		/**
+		 * The queue of received data waiting to be distributed to this peer's
+		 * listeners.
+		 */
+		private final PacketMailbox mailbox = new PacketMailbox();
+
+		/**
+		 * The task submitted to the dispatcher to empty the {@link #mailbox}.
+		 */
+		private final Runnable mailboxDrainer = new Runnable() {
+
+			@Override
+			public void run() {
+				while (true) {
+					ReceivedPacket packet;
+					while ((packet = mailbox.poll()) != null)
+						try {
+							dispatchQueueDepth.decrement();
+							packetReceived(packet);
+						} finally {
+							packet.release();
+						}
+					if (!mailbox.isEmpty())
+						continue;
+					for (ReliableChannel channel : channels)
+						channel.flushAck();
+					for (SnapshotChannel channel : snapshotChannels)
+						channel.flushAck();
+					mailbox.unschedule();
+					// data queued after the last poll but before unscheduling
+					// would otherwise wait for the next packet
+					if (mailbox.isEmpty() || !mailbox.schedule())
+						return;
+				}
+			}
+		};
 
 		/**
 		 * Constructs a new peer connection from the socket with the specified
@@ -187,10 +2284,22 @@ public final class MPNESocket {
 		 *            the port used at {@code address}
 		 */
 		public SocketPeerConnection(InetAddress address, int port) {
-			sendPacket = new DatagramPacket(new byte[0], 0, address, port);
-			synchronized (peers) {
-				peers.add(this);
-			}
+			target = new InetSocketAddress(address, port);
+			peers.add(this);
+		}
+
+		/**
+		 * Stops receiving data from this peer's address and port. Data already
+		 * being distributed to this peer's listeners is unaffected. Sending to
+		 * this peer is still possible after closing.
+		 * <p>
+		 * Other {@code SocketPeerConnections} with the same address and port
+		 * continue receiving.
+		 * 
+		 * @return {@code true} if this peer was receiving before the call
+		 */
+		public boolean close() {
+			return peers.remove(this);
 		}
 
 		/**
@@ -200,7 +2309,7 @@ public final class MPNESocket {
 		 *         {@link #send(byte[])} and from which data is received
 		 */
 		public InetAddress getAddress() {
-			return sendPacket.getAddress();
+			return target.getAddress();
 		}
 
 		/**
@@ -211,7 +2320,7 @@ public final class MPNESocket {
 		 *         this peer
 		 */
 		public int getPort() {
-			return sendPacket.getPort();
+			return target.getPort();
 		}
 
 		/**
@@ -220,27 +2329,579 @@ public final class MPNESocket {
 		 * This {@code SocketPeerConnection} sends the data via the socket
 		 * associated with its {@code MPNESocket}. If the socket has been closed
 		 * via {@link MPNESocket#close()}, an exception will be thrown.
+		 * <p>
+		 * Sending does not lock this peer - any number of threads may send to
+		 * the same peer at once, each building its datagram in its own buffer
+		 * - unless the peer is {@link #setPacingRate(long, int) paced}.
+		 * <p>
+		 * Data larger than the {@link MPNESocket#getMaxDatagramSize(InetAddress)
+		 * maximum datagram size} is split into fragments of that size, each sent in
+		 * its own datagram with 16 bytes of overhead, and reassembled by the
+		 * receiving {@code MPNESocket} - up to its
+		 * {@link MPNESocket#setMaxMessageSize(int) maximum message size}. If
+		 * any fragment is lost the whole message is lost - so large messages
+		 * are best sent to a {@link #setPacingRate(long, int) paced} peer, or
+		 * to a socket with a large enough
+		 * {@link MPNESocket#setReceiveBufferSize(int) receive buffer} for all
+		 * their fragments.
+		 */
+		@Override
+		public void send(byte[] data) throws IOException {
+			sendMessage(ByteBuffer.wrap(data));
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * <p>
+		 * This {@code SocketPeerConnection} queues the data in its
+		 * {@code MPNESocket}'s outbound queue. The socket's sending thread
+		 * coalesces queued messages to the same peer into as few datagrams as
+		 * possible, as {@link #sendBatch(List)} does - see
+		 * {@link MPNESocket#setSendCoalescingDelay(long, TimeUnit)} and
+		 * {@link MPNESocket#setSendQueueListener(SendQueueListener, int)}.
+		 * Messages to the same peer are sent in the order they were queued.
+		 */
+		@Override
+		public CompletableFuture<Void> sendAsync(byte[] data) {
+			CompletableFuture<Void> future = new CompletableFuture<Void>();
+			queueSend(new OutboundMessage(this, ByteBuffer.wrap(data), future));
+			return future;
+		}
+
+		/**
+		 * Sends the remaining bytes of the specified buffers, in order, to
+		 * this peer as a single message - a gathering equivalent of
+		 * {@link #send(byte[])}. The buffers' positions are unchanged.
+		 * 
+		 * @param data
+		 *            the buffers making up the message
+		 * @throws IOException
+		 *             if an I/O error occurs
+		 */
+		public void send(ByteBuffer... data) throws IOException {
+			sendGathered(data);
+		}
+
+		/**
+		 * Sends each of the specified messages to this peer, coalescing as
+		 * many consecutive messages into each datagram as fit within the
+		 * {@link MPNESocket#getMaxDatagramSize(InetAddress) maximum datagram
+		 * size}. Each
+		 * coalesced message has 2 bytes of overhead, plus 3 bytes per datagram.
+		 * <p>
+		 * The receiving {@code MPNESocket} separates the messages again, so
+		 * its listeners receive each message individually, in order - just as
+		 * if each had been sent with {@link #send(ByteBuffer...)}. A message
+		 * too large to share a datagram is sent in a datagram of its own, or
+		 * in fragments if it is larger than a datagram. So is a message with a
+		 * {@link #setCompression(byte[], PayloadCodec) codec}, once compressed.
+		 * <p>
+		 * The buffers' positions are unchanged. Messages sent concurrently by
+		 * other threads may be sent between this batch's datagrams.
+		 * 
+		 * @param messages
+		 *            the messages to send, each as the remaining bytes of a
+		 *            buffer
+		 * @return the number of datagrams sent
+		 * @throws IOException
+		 *             if an I/O error occurs
+		 */
+		public int sendBatch(List<ByteBuffer> messages) throws IOException {
+			return sendBundled(messages);
+		}
+
+		/**
+		 * Returns the calling thread's buffer for building a datagram to this
+		 * peer, cleared.
+		 * 
+		 * @param capacity
+		 *            the minimum capacity of the buffer
+		 * @return the thread's send buffer
+		 */
+		ByteBuffer frameBuffer(int capacity) {
+			return sendBuffer(capacity);
+		}
+
+		/**
+		 * Sends the remaining bytes of the buffer to this peer as one
+		 * datagram, through the {@link #pacer} if this peer is paced. The
+		 * buffer's position is unchanged.
+		 * 
+		 * @param datagram
+		 *            the datagram to send
+		 * @throws IOException
+		 *             if an I/O error occurs, or the pacer's queue is full
 		 */
 		@Override
-		public synchronized void send(byte[] data) throws IOException {
-			sendPacket.setData(data);
-			socket.send(sendPacket);
+		void transmit(ByteBuffer datagram) throws IOException {
+			if (pacer.isEnabled())
+				pacer.send(datagram);
+			else
+				transmitNow(datagram);
+		}
+
+		/**
+		 * Sends the remaining bytes of the buffer to this peer as one datagram
+		 * without pacing. The buffer's position is unchanged.
+		 * 
+		 * @param datagram
+		 *            the datagram to send
+		 * @throws IOException
+		 *             if an I/O error occurs
+		 */
+		void transmitNow(ByteBuffer datagram) throws IOException {
+			sendTo(datagram, target);
 		}
 
 		/**
 		 * Called by the {@code MPNESocket} when it receives a packet from this
-		 * peers address and port - distributes the data to the appropriate
-		 * {@link ConnectionListener ConnectionListeners} added to this peer.
+		 * peer's address and port - queues the packet in this peer's mailbox.
+		 * 
+		 * @param p
+		 *            the packet received from this peer
+		 * @return {@code true} if no delivery was in progress, in which case
+		 *         the caller must {@link #dispatchMailbox()}
+		 */
+		private boolean offer(ReceivedPacket p) {
+			if (!mailbox.offer(p, mailboxCapacity)) {
+				p.release();
+				droppedPackets.increment();
+				return false;
+			}
+			dispatchQueueDepth.increment();
+			return mailbox.schedule();
+		}
+
+		/**
+		 * Submits this peer's mailbox to the dispatcher, after
+		 * {@link #offer(ReceivedPacket)} scheduled it.
+		 */
+		private void dispatchMailbox() {
+			try {
+				dispatcher.execute(mailboxDrainer);
+			} catch (RejectedExecutionException e) {
+				discardMailbox();
+			}
+		}
+
+		/**
+		 * Releases the packets queued in this peer's mailbox, counting each as
+		 * dropped, after the dispatcher rejected the task to deliver them.
+		 * Must be called by the thread that scheduled the mailbox.
+		 */
+		private void discardMailbox() {
+			do {
+				while (!mailbox.isEmpty()) {
+					ReceivedPacket packet = mailbox.poll();
+					if (packet != null) {
+						dispatchQueueDepth.decrement();
+						droppedPackets.increment();
+						packet.release();
+					}
+				}
+				mailbox.unschedule();
+				// as in the mailboxDrainer, data queued before unscheduling
+				// would otherwise stay queued
+			} while (!mailbox.isEmpty() && mailbox.schedule());
+		}
+
+		/**
+		 * Called from this peer's mailbox for each packet received from this
+		 * peer, in the order received - distributes the data to the
+		 * appropriate {@link ConnectionListener ConnectionListeners} and
+		 * {@link ConnectionBufferListener ConnectionBufferListeners} added to
+		 * this peer. Each {@code ConnectionListener} receives its own copy of
+		 * the data, while {@code ConnectionBufferListeners} share the packet's
+		 * buffer; the packet itself is released by the caller.
+		 * <p>
+		 * Package-private so that it can be benchmarked on its own.
 		 * 
 		 * @param p
 		 *            the packet received from this peer
 		 */
-		private synchronized void packetReceived(DatagramPacket p) {
-			byte[] data = Arrays.copyOf(p.getData(), p.getLength());
-			for (byte[] key : receiveListeners.keySet())
-				if (Arrays.equals(key, Arrays.copyOf(data, key.length)))
-					for (ConnectionListener l : receiveListeners.get(key))
-						l.dataReceived(Arrays.copyOf(data, data.length));
+		void packetReceived(ReceivedPacket p) {
+			receiveLatency.record(System.nanoTime() - p.receivedAt);
+			int type = Frames.type(p);
+			if (type == Frames.RELIABLE || type == Frames.RELIABLE_ACK) {
+				if (p.length > Frames.HEADER_LENGTH) {
+					ReliableChannel channel = channel(p.get(Frames.HEADER_LENGTH));
+					if (channel != null)
+						channel.frameReceived(p);
+				}
+				return;
+			}
+			if (type == Frames.SNAPSHOT || type == Frames.SNAPSHOT_ACK) {
+				if (p.length > Frames.HEADER_LENGTH) {
+					SnapshotChannel channel = snapshotChannel(p.get(Frames.HEADER_LENGTH));
+					if (channel != null)
+						channel.frameReceived(p);
+				}
+				return;
+			}
+			if (type == Frames.FRAGMENT || type == Frames.COMPRESSED) {
+				ReceivedPacket message;
+				if (type == Frames.COMPRESSED)
+					message = decompress(p, Frames.HEADER_LENGTH, p.length);
+				else {
+					message = reassembler.fragmentReceived(p);
+					if (message != null && (p.get(Frames.FRAGMENT_OVERHEAD - 1) & Frames.FRAGMENT_COMPRESSED) != 0) {
+						ReceivedPacket compressed = message;
+						message = decompress(compressed, 0, compressed.length);
+						compressed.release();
+					}
+				}
+				if (message != null)
+					try {
+						messageReceived(message, 0, message.length);
+					} finally {
+						message.release();
+					}
+				return;
+			}
+			if (type == Frames.BUNDLE) {
+				int offset = Frames.HEADER_LENGTH;
+				while (offset + Frames.BUNDLE_LENGTH_PREFIX <= p.length) {
+					int length = ((p.get(offset) & 0xFF) << 8) | (p.get(offset + 1) & 0xFF);
+					offset += Frames.BUNDLE_LENGTH_PREFIX;
+					if (offset + length > p.length)
+						break;
+					messageReceived(p, offset, length);
+					offset += length;
+				}
+				return;
+			}
+			messageReceived(p, 0, p.length);
+		}
+
+		/**
+		 * Distributes one message within a received packet to the listeners of
+		 * every header that prefixes it.
+		 * 
+		 * @param p
+		 *            the packet containing the message
+		 * @param offset
+		 *            the index of the message in the packet
+		 * @param length
+		 *            the length of the message
+		 */
+		private void messageReceived(ReceivedPacket p, int offset, int length) {
+			ByteBuffer view = null;
+			HeaderTrie.Node<HeaderRoute> node = routes.root();
+			int i = 0;
+			while (node != null) {
+				if (node.value != null)
+					view = deliver(node.value, p, offset, length, view);
+				node = i < length ? node.child(p.get(offset + i++)) : null;
+			}
+		}
+
+		/**
+		 * Delivers a message to the listeners of the route. An exception
+		 * thrown by a listener is passed to the current thread's uncaught
+		 * exception handler, and does not prevent delivery to other listeners
+		 * or of later data.
+		 * 
+		 * @return the view of the message given to buffer listeners, created
+		 *         from {@code view} if it was {@code null}, for reuse by other
+		 *         routes
+		 */
+		private ByteBuffer deliver(HeaderRoute route, ReceivedPacket p, int offset, int length, ByteBuffer view) {
+			long start = System.nanoTime();
+			for (ConnectionListener l : route.listeners)
+				try {
+					l.dataReceived(p.copy(offset, length));
+				} catch (RuntimeException e) {
+					listenerFailed(e);
+				}
+			for (ConnectionBufferListener l : route.bufferListeners) {
+				if (view == null)
+					view = p.view(offset, length);
+				view.clear();
+				view.limit(length);
+				view.position(route.header.length());
+				try {
+					l.dataReceived(view);
+				} catch (RuntimeException e) {
+					listenerFailed(e);
+				}
+			}
+			route.listenerTime.record(System.nanoTime() - start);
+			return view;
+		}
+
+		/**
+		 * Reports an exception thrown by a listener to the current thread's
+		 * uncaught exception handler.
+		 */
+		private void listenerFailed(RuntimeException e) {
+			Thread thread = Thread.currentThread();
+			thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+		}
+
+		/**
+		 * Publishes the current listeners for the specified header to
+		 * {@link #routes}, discarding the header if it has no listeners left.
+		 */
+		private void updateRoute(HeaderKey header) {
+			ArrayList<ConnectionListener> listeners = receiveListeners.get(header);
+			if (listeners != null && listeners.isEmpty()) {
+				receiveListeners.remove(header);
+				listeners = null;
+			}
+			ArrayList<ConnectionBufferListener> bufferListeners = receiveBufferListeners.get(header);
+			if (bufferListeners != null && bufferListeners.isEmpty()) {
+				receiveBufferListeners.remove(header);
+				bufferListeners = null;
+			}
+			if (listeners == null && bufferListeners == null) {
+				routes = routes.with(header.bytes, null);
+				return;
+			}
+			ConnectionListener[] copied = listeners == null ? new ConnectionListener[0]
+					: listeners.toArray(new ConnectionListener[listeners.size()]);
+			ConnectionBufferListener[] viewed = bufferListeners == null ? new ConnectionBufferListener[0]
+					: bufferListeners.toArray(new ConnectionBufferListener[bufferListeners.size()]);
+			LatencyHistogram time = listenerTimes.get(header);
+			if (time == null) {
+				LatencyHistogram created = new LatencyHistogram();
+				time = listenerTimes.putIfAbsent(header, created);
+				if (time == null)
+					time = created;
+			}
+			routes = routes.with(header.bytes, new HeaderRoute(header, copied, viewed, time));
+		}
+
+		/**
+		 * Limits the rate at which datagrams are sent to this peer. Datagrams
+		 * beyond the rate are queued - up to 1024 of them - and sent by the
+		 * socket's timer as the rate allows, so that a fast sender does not
+		 * overrun the operating system's buffers or the link to the peer.
+		 * While paced, sending to this peer is serialized, and a send or
+		 * {@link #sendAsync(byte[]) asynchronous send} completes once the
+		 * datagram is queued. Datagrams are released at millisecond intervals,
+		 * so each interval's worth may be sent at once whatever the burst.
+		 * 
+		 * @param bytesPerSecond
+		 *            the rate in bytes per second, including framing, or 0 to
+		 *            stop pacing - queued datagrams are then sent immediately
+		 * @param burst
+		 *            the number of bytes that may be sent at once after sending
+		 *            below the rate
+		 * @throws IllegalArgumentException
+		 *             if {@code bytesPerSecond} is negative, or
+		 *             {@code burst} is less than 1
+		 * @throws IllegalStateException
+		 *             if {@link #setCongestionControl(boolean) congestion
+		 *             control} is enabled, which sets the rate itself
+		 */
+		public synchronized void setPacingRate(long bytesPerSecond, int burst) {
+			if (bytesPerSecond < 0)
+				throw new IllegalArgumentException("bytesPerSecond must not be negative: " + bytesPerSecond);
+			if (burst < 1)
+				throw new IllegalArgumentException("burst must be at least 1: " + burst);
+			if (congestion != null)
+				throw new IllegalStateException("Pacing rate is set by congestion control");
+			pacer.setRate(bytesPerSecond, burst);
+		}
+
+		/**
+		 * Returns the rate at which datagrams are sent to this peer - either
+		 * {@link #setPacingRate(long, int) set} or adjusted by congestion
+		 * control.
+		 * 
+		 * @return the rate in bytes per second, 0 if this peer is not paced
+		 */
+		public long getPacingRate() {
+			return pacer.getRate();
+		}
+
+		/**
+		 * Enables or disables congestion control of this peer's
+		 * {@link ReliableChannel ReliableChannels}. While enabled, the number
+		 * of their messages awaiting acknowledgement is limited to a
+		 * congestion window, grown as messages are acknowledged and halved as
+		 * they are lost, as TCP does - and all datagrams to this peer,
+		 * reliable or not, are {@link #setPacingRate(long, int) paced} to send
+		 * the window once per round trip. Disabling congestion control stops
+		 * pacing.
+		 * <p>
+		 * Every loss is taken as a sign of congestion, so on a path losing
+		 * datagrams at random - rather than to full queues - throughput falls
+		 * with the loss rate.
+		 * 
+		 * @param enabled
+		 *            whether to control congestion
+		 */
+		public synchronized void setCongestionControl(boolean enabled) {
+			if (enabled == (congestion != null))
+				return;
+			if (enabled)
+				congestion = new CongestionController(pacer);
+			else {
+				congestion = null;
+				pacer.setRate(0, 1);
+				for (ReliableChannel channel : channels)
+					channel.congestionWindowOpened();
+			}
+		}
+
+		/**
+		 * Compresses the messages sent to this peer that start with the
+		 * specified header with the specified codec - the codec of the longest
+		 * matching header, if several match. The codec is also
+		 * {@link MPNESocket#registerCodec(PayloadCodec) registered} with this
+		 * socket; the receiving socket must register an equivalent codec under
+		 * the same id, or discards the compressed messages.
+		 * <p>
+		 * A compressed message is sent in a datagram of its own, with 5 to 9
+		 * bytes of overhead - or in fragments if it is still larger than a
+		 * datagram, so a large message that compresses well is sent in fewer
+		 * datagrams. Messages that compression would not make smaller are sent
+		 * as they are. Messages of {@link ReliableChannel ReliableChannels}
+		 * and {@link SnapshotChannel SnapshotChannels} are not compressed.
+		 * 
+		 * @param header
+		 *            the header of the messages to compress - empty for every
+		 *            message
+		 * @param codec
+		 *            the codec to compress with, or {@code null} to stop
+		 *            compressing messages with the header
+		 * @throws IllegalStateException
+		 *             if a different codec is registered with this socket
+		 *             under the codec's id
+		 */
+		public synchronized void setCompression(byte[] header, PayloadCodec codec) {
+			putCodec(header, codec);
+		}
+
+		/**
+		 * Returns the congestion window of this peer's reliable channels.
+		 * 
+		 * @return the number of messages that may await acknowledgement, 0 if
+		 *         congestion control is disabled
+		 */
+		public int getCongestionWindow() {
+			CongestionController controller = congestion;
+			return controller == null ? 0 : controller.getWindow();
+		}
+
+		/**
+		 * Offers the room acknowledgements on one of this peer's channels made
+		 * in the congestion window to the others.
+		 */
+		void congestionWindowOpened(ReliableChannel acknowledged) {
+			for (ReliableChannel channel : channels)
+				if (channel != acknowledged)
+					channel.congestionWindowOpened();
+		}
+
+		/**
+		 * Returns the socket this peer sends and receives over.
+		 * 
+		 * @return the peer's socket
+		 */
+		@Override
+		public MPNESocket getSocket() {
+			return MPNESocket.this;
+		}
+
+		@Override
+		int maxDatagramSize() {
+			return getMaxDatagramSize(getAddress());
+		}
+
+		/**
+		 * Returns the open channel with the specified id.
+		 * 
+		 * @param id
+		 *            the channel id
+		 * @return the channel, {@code null} if none is open
+		 */
+		private ReliableChannel channel(byte id) {
+			for (ReliableChannel channel : channels)
+				if (channel.id == id)
+					return channel;
+			return null;
+		}
+
+		/**
+		 * Starts delivering the frames of a new channel to it.
+		 * 
+		 * @param channel
+		 *            the channel to open
+		 * @throws IllegalStateException
+		 *             if a channel with the same id is already open
+		 */
+		synchronized void openChannel(ReliableChannel channel) {
+			if (channel(channel.id) != null)
+				throw new IllegalStateException("Channel " + channel.getId() + " is already open");
+			ReliableChannel[] updated = Arrays.copyOf(channels, channels.length + 1);
+			updated[channels.length] = channel;
+			channels = updated;
+		}
+
+		/**
+		 * Stops delivering frames to a closed channel.
+		 * 
+		 * @param channel
+		 *            the channel to close
+		 */
+		synchronized void closeChannel(ReliableChannel channel) {
+			for (int i = 0; i < channels.length; i++)
+				if (channels[i] == channel) {
+					ReliableChannel[] updated = new ReliableChannel[channels.length - 1];
+					System.arraycopy(channels, 0, updated, 0, i);
+					System.arraycopy(channels, i + 1, updated, i, updated.length - i);
+					channels = updated;
+					return;
+				}
+		}
+
+		/**
+		 * Returns the open snapshot channel with the specified id.
+		 * 
+		 * @param id
+		 *            the channel id
+		 * @return the channel, {@code null} if none is open
+		 */
+		private SnapshotChannel snapshotChannel(byte id) {
+			for (SnapshotChannel channel : snapshotChannels)
+				if (channel.id == id)
+					return channel;
+			return null;
+		}
+
+		/**
+		 * Starts delivering the frames of a new snapshot channel to it.
+		 * 
+		 * @param channel
+		 *            the channel to open
+		 * @throws IllegalStateException
+		 *             if a snapshot channel with the same id is already open
+		 */
+		synchronized void openSnapshotChannel(SnapshotChannel channel) {
+			if (snapshotChannel(channel.id) != null)
+				throw new IllegalStateException("Snapshot channel " + channel.getId() + " is already open");
+			SnapshotChannel[] updated = Arrays.copyOf(snapshotChannels, snapshotChannels.length + 1);
+			updated[snapshotChannels.length] = channel;
+			snapshotChannels = updated;
+		}
+
+		/**
+		 * Stops delivering frames to a closed snapshot channel.
+		 * 
+		 * @param channel
+		 *            the channel to close
+		 */
+		synchronized void closeSnapshotChannel(SnapshotChannel channel) {
+			for (int i = 0; i < snapshotChannels.length; i++)
+				if (snapshotChannels[i] == channel) {
+					SnapshotChannel[] updated = new SnapshotChannel[snapshotChannels.length - 1];
+					System.arraycopy(snapshotChannels, 0, updated, 0, i);
+					System.arraycopy(snapshotChannels, i + 1, updated, i, updated.length - i);
+					snapshotChannels = updated;
+					return;
+				}
 		}
 
 		/**
@@ -265,17 +2926,15 @@ public final class MPNESocket {
 		 * @see #removeConnectionListener(ConnectionListener)
 		 */
 		public synchronized void addConnectionListener(ConnectionListener l, byte[] header) {
-			for (byte[] key : receiveListeners.keySet())
-				if (Arrays.equals(key, header)) {
-					ArrayList<ConnectionListener> value = receiveListeners.get(key);
-					if (value.contains(l))
-						return;
-					receiveListeners.get(key).add(l);
-					return;
-				}
-			ArrayList<ConnectionListener> value = new ArrayList<ConnectionListener>();
-			receiveListeners.put(header, value);
+			HeaderKey key = HeaderKey.of(header);
+			ArrayList<ConnectionListener> value = receiveListeners.get(key);
+			if (value == null) {
+				value = new ArrayList<ConnectionListener>();
+				receiveListeners.put(key, value);
+			} else if (value.contains(l))
+				return;
 			value.add(l);
+			updateRoute(key);
 		}
 
 		/**
@@ -291,7 +2950,7 @@ public final class MPNESocket {
 		 */
 		@Override
 		public synchronized void addConnectionListener(ConnectionListener l) {
-			addConnectionListener(l, new byte[0]);
+			addConnectionListener(l, HeaderKey.EMPTY.bytes);
 		}
 
 		/**
@@ -312,11 +2971,10 @@ public final class MPNESocket {
 		 * @see #removeConnectionListener(ConnectionListener)
 		 */
 		public synchronized void removeConnectionListener(ConnectionListener l, byte[] header) {
-			for (byte[] key : receiveListeners.keySet())
-				if (Arrays.equals(key, header)) {
-					receiveListeners.get(key).remove(l);
-					return;
-				}
+			HeaderKey key = HeaderKey.of(header);
+			ArrayList<ConnectionListener> value = receiveListeners.get(key);
+			if (value != null && value.remove(l))
+				updateRoute(key);
 		}
 
 		/**
@@ -332,8 +2990,93 @@ public final class MPNESocket {
 		 */
 		@Override
 		public synchronized void removeConnectionListener(ConnectionListener l) {
-			for (ArrayList<ConnectionListener> value : receiveListeners.values())
-				value.remove(l);
+			for (HeaderKey key : new ArrayList<HeaderKey>(receiveListeners.keySet())) {
+				ArrayList<ConnectionListener> value = receiveListeners.get(key);
+				if (value.remove(l))
+					updateRoute(key);
+			}
+		}
+
+		/**
+		 * Adds a {@code ConnectionBufferListener} that only listens to data
+		 * that starts with the specified set of header bytes. An empty, 0 byte
+		 * array for a header will result in the listener receiving all data
+		 * from this peer.
+		 * <p>
+		 * Buffer listeners receive a read-only view of the received data
+		 * rather than a copy - any number of them can be added to one header
+		 * without copying the data. See {@link ConnectionBufferListener}.
+		 * <p>
+		 * Will not add the listener again if it has already been added to the
+		 * specified header.
+		 * 
+		 * @param l
+		 *            the listener to be added
+		 * @param header
+		 *            the set of bytes that filters data to be sent to {@code l}
+		 *            - these bytes must appear at the start of any received
+		 *            data for the data to be sent to the listener
+		 * @see #addBufferListener(ConnectionBufferListener)
+		 * @see #removeBufferListener(ConnectionBufferListener, byte[])
+		 * @see #addConnectionListener(ConnectionListener, byte[])
+		 */
+		public synchronized void addBufferListener(ConnectionBufferListener l, byte[] header) {
+			HeaderKey key = HeaderKey.of(header);
+			ArrayList<ConnectionBufferListener> value = receiveBufferListeners.get(key);
+			if (value == null) {
+				value = new ArrayList<ConnectionBufferListener>();
+				receiveBufferListeners.put(key, value);
+			} else if (value.contains(l))
+				return;
+			value.add(l);
+			updateRoute(key);
+		}
+
+		/**
+		 * Adds a {@code ConnectionBufferListener} that receives every set of
+		 * data from this peer. Equivalent to
+		 * {@code addBufferListener(l, new byte[0])}.
+		 * 
+		 * @param l
+		 *            the listener to be added
+		 * @see #addBufferListener(ConnectionBufferListener, byte[])
+		 * @see #removeBufferListener(ConnectionBufferListener)
+		 */
+		public synchronized void addBufferListener(ConnectionBufferListener l) {
+			addBufferListener(l, HeaderKey.EMPTY.bytes);
+		}
+
+		/**
+		 * Removes the specified buffer listener from the set receiving data
+		 * with the specified header from this peer.
+		 * 
+		 * @param l
+		 *            the listener to be removed
+		 * @param header
+		 *            the set of bytes that filters data being sent to {@code l}
+		 * @see #addBufferListener(ConnectionBufferListener, byte[])
+		 * @see #removeBufferListener(ConnectionBufferListener)
+		 */
+		public synchronized void removeBufferListener(ConnectionBufferListener l, byte[] header) {
+			HeaderKey key = HeaderKey.of(header);
+			ArrayList<ConnectionBufferListener> value = receiveBufferListeners.get(key);
+			if (value != null && value.remove(l))
+				updateRoute(key);
+		}
+
+		/**
+		 * Removes the buffer listener from receiving data with any of its
+		 * headers.
+		 * 
+		 * @param l
+		 *            the listener to be removed
+		 * @see #removeBufferListener(ConnectionBufferListener, byte[])
+		 * @see #addBufferListener(ConnectionBufferListener, byte[])
+		 */
+		public synchronized void removeBufferListener(ConnectionBufferListener l) {
+			for (HeaderKey key : new ArrayList<HeaderKey>(receiveBufferListeners.keySet()))
+				if (receiveBufferListeners.get(key).remove(l))
+					updateRoute(key);
 		}
 
 		/**
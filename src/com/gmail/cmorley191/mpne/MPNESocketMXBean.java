@@ -0,0 +1,106 @@
+package com.gmail.cmorley191.mpne;
+
+import java.util.Map;
+
+/**
+ * The management interface an {@link MPNESocket} registers with JMX - see
+ * {@link MPNESocket#registerMBean()}. Each attribute reads the socket's
+ * current {@link MPNEMetrics}; durations are in nanoseconds.
+ *
+ * @author Charlie Morley
+ *
+ */
+public interface MPNESocketMXBean {
+
+	/**
+	 * @return the port of the socket
+	 */
+	int getPort();
+
+	/**
+	 * @return the number of address and port pairs the socket receives from
+	 */
+	int getPeerCount();
+
+	/**
+	 * @return see {@link MPNEMetrics#getDatagramsReceived()}
+	 */
+	long getDatagramsReceived();
+
+	/**
+	 * @return see {@link MPNEMetrics#getBytesReceived()}
+	 */
+	long getBytesReceived();
+
+	/**
+	 * @return see {@link MPNEMetrics#getDatagramsSent()}
+	 */
+	long getDatagramsSent();
+
+	/**
+	 * @return see {@link MPNEMetrics#getBytesSent()}
+	 */
+	long getBytesSent();
+
+	/**
+	 * @return see {@link MPNEMetrics#getUnknownPeerPackets()}
+	 */
+	long getUnknownPeerPackets();
+
+	/**
+	 * @return see {@link MPNEMetrics#getTruncatedPackets()}
+	 */
+	long getTruncatedPackets();
+
+	/**
+	 * @return see {@link MPNEMetrics#getDroppedPackets()}
+	 */
+	long getDroppedPackets();
+
+	/**
+	 * @return see {@link MPNEMetrics#getIncompleteMessages()}
+	 */
+	long getIncompleteMessages();
+
+	/**
+	 * @return see {@link MPNEMetrics#getDispatchQueueDepth()}
+	 */
+	long getDispatchQueueDepth();
+
+	/**
+	 * @return see {@link MPNESocket#getSendQueueDepth()}
+	 */
+	int getSendQueueDepth();
+
+	/**
+	 * @return see {@link BufferPool#getHitRate()}
+	 */
+	double getBufferPoolHitRate();
+
+	/**
+	 * @return the mean of {@link MPNEMetrics#getReceiveLatency()}
+	 */
+	double getReceiveLatencyMean();
+
+	/**
+	 * @return the median of {@link MPNEMetrics#getReceiveLatency()}
+	 */
+	long getReceiveLatency50thPercentile();
+
+	/**
+	 * @return the 99th percentile of {@link MPNEMetrics#getReceiveLatency()}
+	 */
+	long getReceiveLatency99thPercentile();
+
+	/**
+	 * @return the maximum of {@link MPNEMetrics#getReceiveLatency()}
+	 */
+	long getReceiveLatencyMax();
+
+	/**
+	 * @return the 99th percentile of each of
+	 *         {@link MPNEMetrics#getListenerTimes()}, keyed by the header in
+	 *         hexadecimal
+	 */
+	Map<String, Long> getListenerTime99thPercentiles();
+}
@@ -0,0 +1,329 @@
+package com.gmail.cmorley191.mpne;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The encoding of messages into datagrams shared by the destinations an
+ * {@link MPNESocket} sends to - a {@link MPNESocket.SocketPeerConnection} and a
+ * {@link PeerGroup}. Messages are bundled, framed, compressed and fragmented
+ * here once, in the sending thread's buffers, and each resulting datagram is
+ * passed to {@link #transmit(ByteBuffer)} - which sends it to one peer, or to
+ * every member of a group.
+ *
+ * @author Charlie Morley
+ *
+ */
+abstract class MessageSender {
+
+	/**
+	 * The codecs compressing the messages sent, by the header the messages
+	 * start with. See {@link #putCodec(byte[], PayloadCodec)}.
+	 */
+	private volatile HeaderTrie<PayloadCodec> compression = new HeaderTrie<PayloadCodec>();
+
+	/**
+	 * Whether any header has a codec in {@link #compression}.
+	 */
+	private volatile boolean compressing;
+
+	/**
+	 * Returns the socket sending the datagrams.
+	 *
+	 * @return the socket
+	 */
+	abstract MPNESocket getSocket();
+
+	/**
+	 * Returns the size of the largest datagram sent - larger messages are
+	 * fragmented.
+	 *
+	 * @return the maximum datagram size in bytes
+	 * @see MPNESocket#getMaxDatagramSize(java.net.InetAddress)
+	 */
+	abstract int maxDatagramSize();
+
+	/**
+	 * Sends the remaining bytes of the buffer as one datagram. The buffer's
+	 * position is unchanged.
+	 *
+	 * @param datagram
+	 *            the datagram to send
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	abstract void transmit(ByteBuffer datagram) throws IOException;
+
+	/**
+	 * Sends the remaining bytes of the buffers, in order, as a single message.
+	 * The buffers' positions are unchanged.
+	 *
+	 * @param data
+	 *            the buffers making up the message
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	void sendGathered(ByteBuffer[] data) throws IOException {
+		if (data.length == 1) {
+			sendMessage(data[0]);
+			return;
+		}
+		int length = 0;
+		for (ByteBuffer b : data)
+			length += b.remaining();
+		if (compressing) {
+			ByteBuffer message = getSocket().sendBuffer(length);
+			for (ByteBuffer b : data) {
+				int position = b.position();
+				message.put(b);
+				b.position(position);
+			}
+			message.flip();
+			PayloadCodec codec = codec(message);
+			if (codec != null && sendCompressed(message, codec) > 0)
+				return;
+		}
+		int start = Frames.HEADER_LENGTH + Frames.BUNDLE_LENGTH_PREFIX;
+		if (start + length > maxDatagramSize()) {
+			// may not fit once framed
+			sendFragments(data, length, (byte) 0);
+			return;
+		}
+		ByteBuffer datagram = getSocket().sendBuffer(start + length);
+		datagram.position(start);
+		for (ByteBuffer b : data) {
+			int position = b.position();
+			datagram.put(b);
+			b.position(position);
+		}
+		datagram.flip();
+		datagram.position(start);
+		if (Frames.startsWithMarker(datagram)) {
+			checkFramable(length);
+			datagram.position(0);
+			Frames.putHeader(datagram, Frames.BUNDLE);
+			datagram.putShort((short) length);
+			datagram.position(0);
+		}
+		transmit(datagram);
+	}
+
+	/**
+	 * Sends each of the messages, coalescing as many consecutive messages into
+	 * each datagram as fit. The buffers' positions are unchanged.
+	 *
+	 * @param messages
+	 *            the messages to send, each as the remaining bytes of a buffer
+	 * @return the number of datagrams sent
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	int sendBundled(List<ByteBuffer> messages) throws IOException {
+		int maxSize = maxDatagramSize();
+		ByteBuffer bundle = getSocket().sendBuffer(maxSize);
+		ByteBuffer first = null;
+		int count = 0;
+		int datagrams = 0;
+		for (ByteBuffer m : messages) {
+			int needed = Frames.BUNDLE_LENGTH_PREFIX + m.remaining();
+			if (count > 0 && (Frames.HEADER_LENGTH + needed > maxSize || bundle.position() + needed > maxSize)) {
+				flushBundle(bundle, first, count);
+				datagrams++;
+				count = 0;
+			}
+			if (Frames.HEADER_LENGTH + needed > maxSize || compressing && codec(m) != null) {
+				if (count > 0) {
+					flushBundle(bundle, first, count);
+					datagrams++;
+					count = 0;
+				}
+				datagrams += sendMessage(m);
+				continue;
+			}
+			if (count == 0) {
+				bundle = getSocket().sendBuffer(maxSize);
+				Frames.putHeader(bundle, Frames.BUNDLE);
+				first = m;
+			}
+			Frames.putBundled(bundle, m);
+			count++;
+		}
+		if (count > 0) {
+			flushBundle(bundle, first, count);
+			datagrams++;
+		}
+		return datagrams;
+	}
+
+	/**
+	 * Sends a bundle of coalesced messages - or, if it holds only one
+	 * message that needs no framing, that message alone.
+	 */
+	private void flushBundle(ByteBuffer bundle, ByteBuffer first, int count) throws IOException {
+		if (count == 1 && !Frames.startsWithMarker(first)) {
+			transmit(first);
+			return;
+		}
+		bundle.flip();
+		transmit(bundle);
+	}
+
+	/**
+	 * Sends the remaining bytes of the buffer as a single message,
+	 * compressing it if its header has a codec, framing it if it would
+	 * otherwise be mistaken for a frame, or fragmenting it if it does not
+	 * fit in a datagram.
+	 * 
+	 * @return the number of datagrams sent
+	 */
+	int sendMessage(ByteBuffer message) throws IOException {
+		if (compressing) {
+			PayloadCodec codec = codec(message);
+			if (codec != null) {
+				int datagrams = sendCompressed(message, codec);
+				if (datagrams > 0)
+					return datagrams;
+			}
+		}
+		boolean marked = Frames.startsWithMarker(message);
+		int framing = marked ? Frames.HEADER_LENGTH + Frames.BUNDLE_LENGTH_PREFIX : 0;
+		if (framing + message.remaining() > maxDatagramSize())
+			return sendFragments(new ByteBuffer[] { message }, message.remaining(), (byte) 0);
+		if (!marked) {
+			transmit(message);
+			return 1;
+		}
+		checkFramable(message.remaining());
+		ByteBuffer bundle = getSocket().sendBuffer(Frames.HEADER_LENGTH + Frames.BUNDLE_LENGTH_PREFIX + message.remaining());
+		Frames.putHeader(bundle, Frames.BUNDLE);
+		Frames.putBundled(bundle, message);
+		bundle.flip();
+		transmit(bundle);
+		return 1;
+	}
+
+	/**
+	 * Returns the codec of the longest header with one that the remaining
+	 * bytes of the buffer start with.
+	 * 
+	 * @return the codec, {@code null} if none
+	 */
+	private PayloadCodec codec(ByteBuffer message) {
+		HeaderTrie.Node<PayloadCodec> node = compression.root();
+		PayloadCodec codec = node.value;
+		for (int i = message.position(); i < message.limit(); i++) {
+			node = node.child(message.get(i));
+			if (node == null)
+				break;
+			if (node.value != null)
+				codec = node.value;
+		}
+		return codec;
+	}
+
+	/**
+	 * Sends the remaining bytes of the buffer as a single message
+	 * compressed by the codec - in a {@link Frames#COMPRESSED} frame, or
+	 * in fragments of one if it does not fit in a datagram. The buffer's
+	 * position is unchanged, and it may be this thread's send buffer.
+	 * 
+	 * @return the number of datagrams sent, or 0 if nothing was sent
+	 *         because compressing would not make the message smaller
+	 */
+	private int sendCompressed(ByteBuffer message, PayloadCodec codec) throws IOException {
+		int length = message.remaining();
+		ByteBuffer frame = getSocket().compressBuffer(Frames.HEADER_LENGTH + 6 + codec.maxCompressedLength(length));
+		Frames.putHeader(frame, Frames.COMPRESSED);
+		frame.put((byte) codec.getId());
+		Frames.putVarint(frame, length);
+		codec.compress(message, frame);
+		frame.flip();
+		if (frame.remaining() - Frames.HEADER_LENGTH >= length)
+			return 0;
+		if (frame.remaining() <= maxDatagramSize()) {
+			transmit(frame);
+			return 1;
+		}
+		frame.position(Frames.HEADER_LENGTH);
+		return sendFragments(new ByteBuffer[] { frame }, frame.remaining(), Frames.FRAGMENT_COMPRESSED);
+	}
+
+	/**
+	 * Sends the remaining bytes of the buffers, in order, as one message
+	 * split into {@link Frames#FRAGMENT fragments} of the maximum datagram
+	 * size. The buffers' positions are unchanged.
+	 * 
+	 * @param data
+	 *            the buffers making up the message
+	 * @param length
+	 *            the total number of bytes remaining in the buffers
+	 * @param flags
+	 *            the flags of each fragment
+	 * @return the number of datagrams sent
+	 * @throws IOException
+	 *             if an I/O error occurs, or the message needs more than
+	 *             {@link Frames#MAX_FRAGMENTS} fragments
+	 */
+	private int sendFragments(ByteBuffer[] data, int length, byte flags) throws IOException {
+		int maxSize = maxDatagramSize();
+		int size = Math.min(maxSize - Frames.FRAGMENT_OVERHEAD, 0xFFFF);
+		if (size < 1)
+			throw new IOException("Maximum datagram size too small to fragment: " + maxSize + " bytes");
+		int count = (int) ((length + (long) size - 1) / size);
+		if (count > Frames.MAX_FRAGMENTS)
+			throw new IOException("Message too long to fragment: " + length + " bytes");
+		int id = getSocket().nextFragmentId();
+		ByteBuffer[] sources = new ByteBuffer[data.length];
+		for (int i = 0; i < data.length; i++)
+			sources[i] = data[i].duplicate();
+		int source = 0;
+		for (int index = 0; index < count; index++) {
+			int remaining = Math.min(size, length - index * size);
+			ByteBuffer datagram = getSocket().sendBuffer(Frames.FRAGMENT_OVERHEAD + remaining);
+			Frames.putFragmentHeader(datagram, id, length, size, index, flags);
+			while (remaining > 0) {
+				ByteBuffer b = sources[source];
+				if (!b.hasRemaining()) {
+					source++;
+					continue;
+				}
+				int n = Math.min(remaining, b.remaining());
+				int limit = b.limit();
+				b.limit(b.position() + n);
+				datagram.put(b);
+				b.limit(limit);
+				remaining -= n;
+			}
+			datagram.flip();
+			transmit(datagram);
+		}
+		return count;
+	}
+
+	/**
+	 * Throws an exception if a message of the specified length is too long
+	 * to be framed.
+	 */
+	private void checkFramable(int length) throws IOException {
+		if (length > 0xFFFF)
+			throw new IOException("Message too long to frame: " + length + " bytes");
+	}
+
+	/**
+	 * Compresses the messages that start with the header with the codec,
+	 * registering the codec with the getSocket(). Must be called while
+	 * synchronized on this sender.
+	 *
+	 * @param header
+	 *            the header of the messages to compress
+	 * @param codec
+	 *            the codec, or {@code null} to stop compressing the messages
+	 */
+	void putCodec(byte[] header, PayloadCodec codec) {
+		if (codec != null)
+			getSocket().registerCodec(codec);
+		compression = compression.with(header.clone(), codec);
+		compressing = !compression.isEmpty();
+	}
+}
@@ -0,0 +1,147 @@
+package com.gmail.cmorley191.mpne;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free queue of the {@link ReceivedPacket ReceivedPackets} waiting to be
+ * distributed to one peer's listeners. Any number of receiving threads may
+ * {@link #offer(ReceivedPacket, int) offer} packets, but only one thread at a
+ * time may {@link #poll()} them - the thread that successfully
+ * {@link #schedule() scheduled} the mailbox.
+ * <p>
+ * The packets themselves are the nodes of the queue (see
+ * {@link ReceivedPacket#next}), so queuing a packet does not allocate. A packet
+ * may only be queued in one mailbox at a time.
+ *
+ * @author Charlie Morley
+ *
+ */
+final class PacketMailbox {
+
+	/**
+	 * Placeholder node, present in the queue whenever it would otherwise be
+	 * left without nodes.
+	 */
+	private final ReceivedPacket stub = new ReceivedPacket(ByteBuffer.allocate(0), 0);
+
+	/**
+	 * The most recently offered node. Updated by the offering threads.
+	 */
+	private final AtomicReference<ReceivedPacket> tail = new AtomicReference<ReceivedPacket>(stub);
+
+	/**
+	 * The oldest node in the queue. Only accessed by the polling thread.
+	 */
+	private ReceivedPacket head = stub;
+
+	/**
+	 * The number of offered packets that have not been polled.
+	 */
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * Whether a thread currently owns the right to poll this mailbox.
+	 */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	/**
+	 * Queues the packet, unless {@code capacity} packets are already queued.
+	 *
+	 * @param packet
+	 *            the packet to queue
+	 * @param capacity
+	 *            the maximum number of packets queued at once
+	 * @return {@code true} if the packet was queued
+	 */
+	boolean offer(ReceivedPacket packet, int capacity) {
+		if (size.incrementAndGet() > capacity) {
+			size.decrementAndGet();
+			return false;
+		}
+		push(packet);
+		return true;
+	}
+
+	/**
+	 * Links the node onto the tail of the queue.
+	 */
+	private void push(ReceivedPacket node) {
+		node.next = null;
+		ReceivedPacket previous = tail.getAndSet(node);
+		previous.next = node;
+	}
+
+	/**
+	 * Removes and returns the oldest queued packet. Must only be called by the
+	 * thread that scheduled this mailbox.
+	 *
+	 * @return the oldest packet, {@code null} if the queue is empty or the
+	 *         oldest packet is still being offered (see {@link #isEmpty()})
+	 */
+	ReceivedPacket poll() {
+		ReceivedPacket first = head;
+		ReceivedPacket next = first.next;
+		if (first == stub) {
+			if (next == null)
+				return null;
+			head = next;
+			first = next;
+			next = next.next;
+		}
+		if (next != null) {
+			head = next;
+			size.decrementAndGet();
+			return first;
+		}
+		if (first != tail.get())
+			return null;
+		push(stub);
+		next = first.next;
+		if (next != null) {
+			head = next;
+			size.decrementAndGet();
+			return first;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns whether no packets are queued. A mailbox that is not empty may
+	 * still briefly {@link #poll()} {@code null} while a packet is being
+	 * offered.
+	 *
+	 * @return {@code true} if every offered packet has been polled
+	 */
+	boolean isEmpty() {
+		return size.get() == 0;
+	}
+
+	/**
+	 * Returns the number of packets queued.
+	 *
+	 * @return the number of offered packets that have not been polled
+	 */
+	int size() {
+		return size.get();
+	}
+
+	/**
+	 * Attempts to take the right to poll this mailbox.
+	 *
+	 * @return {@code true} if the calling thread must now poll this mailbox
+	 *         and then {@link #unschedule()} it
+	 */
+	boolean schedule() {
+		return scheduled.compareAndSet(false, true);
+	}
+
+	/**
+	 * Gives up the right to poll this mailbox.
+	 */
+	void unschedule() {
+		scheduled.set(false);
+	}
+}
@@ -0,0 +1,70 @@
+package com.gmail.cmorley191.mpne;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A compression scheme for the messages a {@link MPNESocket} sends and
+ * receives. Messages sent to a peer are compressed with the codec set for
+ * their header by
+ * {@link MPNESocket.SocketPeerConnection#setCompression(byte[], PayloadCodec)}
+ * ; each compressed datagram names its codec by id, and the receiving socket
+ * decompresses it with the codec
+ * {@link MPNESocket#registerCodec(PayloadCodec) registered} under that id.
+ * So both ends must register equivalent codecs - with the same dictionary, if
+ * any - under the same id.
+ * <p>
+ * A codec is shared by every thread sending and receiving, so its methods
+ * must be safe to call from multiple threads concurrently. Any working state
+ * should be kept per thread and reused, rather than allocated per message.
+ *
+ * @author Charlie Morley
+ * @see LZ4Codec
+ */
+public interface PayloadCodec {
+
+	/**
+	 * Returns the id naming this codec in compressed datagrams.
+	 *
+	 * @return the id, from 1 to 255
+	 */
+	public int getId();
+
+	/**
+	 * Returns the largest number of bytes {@link #compress(ByteBuffer, ByteBuffer)}
+	 * may write for data of the specified length.
+	 *
+	 * @param length
+	 *            the length of the data to compress
+	 * @return the maximum compressed length
+	 */
+	public int maxCompressedLength(int length);
+
+	/**
+	 * Compresses the remaining bytes of {@code src} into {@code dst},
+	 * starting at its position, and advances {@code dst}'s position past the
+	 * compressed bytes. {@code src}'s position is unchanged.
+	 *
+	 * @param src
+	 *            the data to compress
+	 * @param dst
+	 *            the buffer to write to, with at least
+	 *            {@link #maxCompressedLength(int)} bytes remaining
+	 */
+	public void compress(ByteBuffer src, ByteBuffer dst);
+
+	/**
+	 * Decompresses the remaining bytes of {@code src}, filling the remaining
+	 * bytes of {@code dst} exactly, and advances {@code dst}'s position to its
+	 * limit. The data is received from the network, so it must be checked
+	 * rather than trusted.
+	 *
+	 * @param src
+	 *            the compressed data
+	 * @param dst
+	 *            the buffer to write to, with exactly the decompressed length
+	 *            remaining
+	 * @return {@code false} if the data is malformed, or does not decompress
+	 *         to exactly the remaining length of {@code dst}
+	 */
+	public boolean decompress(ByteBuffer src, ByteBuffer dst);
+}
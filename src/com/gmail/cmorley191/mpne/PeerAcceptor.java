@@ -0,0 +1,40 @@
+package com.gmail.cmorley191.mpne;
+
+import java.net.InetAddress;
+
+import com.gmail.cmorley191.mpne.MPNESocket.SocketPeerConnection;
+
+/**
+ * The callback interface for accepting data from senders an
+ * {@link MPNESocket} has no {@link SocketPeerConnection} for, so that a server
+ * can receive from new peers without knowing their addresses in advance.
+ *
+ * @author Charlie Morley
+ * @see MPNESocket#setPeerAcceptor(PeerAcceptor)
+ */
+public interface PeerAcceptor {
+
+	/**
+	 * Called when the socket receives data from an address and port it has no
+	 * peer for. To accept the sender, construct a
+	 * {@code SocketPeerConnection} for the address and port on the socket,
+	 * add its listeners, and return it - the data is then delivered to it as
+	 * if the peer had existed beforehand.
+	 * <p>
+	 * Called on the socket's receiving thread (or one of its event loop
+	 * threads), which receives no further data until this returns, so
+	 * decisions must be quick. If the socket has several receiving threads,
+	 * this may be called concurrently for different senders.
+	 *
+	 * @param socket
+	 *            the socket that received the data
+	 * @param address
+	 *            the IP address of the sender
+	 * @param port
+	 *            the port used at {@code address}
+	 * @return the new peer for the sender, or {@code null} to discard the
+	 *         data - data from a rejected sender is then discarded without
+	 *         calling this again for one second
+	 */
+	public SocketPeerConnection acceptPeer(MPNESocket socket, InetAddress address, int port);
+}
@@ -1,6 +1,7 @@
 package com.gmail.cmorley191.mpne;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A connection interface to a specific peer. Offers functionality to send data
@@ -9,6 +10,9 @@ import java.io.IOException;
  * Inclusion of identification information (such as ports and addresses) and any
  * data filtering is at the discretion of implementation (although
  * implementation is encouraged).
+ * <p>
+ * Implementations must allow {@link #send(byte[])} to be called by multiple
+ * threads at once.
  * 
  * @author Charlie Morley
  *
@@ -17,6 +21,11 @@ public interface PeerConnection {
 
 	/**
 	 * Immediately sends the specified data to this peer.
+	 * <p>
+	 * Safe to call from multiple threads concurrently. Each call sends its data
+	 * as one unit, never interleaved with data from another call, but the
+	 * order in which concurrent calls are sent is unspecified. The caller may
+	 * modify {@code data} once this method returns.
 	 * 
 	 * @param data
 	 *            the data to send to this peer
@@ -25,6 +34,30 @@ public interface PeerConnection {
 	 */
 	public void send(byte[] data) throws IOException;
 
+	/**
+	 * Sends the specified data to this peer without waiting for it to be sent.
+	 * <p>
+	 * By default the data is sent immediately with {@link #send(byte[])}.
+	 * Implementations may instead queue the data to be sent by another thread.
+	 * The caller must not modify {@code data} until the returned future
+	 * completes.
+	 * 
+	 * @param data
+	 *            the data to send to this peer
+	 * @return a future completed once the data has been sent, or completed
+	 *         exceptionally with an {@link IOException} if it could not be
+	 */
+	public default CompletableFuture<Void> sendAsync(byte[] data) {
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		try {
+			send(data);
+			future.complete(null);
+		} catch (IOException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
 	/**
 	 * Adds a listener for data received from this peer.
 	 * 
@@ -0,0 +1,346 @@
+package com.gmail.cmorley191.mpne;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.gmail.cmorley191.mpne.MPNESocket.SocketPeerConnection;
+
+/**
+ * A group of {@link SocketPeerConnection SocketPeerConnections} of the same
+ * {@link MPNESocket}, sent to as one. Each message is encoded once - bundled,
+ * framed, compressed and fragmented just as it would be for a single peer -
+ * and each resulting datagram is sent to every member from the same buffer,
+ * rather than built and copied again for each member. On a local network the
+ * group can instead send each datagram once, to an IP multicast group that
+ * the members' sockets have joined - see
+ * {@link #setMulticastAddress(InetSocketAddress)}.
+ * <p>
+ * Listeners added to a group receive data from every member: they are added
+ * to each member, including peers that join the group later, and removed from
+ * peers that leave it.
+ * <p>
+ * A peer may belong to any number of groups. Members that are
+ * {@link SocketPeerConnection#setPacingRate(long, int) paced} are sent to
+ * through their pacers. Groups have no {@link ReliableChannel
+ * ReliableChannels} or {@link SnapshotChannel SnapshotChannels} - open those
+ * on each member.
+ *
+ * @author Charlie Morley
+ *
+ */
+public final class PeerGroup extends MessageSender implements PeerConnection {
+
+	/**
+	 * The socket of the members.
+	 */
+	private final MPNESocket socket;
+
+	/**
+	 * The members of this group. Never modified - a new array replaces the
+	 * old one when members join or leave.
+	 */
+	private volatile SocketPeerConnection[] members = new SocketPeerConnection[0];
+
+	/**
+	 * The multicast group datagrams are sent to instead of each member,
+	 * {@code null} if none.
+	 */
+	private volatile InetSocketAddress multicastAddress;
+
+	/**
+	 * The listeners added to this group. Only accessed while synchronized on
+	 * this group.
+	 */
+	private final ArrayList<ConnectionListener> listeners = new ArrayList<ConnectionListener>();
+
+	/**
+	 * The header each of the {@link #listeners} was added to.
+	 */
+	private final ArrayList<HeaderKey> listenerHeaders = new ArrayList<HeaderKey>();
+
+	/**
+	 * Constructs an empty group of peers of the specified socket.
+	 *
+	 * @param socket
+	 *            the socket of the group's members
+	 */
+	public PeerGroup(MPNESocket socket) {
+		this.socket = socket;
+	}
+
+	/**
+	 * Returns the socket this group's members send and receive over.
+	 *
+	 * @return the group's socket
+	 */
+	@Override
+	public MPNESocket getSocket() {
+		return socket;
+	}
+
+	/**
+	 * Adds a peer to this group, and adds the group's listeners to it.
+	 *
+	 * @param peer
+	 *            the peer to add
+	 * @return {@code true} if the peer was not already a member
+	 * @throws IllegalArgumentException
+	 *             if the peer belongs to a different socket
+	 */
+	public synchronized boolean add(SocketPeerConnection peer) {
+		if (peer.getSocket() != socket)
+			throw new IllegalArgumentException("Peer belongs to a different socket: " + peer);
+		if (contains(peer))
+			return false;
+		SocketPeerConnection[] updated = new SocketPeerConnection[members.length + 1];
+		System.arraycopy(members, 0, updated, 0, members.length);
+		updated[members.length] = peer;
+		members = updated;
+		for (int i = 0; i < listeners.size(); i++)
+			peer.addConnectionListener(listeners.get(i), listenerHeaders.get(i).bytes);
+		return true;
+	}
+
+	/**
+	 * Removes a peer from this group, and removes the group's listeners from
+	 * it.
+	 *
+	 * @param peer
+	 *            the peer to remove
+	 * @return {@code true} if the peer was a member
+	 */
+	public synchronized boolean remove(SocketPeerConnection peer) {
+		for (int i = 0; i < members.length; i++)
+			if (members[i] == peer) {
+				SocketPeerConnection[] updated = new SocketPeerConnection[members.length - 1];
+				System.arraycopy(members, 0, updated, 0, i);
+				System.arraycopy(members, i + 1, updated, i, updated.length - i);
+				members = updated;
+				for (int j = 0; j < listeners.size(); j++)
+					peer.removeConnectionListener(listeners.get(j), listenerHeaders.get(j).bytes);
+				return true;
+			}
+		return false;
+	}
+
+	/**
+	 * Returns whether a peer is a member of this group.
+	 *
+	 * @param peer
+	 *            the peer to look for
+	 * @return {@code true} if the peer is a member
+	 */
+	public boolean contains(SocketPeerConnection peer) {
+		for (SocketPeerConnection member : members)
+			if (member == peer)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Returns the members of this group.
+	 *
+	 * @return a new array of the members, in the order they joined
+	 */
+	public SocketPeerConnection[] getMembers() {
+		return members.clone();
+	}
+
+	/**
+	 * Returns the number of members of this group.
+	 *
+	 * @return the member count
+	 */
+	public int size() {
+		return members.length;
+	}
+
+	/**
+	 * Sends this group's datagrams once, to an IP multicast group, rather than
+	 * to each member. Each member's socket must
+	 * {@link MPNESocket#joinGroup(java.net.InetAddress, java.net.NetworkInterface)
+	 * join} the multicast group at the port of this group's socket - usually
+	 * only possible on a local network, where the members all share the same
+	 * port. Datagrams are then delivered to every socket that joined, member or
+	 * not, and members are not paced.
+	 *
+	 * @param address
+	 *            the multicast address and port to send to, or {@code null}
+	 *            to send to each member again
+	 * @throws IllegalArgumentException
+	 *             if the address is not a multicast address
+	 */
+	public void setMulticastAddress(InetSocketAddress address) {
+		if (address != null && (address.getAddress() == null || !address.getAddress().isMulticastAddress()))
+			throw new IllegalArgumentException("Not a multicast address: " + address);
+		multicastAddress = address;
+	}
+
+	/**
+	 * Returns the multicast group this group's datagrams are sent to.
+	 *
+	 * @return the multicast address and port, {@code null} if datagrams are
+	 *         sent to each member
+	 * @see #setMulticastAddress(InetSocketAddress)
+	 */
+	public InetSocketAddress getMulticastAddress() {
+		return multicastAddress;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This {@code PeerGroup} sends the data to every member, encoded once as
+	 * {@link SocketPeerConnection#send(byte[])} would encode it. If sending
+	 * to a member fails, the data is still sent to the remaining members
+	 * before the exception is thrown.
+	 */
+	@Override
+	public void send(byte[] data) throws IOException {
+		sendMessage(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Sends the remaining bytes of the specified buffers, in order, to every
+	 * member as a single message - a gathering equivalent of
+	 * {@link #send(byte[])}. The buffers' positions are unchanged.
+	 *
+	 * @param data
+	 *            the buffers making up the message
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void send(ByteBuffer... data) throws IOException {
+		sendGathered(data);
+	}
+
+	/**
+	 * Sends each of the specified messages to every member, coalescing
+	 * consecutive messages into as few datagrams as
+	 * {@link SocketPeerConnection#sendBatch(List)} does.
+	 *
+	 * @param messages
+	 *            the messages to send, each as the remaining bytes of a
+	 *            buffer
+	 * @return the number of datagrams sent to each member
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public int sendBatch(List<ByteBuffer> messages) throws IOException {
+		return sendBundled(messages);
+	}
+
+	/**
+	 * Compresses the messages sent to this group that start with the
+	 * specified header with the specified codec, as
+	 * {@link SocketPeerConnection#setCompression(byte[], PayloadCodec)} does
+	 * for a single peer - once for every member. Independent of the members'
+	 * own codecs.
+	 *
+	 * @param header
+	 *            the header of the messages to compress - empty for every
+	 *            message
+	 * @param codec
+	 *            the codec to compress with, or {@code null} to stop
+	 *            compressing messages with the header
+	 * @throws IllegalStateException
+	 *             if a different codec is registered with the socket under
+	 *             the codec's id
+	 */
+	public synchronized void setCompression(byte[] header, PayloadCodec codec) {
+		putCodec(header, codec);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The size for the multicast group if there is one, otherwise the
+	 * smallest size of any member, so that one encoding fits them all.
+	 */
+	@Override
+	int maxDatagramSize() {
+		InetSocketAddress address = multicastAddress;
+		if (address != null)
+			return socket.getMaxDatagramSize(address.getAddress());
+		int size = MPNESocket.MAX_DATAGRAM_SIZE;
+		for (SocketPeerConnection member : members)
+			size = Math.min(size, member.maxDatagramSize());
+		return size;
+	}
+
+	@Override
+	void transmit(ByteBuffer datagram) throws IOException {
+		InetSocketAddress address = multicastAddress;
+		if (address != null)
+			socket.sendTo(datagram, address);
+		else
+			socket.sendToAll(datagram, members);
+	}
+
+	/**
+	 * Adds a listener for data starting with the specified header from any
+	 * member, as
+	 * {@link SocketPeerConnection#addConnectionListener(ConnectionListener, byte[])}
+	 * does for each member.
+	 *
+	 * @param l
+	 *            the listener to add
+	 * @param header
+	 *            the bytes data must start with to be sent to the listener
+	 */
+	public synchronized void addConnectionListener(ConnectionListener l, byte[] header) {
+		HeaderKey key = HeaderKey.of(header);
+		for (int i = 0; i < listeners.size(); i++)
+			if (listeners.get(i) == l && listenerHeaders.get(i).equals(key))
+				return;
+		listeners.add(l);
+		listenerHeaders.add(key);
+		for (SocketPeerConnection member : members)
+			member.addConnectionListener(l, key.bytes);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The listener receives data from every member of this group.
+	 */
+	@Override
+	public void addConnectionListener(ConnectionListener l) {
+		addConnectionListener(l, HeaderKey.EMPTY.bytes);
+	}
+
+	/**
+	 * Removes a listener added to this group with the specified header.
+	 *
+	 * @param l
+	 *            the listener to remove
+	 * @param header
+	 *            the header the listener was added to
+	 */
+	public synchronized void removeConnectionListener(ConnectionListener l, byte[] header) {
+		HeaderKey key = HeaderKey.of(header);
+		for (int i = 0; i < listeners.size(); i++)
+			if (listeners.get(i) == l && listenerHeaders.get(i).equals(key)) {
+				listeners.remove(i);
+				listenerHeaders.remove(i);
+				for (SocketPeerConnection member : members)
+					member.removeConnectionListener(l, key.bytes);
+				return;
+			}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Removes the listener from every header it was added to this group with.
+	 */
+	@Override
+	public synchronized void removeConnectionListener(ConnectionListener l) {
+		for (int i = listeners.size() - 1; i >= 0; i--)
+			if (listeners.get(i) == l)
+				removeConnectionListener(l, listenerHeaders.get(i).bytes);
+	}
+}
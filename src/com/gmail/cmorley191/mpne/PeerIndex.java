@@ -0,0 +1,469 @@
+package com.gmail.cmorley191.mpne;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.gmail.cmorley191.mpne.MPNESocket.SocketPeerConnection;
+
+/**
+ * The index of {@link SocketPeerConnection SocketPeerConnections} an
+ * {@link MPNESocket} demultiplexes received data to, keyed by peer address and
+ * port.
+ * <p>
+ * IPv4 peers are keyed by their address and port packed into a single
+ * {@code long}, in an open addressing table of primitive keys; all other peers
+ * are keyed by {@link InetAddress}, then by port. Lookups never lock or
+ * allocate, so the receiving thread is not blocked by peers being added or
+ * removed, and makes no garbage per datagram.
+ * <p>
+ * A Bloom filter of the keys sits in front of the maps, so that looking up a
+ * sender with no peers - most of a flood of unsolicited datagrams - usually
+ * costs a few bit tests.
+ * <p>
+ * More than one {@code SocketPeerConnection} may share an address and port -
+ * each of them receives the data from that peer.
+ *
+ * @author Charlie Morley
+ *
+ */
+final class PeerIndex {
+
+	/**
+	 * The key marking an empty slot of an {@link Ipv4Table}. Never a
+	 * {@link #key(InetAddress, int) key}, which has only 48 bits.
+	 */
+	private static final long EMPTY = -1L;
+
+	/**
+	 * The smallest {@link Ipv4Table}, in slots.
+	 */
+	private static final int MIN_TABLE_SLOTS = 16;
+
+	/**
+	 * An open addressing table of the peers with IPv4 addresses, keyed by
+	 * {@link #key(InetAddress, int)}, probed linearly from the low bits of the
+	 * key's {@link #mix(long) mixed} hash.
+	 * <p>
+	 * Only modified while synchronized on the index, and never more than half
+	 * full, so a probe always ends at an empty slot. A key is written after its
+	 * peers, so a reader that sees the key sees its peers; removed keys keep
+	 * their slots, with {@code null} peers, until the table is replaced by a
+	 * rebuilt one.
+	 *
+	 * @author Charlie Morley
+	 *
+	 */
+	private static final class Ipv4Table {
+
+		/**
+		 * The key of each slot, {@link PeerIndex#EMPTY} if the slot is unused.
+		 */
+		final AtomicLongArray keys;
+
+		/**
+		 * The peers of each slot's key, {@code null} if the key was removed.
+		 */
+		final AtomicReferenceArray<SocketPeerConnection[]> peers;
+
+		/**
+		 * The number of slots less one.
+		 */
+		final int mask;
+
+		/**
+		 * The number of used slots, including those of removed keys.
+		 */
+		int used;
+
+		/**
+		 * The number of keys with peers.
+		 */
+		volatile int size;
+
+		Ipv4Table(int slots) {
+			keys = new AtomicLongArray(slots);
+			for (int i = 0; i < slots; i++)
+				keys.set(i, EMPTY);
+			peers = new AtomicReferenceArray<SocketPeerConnection[]>(slots);
+			mask = slots - 1;
+		}
+
+		/**
+		 * Returns the slot holding the key, or the empty slot it would be put
+		 * in.
+		 */
+		int slot(long key) {
+			int i = (int) mix(key) & mask;
+			for (long k; (k = keys.get(i)) != key && k != EMPTY; i = (i + 1) & mask)
+				;
+			return i;
+		}
+	}
+
+	/**
+	 * The peers with IPv4 addresses. Replaced by a larger or rebuilt table
+	 * when it fills up.
+	 */
+	private volatile Ipv4Table ipv4Peers = new Ipv4Table(MIN_TABLE_SLOTS);
+
+	/**
+	 * The peers with non-IPv4 addresses, keyed by address. Each array holds
+	 * the peers of one port.
+	 */
+	private final ConcurrentHashMap<InetAddress, SocketPeerConnection[][]> otherPeers = new ConcurrentHashMap<InetAddress, SocketPeerConnection[][]>();
+
+	/**
+	 * The number of address and port pairs in {@link #otherPeers}.
+	 */
+	private volatile int otherSize;
+
+	/**
+	 * The number of filter bits per key the {@link #filter} is sized for.
+	 */
+	private static final int FILTER_BITS_PER_KEY = 16;
+
+	/**
+	 * The smallest {@link #filter}, in 64 bit words.
+	 */
+	private static final int MIN_FILTER_WORDS = 16;
+
+	/**
+	 * The Bloom filter of the {@link #hash(InetAddress, int) hashes} of every
+	 * key in the index, with three bits set per key. Bits of removed keys are
+	 * left set until the filter is rebuilt; the filter is replaced, never
+	 * shrunk in place, so a lookup never misses a key in the index.
+	 */
+	private volatile AtomicLongArray filter = new AtomicLongArray(MIN_FILTER_WORDS);
+
+	/**
+	 * The number of keys whose bits are set in the {@link #filter}, including
+	 * removed keys. Only accessed while synchronized on this index.
+	 */
+	private int filterKeys;
+
+	/**
+	 * Packs an address and a port into a single key - for an IPv4 address,
+	 * unique to the address and port. Taken from the address's
+	 * {@link InetAddress#hashCode() hash code}, which for an IPv4 address is
+	 * the raw address, so that no copy of the address is made.
+	 *
+	 * @param address
+	 *            the IP address
+	 * @param port
+	 *            the port used at the address
+	 * @return the address's hash code in the upper bits of the key and the
+	 *         port in the lower 16 bits
+	 */
+	static long key(InetAddress address, int port) {
+		return ((address.hashCode() & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
+	}
+
+	/**
+	 * Returns the peers with the specified address and port.
+	 *
+	 * @param address
+	 *            the IP address of the peers
+	 * @param port
+	 *            the port used at {@code address}
+	 * @return the peers with the address and port, {@code null} if there are
+	 *         none
+	 */
+	SocketPeerConnection[] get(InetAddress address, int port) {
+		long key = key(address, port);
+		long hash = mix(key);
+		if (!mightContain(hash))
+			return null;
+		if (address instanceof Inet4Address) {
+			Ipv4Table table = ipv4Peers;
+			int i = (int) hash & table.mask;
+			for (long k; (k = table.keys.get(i)) != EMPTY; i = (i + 1) & table.mask)
+				if (k == key)
+					return table.peers.get(i);
+			return null;
+		}
+		SocketPeerConnection[][] ports = otherPeers.get(address);
+		if (ports != null)
+			for (SocketPeerConnection[] peers : ports)
+				if (peers[0].getPort() == port)
+					return peers;
+		return null;
+	}
+
+	/**
+	 * Returns the 64 bit hash of an address and port used by the
+	 * {@link #filter}.
+	 */
+	static long hash(InetAddress address, int port) {
+		return mix(key(address, port));
+	}
+
+	/**
+	 * Spreads the bits of a key across a hash - the finalizer of MurmurHash3.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		return h ^ (h >>> 33);
+	}
+
+	/**
+	 * Returns the index of the {@code i}th filter bit of a hash, by double
+	 * hashing.
+	 */
+	private static int bit(long hash, int i, int bits) {
+		int h = (int) hash + i * (int) (hash >>> 32);
+		return h & (bits - 1);
+	}
+
+	/**
+	 * Returns whether a key with the specified hash may be in the index -
+	 * {@code false} if it certainly is not.
+	 */
+	private boolean mightContain(long hash) {
+		AtomicLongArray words = filter;
+		int bits = words.length() << 6;
+		for (int i = 0; i < 3; i++) {
+			int b = bit(hash, i, bits);
+			if ((words.get(b >>> 6) & (1L << b)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the filter bits of a hash in the specified filter.
+	 */
+	private static void setBits(AtomicLongArray words, long hash) {
+		int bits = words.length() << 6;
+		for (int i = 0; i < 3; i++) {
+			int b = bit(hash, i, bits);
+			words.set(b >>> 6, words.get(b >>> 6) | (1L << b));
+		}
+	}
+
+	/**
+	 * Adds a key's hash to the {@link #filter}, first replacing the filter
+	 * with a larger one if it is full. Must be called while synchronized,
+	 * before the key is added to its map.
+	 */
+	private void addToFilter(long hash) {
+		int keys = size() + 1;
+		if (filterKeys + 1 > (filter.length() << 6) / FILTER_BITS_PER_KEY)
+			rebuildFilter(keys);
+		setBits(filter, hash);
+		filterKeys++;
+	}
+
+	/**
+	 * Notes that a key was removed from the index, rebuilding the
+	 * {@link #filter} once removed keys outnumber those in the index. Must be
+	 * called while synchronized.
+	 */
+	private void removedFromFilter() {
+		int keys = size();
+		if (filterKeys - keys > Math.max(keys, MIN_FILTER_WORDS))
+			rebuildFilter(keys);
+	}
+
+	/**
+	 * Replaces the {@link #filter} with one holding only the current keys,
+	 * sized for the specified number of keys.
+	 */
+	private void rebuildFilter(int keys) {
+		int words = MIN_FILTER_WORDS;
+		while ((words << 6) / FILTER_BITS_PER_KEY < keys * 2 && words < (1 << 20))
+			words <<= 1;
+		AtomicLongArray rebuilt = new AtomicLongArray(words);
+		Ipv4Table table = ipv4Peers;
+		for (int i = 0; i <= table.mask; i++)
+			if (table.peers.get(i) != null)
+				setBits(rebuilt, mix(table.keys.get(i)));
+		for (SocketPeerConnection[][] ports : otherPeers.values())
+			for (SocketPeerConnection[] peers : ports)
+				setBits(rebuilt, hash(peers[0].getAddress(), peers[0].getPort()));
+		filter = rebuilt;
+		filterKeys = size();
+	}
+
+	/**
+	 * Adds the peer to the index under its address and port.
+	 *
+	 * @param peer
+	 *            the peer to add
+	 */
+	synchronized void add(SocketPeerConnection peer) {
+		InetAddress address = peer.getAddress();
+		int port = peer.getPort();
+		if (address instanceof Inet4Address) {
+			long key = key(address, port);
+			Ipv4Table table = ipv4Peers;
+			int i = table.slot(key);
+			SocketPeerConnection[] current = table.peers.get(i);
+			if (current == null) {
+				addToFilter(mix(key));
+				if (table.keys.get(i) == EMPTY) {
+					if ((table.used + 1) * 2 > table.mask + 1) {
+						table = rebuildTable(table.size + 1);
+						i = table.slot(key);
+					}
+					table.used++;
+				}
+				table.size++;
+			}
+			table.peers.set(i, append(current, peer));
+			table.keys.set(i, key);
+		} else {
+			SocketPeerConnection[][] ports = otherPeers.get(address);
+			int i = portIndex(ports, port);
+			if (i < 0) {
+				addToFilter(hash(address, port));
+				otherSize++;
+				SocketPeerConnection[][] updated;
+				if (ports == null) {
+					updated = new SocketPeerConnection[][] { { peer } };
+				} else {
+					updated = Arrays.copyOf(ports, ports.length + 1);
+					updated[ports.length] = new SocketPeerConnection[] { peer };
+				}
+				otherPeers.put(address, updated);
+			} else {
+				SocketPeerConnection[][] updated = ports.clone();
+				updated[i] = append(ports[i], peer);
+				otherPeers.put(address, updated);
+			}
+		}
+	}
+
+	/**
+	 * Removes the peer from the index. Other peers with the same address and
+	 * port remain in the index.
+	 *
+	 * @param peer
+	 *            the peer to remove
+	 * @return {@code true} if the peer was in the index
+	 */
+	synchronized boolean remove(SocketPeerConnection peer) {
+		InetAddress address = peer.getAddress();
+		int port = peer.getPort();
+		if (address instanceof Inet4Address) {
+			Ipv4Table table = ipv4Peers;
+			int i = table.slot(key(address, port));
+			SocketPeerConnection[] current = table.peers.get(i);
+			SocketPeerConnection[] updated = without(current, peer);
+			if (updated == current)
+				return false;
+			table.peers.set(i, updated);
+			if (updated == null)
+				table.size--;
+		} else {
+			SocketPeerConnection[][] ports = otherPeers.get(address);
+			int i = portIndex(ports, port);
+			if (i < 0)
+				return false;
+			SocketPeerConnection[] current = ports[i];
+			SocketPeerConnection[] updated = without(current, peer);
+			if (updated == current)
+				return false;
+			if (updated != null) {
+				SocketPeerConnection[][] replaced = ports.clone();
+				replaced[i] = updated;
+				otherPeers.put(address, replaced);
+			} else {
+				otherSize--;
+				if (ports.length == 1) {
+					otherPeers.remove(address);
+				} else {
+					SocketPeerConnection[][] replaced = new SocketPeerConnection[ports.length - 1][];
+					System.arraycopy(ports, 0, replaced, 0, i);
+					System.arraycopy(ports, i + 1, replaced, i, replaced.length - i);
+					otherPeers.put(address, replaced);
+				}
+			}
+		}
+		removedFromFilter();
+		return true;
+	}
+
+	/**
+	 * Replaces the {@link #ipv4Peers} with a table holding only their current
+	 * keys, sized for the specified number of keys. Must be called while
+	 * synchronized.
+	 */
+	private Ipv4Table rebuildTable(int keys) {
+		int slots = MIN_TABLE_SLOTS;
+		while (slots < keys * 4)
+			slots <<= 1;
+		Ipv4Table table = ipv4Peers;
+		Ipv4Table rebuilt = new Ipv4Table(slots);
+		for (int i = 0; i <= table.mask; i++) {
+			SocketPeerConnection[] peers = table.peers.get(i);
+			if (peers != null) {
+				int j = rebuilt.slot(table.keys.get(i));
+				rebuilt.peers.set(j, peers);
+				rebuilt.keys.set(j, table.keys.get(i));
+				rebuilt.used++;
+				rebuilt.size++;
+			}
+		}
+		ipv4Peers = rebuilt;
+		return rebuilt;
+	}
+
+	/**
+	 * Returns the index of the peers with the specified port in an address's
+	 * peers, -1 if there are none.
+	 */
+	private static int portIndex(SocketPeerConnection[][] ports, int port) {
+		if (ports != null)
+			for (int i = 0; i < ports.length; i++)
+				if (ports[i][0].getPort() == port)
+					return i;
+		return -1;
+	}
+
+	/**
+	 * Returns the number of distinct address and port pairs in the index.
+	 *
+	 * @return the number of keys in the index
+	 */
+	int size() {
+		return ipv4Peers.size + otherSize;
+	}
+
+	/**
+	 * Returns a copy of the specified peers with {@code peer} added to the end.
+	 */
+	private static SocketPeerConnection[] append(SocketPeerConnection[] peers, SocketPeerConnection peer) {
+		if (peers == null)
+			return new SocketPeerConnection[] { peer };
+		SocketPeerConnection[] updated = Arrays.copyOf(peers, peers.length + 1);
+		updated[peers.length] = peer;
+		return updated;
+	}
+
+	/**
+	 * Returns a copy of the specified peers without {@code peer} (compared by
+	 * identity), {@code null} if no peers would remain, or {@code peers} itself
+	 * if {@code peer} is not present.
+	 */
+	private static SocketPeerConnection[] without(SocketPeerConnection[] peers, SocketPeerConnection peer) {
+		if (peers == null)
+			return null;
+		for (int i = 0; i < peers.length; i++)
+			if (peers[i] == peer) {
+				if (peers.length == 1)
+					return null;
+				SocketPeerConnection[] updated = new SocketPeerConnection[peers.length - 1];
+				System.arraycopy(peers, 0, updated, 0, i);
+				System.arraycopy(peers, i + 1, updated, i, peers.length - i - 1);
+				return updated;
+			}
+		return peers;
+	}
+}
@@ -0,0 +1,298 @@
+package com.gmail.cmorley191.mpne;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.gmail.cmorley191.mpne.MPNESocket.SocketPeerConnection;
+
+/**
+ * Reassembles the messages a {@link SocketPeerConnection} receives in
+ * {@link Frames#FRAGMENT fragments} - messages sent larger than the
+ * {@link MPNESocket#getMaxDatagramSize(java.net.InetAddress) maximum datagram
+ * size}.
+ * <p>
+ * Fragments are copied into place in a buffer leased from the socket for the
+ * whole message, as they arrive and in any order. The table of messages
+ * being reassembled is fixed: a fragment of a new message while every entry
+ * is in use discards the message that started longest ago, and a message
+ * still incomplete after the socket's
+ * {@link MPNESocket#setReassemblyTimeout(long, TimeUnit) reassembly timeout}
+ * is discarded by the socket's {@link TimerWheel}. Fragments of recently
+ * completed or discarded messages that arrive later - duplicated, or
+ * delayed, by the network - are ignored. So a peer never holds more
+ * than {@link #TABLE_SIZE} times the
+ * {@link MPNESocket#setMaxMessageSize(int) maximum message size}, however
+ * many fragments are lost.
+ *
+ * @author Charlie Morley
+ *
+ */
+final class Reassembler {
+
+	/**
+	 * The number of messages that may be reassembled at once.
+	 */
+	static final int TABLE_SIZE = 8;
+
+	/**
+	 * The number of recently completed or discarded message ids remembered.
+	 */
+	static final int RECENT_SIZE = 32;
+
+	/**
+	 * A message being reassembled, or a free entry of the {@link #table}.
+	 *
+	 * @author Charlie Morley
+	 *
+	 */
+	private final class Entry implements Runnable {
+
+		/**
+		 * The timeout discarding the message if it is not complete in time.
+		 */
+		final TimerWheel.Timeout timeout = new TimerWheel.Timeout(this);
+
+		/**
+		 * The buffer the message is reassembled into, {@code null} if the
+		 * entry is free.
+		 */
+		ReceivedPacket message;
+
+		/**
+		 * The id of the message.
+		 */
+		int id;
+
+		/**
+		 * The length of the message.
+		 */
+		int length;
+
+		/**
+		 * The size of each fragment but the last.
+		 */
+		int size;
+
+		/**
+		 * The flags of the message's fragments.
+		 */
+		byte flags;
+
+		/**
+		 * The number of fragments not yet received.
+		 */
+		int missing;
+
+		/**
+		 * A bit for each fragment, set once it is received. Reused, and grown
+		 * as needed.
+		 */
+		long[] received = new long[1];
+
+		/**
+		 * The order in which the message's first fragment arrived, among all
+		 * of the peer's messages.
+		 */
+		long started;
+
+		/**
+		 * The {@link System#nanoTime()} at which the message is discarded.
+		 */
+		long deadline;
+
+		@Override
+		public void run() {
+			expired(this);
+		}
+	}
+
+	/**
+	 * The peer whose messages are reassembled.
+	 */
+	private final SocketPeerConnection peer;
+
+	/**
+	 * The socket's timer wheel.
+	 */
+	private final TimerWheel timer;
+
+	/**
+	 * The messages being reassembled.
+	 */
+	private final Entry[] table = new Entry[TABLE_SIZE];
+
+	/**
+	 * The number of messages started so far.
+	 */
+	private long started;
+
+	/**
+	 * The ids of the last messages completed or discarded, whose remaining
+	 * fragments are ignored rather than starting the message again - each as
+	 * an unsigned value, or -1 if the entry is unused.
+	 */
+	private final long[] recent = new long[RECENT_SIZE];
+
+	/**
+	 * The index in {@link #recent} of the next finished id.
+	 */
+	private int nextRecent;
+
+	/**
+	 * Constructs an empty reassembler for the peer.
+	 *
+	 * @param peer
+	 *            the peer whose messages are reassembled
+	 */
+	Reassembler(SocketPeerConnection peer) {
+		this.peer = peer;
+		timer = peer.getSocket().getTimerWheel();
+		for (int i = 0; i < TABLE_SIZE; i++)
+			table[i] = new Entry();
+		Arrays.fill(recent, -1);
+	}
+
+	/**
+	 * Called by the peer for each fragment received, in the order received -
+	 * stores the fragment, and returns its message once every fragment has
+	 * been received. Malformed and duplicate fragments are ignored.
+	 *
+	 * @param p
+	 *            the received fragment
+	 * @return the completed message, starting at index 0 of a packet leased
+	 *         to the caller to release, or {@code null} if the
+	 *         message is not yet complete
+	 */
+	synchronized ReceivedPacket fragmentReceived(ReceivedPacket p) {
+		if (p.length < Frames.FRAGMENT_OVERHEAD)
+			return null;
+		int offset = Frames.HEADER_LENGTH;
+		int id = u32(p, offset);
+		int length = u32(p, offset + 4);
+		int size = u16(p, offset + 8);
+		int index = u16(p, offset + 10);
+		byte flags = p.get(offset + 12);
+		if (length <= 0 || length > peer.getSocket().getMaxMessageSize() || size == 0)
+			return null;
+		int count = (int) ((length + (long) size - 1) / size);
+		if (count > Frames.MAX_FRAGMENTS || index >= count
+				|| p.length - Frames.FRAGMENT_OVERHEAD != Math.min(size, length - index * size))
+			return null;
+		Entry entry = find(id);
+		if (entry == null) {
+			for (long r : recent)
+				if (r == (id & 0xFFFFFFFFL))
+					return null;
+			entry = start(id, length, size, flags, count);
+		} else if (entry.length != length || entry.size != size || entry.flags != flags)
+			return null;
+		int word = index >>> 6;
+		long bit = 1L << index;
+		if ((entry.received[word] & bit) != 0)
+			return null;
+		entry.received[word] |= bit;
+		ByteBuffer view = p.view;
+		view.clear();
+		view.limit(p.length);
+		view.position(Frames.FRAGMENT_OVERHEAD);
+		ByteBuffer buffer = entry.message.buffer;
+		buffer.clear();
+		buffer.position(index * size);
+		buffer.put(view);
+		if (--entry.missing > 0)
+			return null;
+		ReceivedPacket message = entry.message;
+		entry.message = null;
+		timer.cancel(entry.timeout);
+		finished(id);
+		message.length = length;
+		message.receivedAt = p.receivedAt;
+		return message;
+	}
+
+	private static int u16(ReceivedPacket p, int offset) {
+		return ((p.get(offset) & 0xFF) << 8) | (p.get(offset + 1) & 0xFF);
+	}
+
+	private static int u32(ReceivedPacket p, int offset) {
+		return (u16(p, offset) << 16) | u16(p, offset + 2);
+	}
+
+	/**
+	 * Returns the entry reassembling the message, {@code null} if none. Must
+	 * be called while synchronized.
+	 */
+	private Entry find(int id) {
+		for (Entry entry : table)
+			if (entry.message != null && entry.id == id)
+				return entry;
+		return null;
+	}
+
+	/**
+	 * Starts reassembling a message in a free entry, or in place of the
+	 * message started longest ago if none is free. Must be called while
+	 * synchronized.
+	 */
+	private Entry start(int id, int length, int size, byte flags, int count) {
+		Entry entry = table[0];
+		for (Entry e : table) {
+			if (e.message == null) {
+				entry = e;
+				break;
+			}
+			if (e.started < entry.started)
+				entry = e;
+		}
+		if (entry.message != null)
+			discard(entry);
+		MPNESocket socket = peer.getSocket();
+		entry.message = socket.acquireMessageBuffer(length);
+		entry.id = id;
+		entry.length = length;
+		entry.size = size;
+		entry.flags = flags;
+		entry.missing = count;
+		int words = (count + 63) >>> 6;
+		if (entry.received.length < words)
+			entry.received = new long[words];
+		else
+			Arrays.fill(entry.received, 0, words, 0);
+		entry.started = started++;
+		long timeout = socket.getReassemblyTimeout(TimeUnit.NANOSECONDS);
+		entry.deadline = System.nanoTime() + timeout;
+		timer.schedule(entry.timeout, timeout, TimeUnit.NANOSECONDS);
+		return entry;
+	}
+
+	/**
+	 * Discards an incomplete message, counting it in the socket's metrics.
+	 * Must be called while synchronized.
+	 */
+	private void discard(Entry entry) {
+		timer.cancel(entry.timeout);
+		entry.message.release();
+		entry.message = null;
+		finished(entry.id);
+		peer.getSocket().messageIncomplete();
+	}
+
+	/**
+	 * Remembers the id of a message completed or discarded, so that its late
+	 * fragments are ignored. Must be called while synchronized.
+	 */
+	private void finished(int id) {
+		recent[nextRecent] = id & 0xFFFFFFFFL;
+		nextRecent = (nextRecent + 1) % RECENT_SIZE;
+	}
+
+	/**
+	 * Called by the timer wheel when an entry's timeout expires - discards
+	 * its message, unless the entry has since been completed or reused.
+	 */
+	private synchronized void expired(Entry entry) {
+		if (entry.message != null && System.nanoTime() - entry.deadline >= 0)
+			discard(entry);
+	}
+}
@@ -0,0 +1,177 @@
+package com.gmail.cmorley191.mpne;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Data received by an {@link MPNESocket} from one of its peers, waiting in the
+ * peer's {@link PacketMailbox} to be distributed to its listeners.
+ * <p>
+ * A packet is a lease of a buffer from a {@link BufferPool}, held by one user
+ * at a time - the receiving thread, then the peer whose mailbox it is queued
+ * in - and {@link #release() released} by the last when finished, returning
+ * the buffer to its pool. Data needed by several peers is
+ * {@link #duplicate() copied} into a lease for each, since a packet can only
+ * be queued in one mailbox.
+ *
+ * @author Charlie Morley
+ *
+ */
+final class ReceivedPacket {
+
+	/**
+	 * The pool this packet returns to when released, {@code null} if it is not
+	 * pooled.
+	 */
+	private final BufferPool pool;
+
+	/**
+	 * The buffer holding the received data, starting at index 0. Either a
+	 * heap buffer (received into through its backing array) or a direct
+	 * buffer.
+	 */
+	final ByteBuffer buffer;
+
+	/**
+	 * A read-only view of {@link #buffer}, reused for every
+	 * {@link ConnectionBufferListener} the data is delivered to.
+	 */
+	final ByteBuffer view;
+
+	/**
+	 * The number of bytes received into {@link #buffer}.
+	 */
+	int length;
+
+	/**
+	 * The {@link System#nanoTime()} at which the data was received.
+	 */
+	long receivedAt;
+
+	/**
+	 * Whether this packet has been released since it was leased, so that a
+	 * second release does not return it to its pool twice.
+	 */
+	private final AtomicBoolean released = new AtomicBoolean();
+
+	/**
+	 * The next packet in the mailbox this packet is queued in. Only written by
+	 * {@link PacketMailbox}.
+	 */
+	volatile ReceivedPacket next;
+
+	/**
+	 * Constructs an unpooled packet holding the first {@code length} bytes of
+	 * {@code buffer}. The buffer is not copied.
+	 *
+	 * @param buffer
+	 *            the buffer holding the received data
+	 * @param length
+	 *            the number of bytes received
+	 */
+	ReceivedPacket(ByteBuffer buffer, int length) {
+		this(null, buffer);
+		this.length = length;
+	}
+
+	/**
+	 * Constructs an empty packet belonging to the specified pool.
+	 *
+	 * @param pool
+	 *            the pool the packet returns to when released
+	 * @param buffer
+	 *            the buffer to receive data into
+	 */
+	ReceivedPacket(BufferPool pool, ByteBuffer buffer) {
+		this.pool = pool;
+		this.buffer = buffer;
+		view = buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns the byte of received data at the specified index.
+	 *
+	 * @param index
+	 *            the index of the byte, less than {@link #length}
+	 * @return the byte at {@code index}
+	 */
+	byte get(int index) {
+		return buffer.get(index);
+	}
+
+	/**
+	 * Returns a copy of part of the received data.
+	 *
+	 * @param offset
+	 *            the index of the first byte to copy
+	 * @param length
+	 *            the number of bytes to copy
+	 * @return a new array of {@code length} bytes
+	 */
+	byte[] copy(int offset, int length) {
+		byte[] copy = new byte[length];
+		if (buffer.hasArray()) {
+			System.arraycopy(buffer.array(), buffer.arrayOffset() + offset, copy, 0, length);
+		} else {
+			view.clear();
+			view.position(offset);
+			view.get(copy);
+		}
+		return copy;
+	}
+
+	/**
+	 * Returns a read-only view of part of the received data, starting at index
+	 * 0 of the view - a new slice of {@link #view}, so that no bytes outside
+	 * the part, left in the buffer by earlier data, can be reached through it.
+	 *
+	 * @param offset
+	 *            the index of the first byte to view
+	 * @param length
+	 *            the number of bytes to view
+	 * @return a view whose capacity is {@code length}
+	 */
+	ByteBuffer view(int offset, int length) {
+		view.clear();
+		view.position(offset);
+		view.limit(offset + length);
+		return view.slice();
+	}
+
+	/**
+	 * Returns a copy of this pooled packet's data, in a packet leased from
+	 * the same pool - so the copy fits however the pool's users have resized
+	 * their buffers since.
+	 *
+	 * @return a new lease
+	 */
+	ReceivedPacket duplicate() {
+		ReceivedPacket copy = pool.acquire();
+		view.clear();
+		view.limit(length);
+		copy.buffer.clear();
+		copy.buffer.put(view);
+		copy.buffer.clear();
+		copy.length = length;
+		copy.receivedAt = receivedAt;
+		return copy;
+	}
+
+	/**
+	 * Resets this packet as it is leased from its pool again.
+	 */
+	void lease() {
+		length = 0;
+		next = null;
+		released.set(false);
+	}
+
+	/**
+	 * Ends the lease of this packet, returning it to its pool. The packet
+	 * must not be used by the caller after releasing it.
+	 */
+	void release() {
+		if (released.compareAndSet(false, true) && pool != null)
+			pool.recycle(this);
+	}
+}
@@ -0,0 +1,882 @@
+package com.gmail.cmorley191.mpne;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.gmail.cmorley191.mpne.MPNESocket.SocketPeerConnection;
+
+/**
+ * A reliable, ordered stream of messages to and from a
+ * {@link SocketPeerConnection}. Every message sent is delivered to the peer's
+ * {@code ReliableChannel} with the same id exactly once, in the order sent,
+ * however the datagrams carrying it are lost, duplicated or reordered.
+ * <p>
+ * Each message is sent in its own datagram with a sequence number. The
+ * receiver acknowledges the messages it has received - cumulatively, plus a
+ * bitfield of the 32 messages following the first missing one - on its own
+ * outgoing messages, or once per batch of received datagrams if it has none.
+ * Messages reported missing once several later messages have arrived are
+ * sent again, and if the oldest unacknowledged message goes unacknowledged
+ * for the retransmission timeout - estimated from the round trip time as TCP
+ * does - every unacknowledged message is. At most the window size of
+ * messages are unacknowledged at once; further messages wait in the send
+ * buffer.
+ * <p>
+ * Sent and received messages are held in fixed rings of reusable buffers, so
+ * sending, acknowledging and retransmitting do not allocate. Listeners are
+ * called on the peer's dispatcher, in order, like the peer's own listeners.
+ * <p>
+ * Several channels with different ids may be open on the same peer. The
+ * peer's other data is unaffected - unreliable data can still be sent and
+ * received alongside.
+ *
+ * @author Charlie Morley
+ *
+ */
+public final class ReliableChannel implements PeerConnection {
+
+	/**
+	 * The length of an acknowledgement - the cumulative acknowledgement,
+	 * acknowledgement bitfield and echoed send time.
+	 */
+	private static final int ACK = 2 + 4 + 4;
+
+	/**
+	 * The number of bytes a message frame carries before the message - the
+	 * frame header, channel id, sequence number, send time and
+	 * acknowledgement.
+	 */
+	static final int DATA_OVERHEAD = Frames.HEADER_LENGTH + 1 + 2 + 4 + ACK;
+
+	/**
+	 * The length of an acknowledgement frame.
+	 */
+	static final int ACK_LENGTH = Frames.HEADER_LENGTH + 1 + ACK;
+
+	/**
+	 * The default number of unacknowledged messages.
+	 */
+	public static final int DEFAULT_WINDOW = 256;
+
+	/**
+	 * The default number of messages the send buffer holds, including those
+	 * unacknowledged.
+	 */
+	public static final int DEFAULT_SEND_BUFFER = 1024;
+
+	/**
+	 * The largest window or send buffer - sequence numbers are 16 bits, and
+	 * every sequence number in flight must be distinguishable from one a
+	 * window behind.
+	 */
+	private static final int MAX_RING = 1 << 14;
+
+	/**
+	 * The retransmission timeout before the first round trip time is known.
+	 */
+	private static final long INITIAL_RTO = TimeUnit.MILLISECONDS.toNanos(500);
+
+	/**
+	 * The lowest retransmission timeout.
+	 */
+	private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(20);
+
+	/**
+	 * The highest retransmission timeout, reached by repeated backoff.
+	 */
+	private static final long MAX_RTO = TimeUnit.SECONDS.toNanos(10);
+
+	/**
+	 * The number of later messages that must be acknowledged before a missing
+	 * message is retransmitted early.
+	 */
+	private static final int FAST_RETRANSMIT_THRESHOLD = 3;
+
+	/**
+	 * The peer this channel sends to and receives from.
+	 */
+	private final SocketPeerConnection peer;
+
+	/**
+	 * The id distinguishing this channel from the peer's other channels.
+	 */
+	final byte id;
+
+	/**
+	 * The largest number of unacknowledged messages.
+	 */
+	private final int window;
+
+	/**
+	 * {@code (send buffer size) - 1}, for indexing the send rings.
+	 */
+	private final int sendMask;
+
+	/**
+	 * The send buffer - the bytes of each message, grown as needed and reused.
+	 */
+	private final byte[][] sendData;
+
+	/**
+	 * The length of each message in {@link #sendData}.
+	 */
+	private final int[] sendLengths;
+
+	/**
+	 * The {@link System#nanoTime()} each message was last transmitted at.
+	 */
+	private final long[] sendTimes;
+
+	/**
+	 * The number of times each message has been transmitted.
+	 */
+	private final int[] sendCounts;
+
+	/**
+	 * Whether each message has been acknowledged.
+	 */
+	private final boolean[] sendAcked;
+
+	/**
+	 * Whether each message was in flight when the retransmission timeout
+	 * expired, and has not been retransmitted since.
+	 */
+	private final boolean[] sendLost;
+
+	/**
+	 * Whether each message is counted in flight by the peer's congestion
+	 * controller.
+	 */
+	private final boolean[] sendInFlight;
+
+	/**
+	 * The number of messages marked in {@link #sendLost}.
+	 */
+	private int lostCount;
+
+	/**
+	 * The sequence number of the oldest unacknowledged message.
+	 */
+	private int sendBase;
+
+	/**
+	 * The sequence number of the next message to transmit for the first time.
+	 */
+	private int sendNext;
+
+	/**
+	 * The sequence number the next message sent is assigned.
+	 */
+	private int sendEnd;
+
+	/**
+	 * {@code (window) - 1}, for indexing the receive rings.
+	 */
+	private final int receiveMask;
+
+	/**
+	 * The messages received ahead of a missing message, grown as needed and
+	 * reused.
+	 */
+	private final byte[][] receiveData;
+
+	/**
+	 * The length of each message in {@link #receiveData}.
+	 */
+	private final int[] receiveLengths;
+
+	/**
+	 * Whether each slot of {@link #receiveData} holds a received message.
+	 */
+	private final boolean[] receivePresent;
+
+	/**
+	 * The sequence number of the next message to deliver.
+	 */
+	private int receiveNext;
+
+	/**
+	 * Whether messages have been received since the last acknowledgement was
+	 * sent.
+	 */
+	private volatile boolean ackPending;
+
+	/**
+	 * The send time of the last message received, to echo in the next
+	 * acknowledgement, 0 if it has been echoed.
+	 */
+	private int echoStamp;
+
+	/**
+	 * The messages ready for delivery to listeners. Only accessed by the
+	 * thread distributing the peer's data.
+	 */
+	private final ArrayList<byte[]> ready = new ArrayList<byte[]>();
+
+	/**
+	 * Counters filled by {@link #markAcked(int)} for the acknowledgement being
+	 * read.
+	 */
+	private int newlyAcked, newlyAckedBytes, newlyLeft;
+
+	/**
+	 * The smoothed round trip time, 0 until the first is measured.
+	 */
+	private long smoothedRtt;
+
+	/**
+	 * The round trip time variation.
+	 */
+	private long rttVariation;
+
+	/**
+	 * The retransmission timeout.
+	 */
+	private long rto = INITIAL_RTO;
+
+	/**
+	 * The number of consecutive timeouts, each doubling the retransmission
+	 * timeout. Cleared when the round trip time is next measured.
+	 */
+	private int backoff;
+
+	/**
+	 * The {@link System#nanoTime()} at which {@link #sendBase} last advanced.
+	 */
+	private long baseAdvancedAt;
+
+	/**
+	 * The peer's socket's timer wheel.
+	 */
+	private final TimerWheel timer;
+
+	/**
+	 * The retransmission timer, on the socket's timer wheel.
+	 */
+	private final TimerWheel.Timeout retransmitTimer = new TimerWheel.Timeout(new Runnable() {
+
+		@Override
+		public void run() {
+			retransmitExpired();
+		}
+	});
+
+	/**
+	 * Whether the {@link #retransmitTimer} is scheduled.
+	 */
+	private boolean timerArmed;
+
+	/**
+	 * The {@link System#nanoTime()} the {@link #retransmitTimer} is scheduled
+	 * for.
+	 */
+	private long timerDue;
+
+	/**
+	 * The number of messages transmitted more than once.
+	 */
+	private long retransmissions;
+
+	/**
+	 * Flag set by {@link #close()}.
+	 */
+	private boolean closed;
+
+	/**
+	 * The listeners receiving this channel's messages. Never modified - a new
+	 * array replaces the old one when listeners change.
+	 */
+	private volatile ConnectionListener[] listeners = new ConnectionListener[0];
+
+	/**
+	 * Opens a reliable channel to the peer with the default window and send
+	 * buffer.
+	 *
+	 * @param peer
+	 *            the peer to send to and receive from
+	 * @param id
+	 *            the id of the channel, from 0 to 255 - the peer's channel
+	 *            with the same id receives this channel's messages
+	 * @throws IllegalStateException
+	 *             if the peer already has an open channel with the id
+	 */
+	public ReliableChannel(SocketPeerConnection peer, int id) {
+		this(peer, id, DEFAULT_WINDOW, DEFAULT_SEND_BUFFER);
+	}
+
+	/**
+	 * Opens a reliable channel to the peer. Both ends should use the same
+	 * window - messages further ahead than the receiver's window are
+	 * discarded and retransmitted.
+	 *
+	 * @param peer
+	 *            the peer to send to and receive from
+	 * @param id
+	 *            the id of the channel, from 0 to 255 - the peer's channel
+	 *            with the same id receives this channel's messages
+	 * @param window
+	 *            the largest number of unacknowledged messages, rounded up to
+	 *            a power of 2
+	 * @param sendBuffer
+	 *            the largest number of messages waiting to be sent or
+	 *            acknowledged, rounded up to a power of 2 and at least
+	 *            {@code window}
+	 * @throws IllegalArgumentException
+	 *             if {@code id} is not from 0 to 255, or {@code window} or
+	 *             {@code sendBuffer} is not from 1 to 16384
+	 * @throws IllegalStateException
+	 *             if the peer already has an open channel with the id
+	 */
+	public ReliableChannel(SocketPeerConnection peer, int id, int window, int sendBuffer) {
+		if (id < 0 || id > 255)
+			throw new IllegalArgumentException("id must be from 0 to 255: " + id);
+		if (window < 1 || window > MAX_RING)
+			throw new IllegalArgumentException("window must be from 1 to " + MAX_RING + ": " + window);
+		if (sendBuffer < 1 || sendBuffer > MAX_RING)
+			throw new IllegalArgumentException("sendBuffer must be from 1 to " + MAX_RING + ": " + sendBuffer);
+		this.peer = peer;
+		this.id = (byte) id;
+		this.window = ceilingPowerOf2(window);
+		int sendSize = Math.max(ceilingPowerOf2(sendBuffer), this.window);
+		sendMask = sendSize - 1;
+		sendData = new byte[sendSize][];
+		sendLengths = new int[sendSize];
+		sendTimes = new long[sendSize];
+		sendCounts = new int[sendSize];
+		sendAcked = new boolean[sendSize];
+		sendLost = new boolean[sendSize];
+		sendInFlight = new boolean[sendSize];
+		receiveMask = this.window - 1;
+		receiveData = new byte[this.window][];
+		receiveLengths = new int[this.window];
+		receivePresent = new boolean[this.window];
+		timer = peer.getSocket().getTimerWheel();
+		peer.openChannel(this);
+	}
+
+	private static int ceilingPowerOf2(int n) {
+		return n == 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+	}
+
+	/**
+	 * Returns the peer this channel sends to and receives from.
+	 *
+	 * @return the peer
+	 */
+	public SocketPeerConnection getPeer() {
+		return peer;
+	}
+
+	/**
+	 * Returns the id of this channel.
+	 *
+	 * @return the id, from 0 to 255
+	 */
+	public int getId() {
+		return id & 0xFF;
+	}
+
+	/**
+	 * Returns the largest message this channel can send - the peer's
+	 * {@link MPNESocket#getMaxDatagramSize(java.net.InetAddress) maximum
+	 * datagram size} less the channel's framing.
+	 *
+	 * @return the largest message in bytes
+	 */
+	public int getMaxMessageSize() {
+		return peer.maxDatagramSize() - DATA_OVERHEAD;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The data is copied into this channel's send buffer and sent as soon as
+	 * the window allows, then retransmitted until acknowledged. This returns
+	 * without waiting for acknowledgement.
+	 *
+	 * @throws IOException
+	 *             if the channel is closed, the send buffer is full, or the
+	 *             data is longer than {@link #getMaxMessageSize()}
+	 */
+	@Override
+	public void send(byte[] data) throws IOException {
+		if (data.length > getMaxMessageSize())
+			throw new IOException("Message too long for a reliable datagram: " + data.length + " bytes");
+		synchronized (this) {
+			if (closed || peer.getSocket().isClosed())
+				throw new IOException("Channel closed");
+			if (sendEnd - sendBase > sendMask)
+				throw new IOException("Reliable send buffer full");
+			int slot = sendEnd & sendMask;
+			if (sendData[slot] == null || sendData[slot].length < data.length)
+				sendData[slot] = new byte[Math.max(data.length, 64)];
+			System.arraycopy(data, 0, sendData[slot], 0, data.length);
+			sendLengths[slot] = data.length;
+			sendCounts[slot] = 0;
+			sendAcked[slot] = false;
+			sendLost[slot] = false;
+			sendInFlight[slot] = false;
+			sendEnd++;
+			transmitWaiting();
+		}
+	}
+
+	/**
+	 * Retransmits the messages lost to the retransmission timeout, then
+	 * transmits waiting messages for the first time while the window allows -
+	 * each only while the peer's congestion window, if it is congestion
+	 * controlled, has room. Arms the retransmission timer. Must be called
+	 * while synchronized.
+	 */
+	private void transmitWaiting() {
+		CongestionController congestion = peer.congestion;
+		for (int sequence = sendBase; lostCount > 0 && sequence != sendNext; sequence++) {
+			int slot = sequence & sendMask;
+			if (!sendLost[slot])
+				continue;
+			if (congestion != null && !congestion.sent())
+				break;
+			sendLost[slot] = false;
+			lostCount--;
+			sendInFlight[slot] = congestion != null;
+			transmit(sequence);
+		}
+		while (lostCount == 0 && sendNext != sendEnd && sendNext - sendBase < window) {
+			if (congestion != null && !congestion.sent())
+				break;
+			sendInFlight[sendNext & sendMask] = congestion != null;
+			transmit(sendNext++);
+		}
+		if (sendNext != sendBase && !timerArmed)
+			armTimer(timeout());
+	}
+
+	/**
+	 * Transmits waiting messages for which the peer's congestion window has
+	 * made room - called by the peer's other channels when their messages
+	 * are acknowledged.
+	 */
+	synchronized void congestionWindowOpened() {
+		if (!closed && sendNext != sendEnd)
+			transmitWaiting();
+	}
+
+	/**
+	 * Transmits a message from the send buffer, with the current
+	 * acknowledgement of received messages. An I/O error is treated as the
+	 * datagram being lost. Must be called while synchronized.
+	 */
+	private void transmit(int sequence) {
+		int slot = sequence & sendMask;
+		int length = sendLengths[slot];
+		ByteBuffer frame = peer.frameBuffer(DATA_OVERHEAD + length);
+		Frames.putHeader(frame, Frames.RELIABLE);
+		frame.put(id);
+		frame.putShort((short) sequence);
+		frame.putInt(stamp());
+		putAck(frame);
+		frame.put(sendData[slot], 0, length);
+		frame.flip();
+		sendTimes[slot] = System.nanoTime();
+		if (sendCounts[slot]++ > 0)
+			retransmissions++;
+		try {
+			peer.transmit(frame);
+		} catch (IOException e) {
+			// retransmitted like any lost datagram
+		}
+	}
+
+	/**
+	 * Returns the current time in microseconds, truncated to 32 bits and never
+	 * 0, to timestamp a message.
+	 */
+	private static int stamp() {
+		int stamp = (int) (System.nanoTime() / 1000);
+		return stamp == 0 ? 1 : stamp;
+	}
+
+	/**
+	 * Writes the acknowledgement of received messages - the next sequence
+	 * number expected, a bit for each of the 32 following messages that has
+	 * been received, then the send time of the last message received. Must be
+	 * called while synchronized.
+	 */
+	private void putAck(ByteBuffer out) {
+		int bits = 0;
+		for (int i = 0; i < 32 && i + 1 < receivePresent.length; i++)
+			if (receivePresent[(receiveNext + 1 + i) & receiveMask])
+				bits |= 1 << i;
+		out.putShort((short) receiveNext);
+		out.putInt(bits);
+		out.putInt(echoStamp);
+		echoStamp = 0;
+		ackPending = false;
+	}
+
+	/**
+	 * Schedules {@link #retransmitExpired()}. Must be called while
+	 * synchronized.
+	 */
+	private void armTimer(long delay) {
+		timerArmed = true;
+		timerDue = System.nanoTime() + delay;
+		timer.schedule(retransmitTimer, delay, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Returns the retransmission timeout, backed off for each consecutive
+	 * timeout. Must be called while synchronized.
+	 */
+	private long timeout() {
+		return backoff >= 20 ? MAX_RTO : Math.min(rto << backoff, MAX_RTO);
+	}
+
+	/**
+	 * If the oldest unacknowledged message has gone unacknowledged for the
+	 * retransmission timeout since it was transmitted or became the oldest,
+	 * marks every unacknowledged message lost, retransmits them as the
+	 * congestion window allows and backs off the timeout. Rearms the timer.
+	 * <p>
+	 * As with TCP, a timeout means the messages in flight were most likely
+	 * lost together, so all are sent again rather than only those past their
+	 * own timeout - which, further than the acknowledgement bitfield reaches
+	 * past a missing message, cannot be acknowledged until it arrives.
+	 */
+	private synchronized void retransmitExpired() {
+		long now = System.nanoTime();
+		if (closed || timerDue - now > 0)
+			// rescheduled as it expired
+			return;
+		timerArmed = false;
+		if (sendNext == sendBase)
+			return;
+		long due = Math.max(sendTimes[sendBase & sendMask], baseAdvancedAt) + timeout();
+		if (due - now > 0) {
+			armTimer(due - now);
+			return;
+		}
+		int left = 0;
+		for (int sequence = sendBase; sequence != sendNext; sequence++) {
+			int slot = sequence & sendMask;
+			if (sendAcked[slot] || sendLost[slot])
+				continue;
+			sendLost[slot] = true;
+			lostCount++;
+			if (sendInFlight[slot]) {
+				sendInFlight[slot] = false;
+				left++;
+			}
+		}
+		CongestionController congestion = peer.congestion;
+		if (congestion != null)
+			congestion.timedOut(left);
+		backoff++;
+		transmitWaiting();
+	}
+
+	/**
+	 * Called by the peer for each reliable or acknowledgement frame addressed
+	 * to this channel, in the order received. Delivers any messages now in
+	 * order to the listeners. An exception thrown by a listener is passed to
+	 * the current thread's uncaught exception handler.
+	 *
+	 * @param p
+	 *            the received frame
+	 */
+	void frameReceived(ReceivedPacket p) {
+		int type = p.get(2);
+		int offset = Frames.HEADER_LENGTH + 1;
+		synchronized (this) {
+			if (type == Frames.RELIABLE) {
+				if (p.length < DATA_OVERHEAD)
+					return;
+				int sequence = u16(p, offset);
+				echoStamp = u32(p, offset + 2);
+				ackReceived(p, offset + 6);
+				messageReceived(p, sequence);
+			} else {
+				if (p.length < ACK_LENGTH)
+					return;
+				ackReceived(p, offset);
+			}
+		}
+		if (peer.congestion != null)
+			peer.congestionWindowOpened(this);
+		try {
+			for (int i = 0; i < ready.size(); i++) {
+				byte[] message = ready.get(i);
+				for (ConnectionListener l : listeners)
+					try {
+						l.dataReceived(message);
+					} catch (RuntimeException e) {
+						Thread thread = Thread.currentThread();
+						thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+					}
+			}
+		} finally {
+			ready.clear();
+		}
+	}
+
+	private static int u16(ReceivedPacket p, int offset) {
+		return ((p.get(offset) & 0xFF) << 8) | (p.get(offset + 1) & 0xFF);
+	}
+
+	private static int u32(ReceivedPacket p, int offset) {
+		return (u16(p, offset) << 16) | u16(p, offset + 2);
+	}
+
+	/**
+	 * Stores a received message, then moves every message now in order to
+	 * {@link #ready}. Must be called while synchronized.
+	 */
+	private void messageReceived(ReceivedPacket p, int wireSequence) {
+		ackPending = true;
+		int sequence = receiveNext + (short) (wireSequence - receiveNext);
+		int ahead = sequence - receiveNext;
+		if (ahead < 0 || ahead > receiveMask)
+			// a duplicate, or beyond the window - acknowledging is enough
+			return;
+		int length = p.length - DATA_OVERHEAD;
+		if (ahead == 0) {
+			ready.add(p.copy(DATA_OVERHEAD, length));
+			receiveNext++;
+		} else {
+			int slot = sequence & receiveMask;
+			if (receivePresent[slot])
+				return;
+			if (receiveData[slot] == null || receiveData[slot].length < length)
+				receiveData[slot] = new byte[Math.max(length, 64)];
+			p.view(DATA_OVERHEAD, length).get(receiveData[slot], 0, length);
+			receiveLengths[slot] = length;
+			receivePresent[slot] = true;
+		}
+		int slot;
+		while (receivePresent[slot = receiveNext & receiveMask]) {
+			ready.add(Arrays.copyOf(receiveData[slot], receiveLengths[slot]));
+			receivePresent[slot] = false;
+			receiveNext++;
+		}
+	}
+
+	/**
+	 * Reads an acknowledgement at the offset of the frame. Measures the round
+	 * trip time from the echoed send time - which, unlike the time since a
+	 * message was first sent, is exact for retransmitted messages too - then
+	 * marks the acknowledged messages and slides the window past them.
+	 * Messages the receiver reports missing while
+	 * {@link #FAST_RETRANSMIT_THRESHOLD} later messages have arrived are
+	 * retransmitted without waiting for the timeout, once. Must be called
+	 * while synchronized.
+	 */
+	private void ackReceived(ReceivedPacket p, int offset) {
+		int acked = sendBase + (short) (u16(p, offset) - sendBase);
+		if (acked - sendBase > sendNext - sendBase)
+			// acknowledges messages never sent - corrupt or from an old run
+			return;
+		int bits = u32(p, offset + 2);
+		int echo = u32(p, offset + 6);
+		long rtt = echo == 0 ? 0 : TimeUnit.MICROSECONDS.toNanos(stamp() - echo);
+		if (rtt > 0 && rtt < MAX_RTO)
+			rttMeasured(rtt);
+		else
+			rtt = 0;
+		int highest = acked - 1;
+		for (int i = 0; i < 32; i++)
+			if ((bits & (1 << i)) != 0 && acked + 1 + i - sendNext < 0)
+				highest = acked + 1 + i;
+		int slot;
+		newlyAcked = newlyAckedBytes = newlyLeft = 0;
+		for (int sequence = sendBase; sequence - acked < 0; sequence++)
+			markAcked(sequence & sendMask);
+		for (int i = 0; i < 32; i++)
+			if ((bits & (1 << i)) != 0) {
+				int sequence = acked + 1 + i;
+				if (sequence - sendBase >= 0 && sequence - sendNext < 0)
+					markAcked(sequence & sendMask);
+			}
+		CongestionController congestion = peer.congestion;
+		if (congestion != null) {
+			congestion.left(newlyLeft);
+			if (newlyAcked > 0)
+				congestion.acked(newlyAcked, newlyAckedBytes + DATA_OVERHEAD * newlyAcked, rtt);
+		}
+		boolean lost = false;
+		for (int sequence = acked; sequence - (highest - FAST_RETRANSMIT_THRESHOLD) < 0; sequence++) {
+			slot = sequence & sendMask;
+			if (sequence - sendBase >= 0 && !sendAcked[slot] && !sendLost[slot] && sendCounts[slot] == 1) {
+				if (!lost && congestion != null)
+					congestion.lost();
+				lost = true;
+				transmit(sequence);
+			}
+		}
+		int before = sendBase;
+		while (sendBase != sendNext && sendAcked[sendBase & sendMask])
+			sendBase++;
+		if (sendBase == before)
+			return;
+		baseAdvancedAt = System.nanoTime();
+		// a timer backed off for the previous oldest message may fire too late
+		// for the new one
+		if (timerArmed && timerDue - baseAdvancedAt > rto) {
+			timer.cancel(retransmitTimer);
+			timerArmed = false;
+		}
+		transmitWaiting();
+	}
+
+	/**
+	 * Marks the message in the slot acknowledged, if it was not already.
+	 * Must be called while synchronized.
+	 */
+	private void markAcked(int slot) {
+		if (sendAcked[slot])
+			return;
+		sendAcked[slot] = true;
+		newlyAcked++;
+		newlyAckedBytes += sendLengths[slot];
+		if (sendLost[slot]) {
+			sendLost[slot] = false;
+			lostCount--;
+		}
+		if (sendInFlight[slot]) {
+			sendInFlight[slot] = false;
+			newlyLeft++;
+		}
+	}
+
+	/**
+	 * Updates the round trip time estimate and retransmission timeout with a
+	 * measurement, as RFC 6298 describes.
+	 */
+	private void rttMeasured(long rtt) {
+		backoff = 0;
+		if (smoothedRtt == 0) {
+			smoothedRtt = Math.max(rtt, 1);
+			rttVariation = rtt / 2;
+		} else {
+			rttVariation = (3 * rttVariation + Math.abs(smoothedRtt - rtt)) / 4;
+			smoothedRtt = Math.max((7 * smoothedRtt + rtt) / 8, 1);
+		}
+		rto = Math.min(Math.max(smoothedRtt + Math.max(4 * rttVariation, TimeUnit.MILLISECONDS.toNanos(1)), MIN_RTO),
+				MAX_RTO);
+	}
+
+	/**
+	 * Called by the peer once it has distributed a batch of received data -
+	 * sends an acknowledgement frame if messages were received that no
+	 * outgoing message has acknowledged.
+	 */
+	void flushAck() {
+		if (!ackPending)
+			return;
+		synchronized (this) {
+			if (!ackPending || closed)
+				return;
+			ByteBuffer frame = peer.frameBuffer(ACK_LENGTH);
+			Frames.putHeader(frame, Frames.RELIABLE_ACK);
+			frame.put(id);
+			putAck(frame);
+			frame.flip();
+			try {
+				peer.transmit(frame);
+			} catch (IOException e) {
+				// the next message received is acknowledged again
+			}
+		}
+	}
+
+	@Override
+	public synchronized void addConnectionListener(ConnectionListener l) {
+		for (ConnectionListener existing : listeners)
+			if (existing == l)
+				return;
+		ConnectionListener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+		updated[listeners.length] = l;
+		listeners = updated;
+	}
+
+	@Override
+	public synchronized void removeConnectionListener(ConnectionListener l) {
+		for (int i = 0; i < listeners.length; i++)
+			if (listeners[i] == l) {
+				ConnectionListener[] updated = new ConnectionListener[listeners.length - 1];
+				System.arraycopy(listeners, 0, updated, 0, i);
+				System.arraycopy(listeners, i + 1, updated, i, updated.length - i);
+				listeners = updated;
+				return;
+			}
+	}
+
+	/**
+	 * Returns the smoothed round trip time to the peer.
+	 *
+	 * @param unit
+	 *            the unit of the returned time
+	 * @return the round trip time, 0 until the first message is acknowledged
+	 */
+	public synchronized long getRoundTripTime(TimeUnit unit) {
+		return unit.convert(smoothedRtt, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Returns the current retransmission timeout.
+	 *
+	 * @param unit
+	 *            the unit of the returned time
+	 * @return the time after which an unacknowledged message is sent again
+	 */
+	public synchronized long getRetransmissionTimeout(TimeUnit unit) {
+		return unit.convert(timeout(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Returns the number of messages sent but not yet acknowledged, or
+	 * waiting to be sent.
+	 *
+	 * @return the number of messages in the send buffer
+	 */
+	public synchronized int getUnacknowledgedCount() {
+		return sendEnd - sendBase;
+	}
+
+	/**
+	 * Returns the number of messages transmitted more than once.
+	 *
+	 * @return the number of retransmissions since the channel was opened
+	 */
+	public synchronized long getRetransmissionCount() {
+		return retransmissions;
+	}
+
+	/**
+	 * Closes this channel. Messages not yet acknowledged are no longer
+	 * retransmitted, and messages received on this channel's id are
+	 * discarded. The id may then be used by a new channel.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			if (timerArmed) {
+				timer.cancel(retransmitTimer);
+				timerArmed = false;
+			}
+			CongestionController congestion = peer.congestion;
+			if (congestion != null) {
+				int left = 0;
+				for (int sequence = sendBase; sequence != sendNext; sequence++)
+					if (sendInFlight[sequence & sendMask])
+						left++;
+				congestion.left(left);
+			}
+		}
+		peer.closeChannel(this);
+	}
+}
@@ -0,0 +1,219 @@
+package com.gmail.cmorley191.mpne;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import com.gmail.cmorley191.mpne.MPNESocket.SocketPeerConnection;
+
+/**
+ * A token bucket limiting the rate at which a {@link SocketPeerConnection}
+ * sends datagrams - see
+ * {@link SocketPeerConnection#setPacingRate(long, int)}. Datagrams within the
+ * rate are sent immediately; others are copied into a fixed queue and sent by
+ * the socket's {@link TimerWheel} as the bucket refills, so any number of
+ * peers are paced without a thread or scheduled task each.
+ * <p>
+ * The bucket is kept as the time at which it would be full again (the
+ * generic cell rate algorithm), so no tokens are counted.
+ *
+ * @author Charlie Morley
+ *
+ */
+final class SendPacer {
+
+	/**
+	 * The number of datagrams the queue holds.
+	 */
+	static final int QUEUE_CAPACITY = 1024;
+
+	/**
+	 * The peer whose datagrams are paced.
+	 */
+	private final SocketPeerConnection peer;
+
+	/**
+	 * Whether datagrams are paced - {@link #rate} is positive.
+	 */
+	private volatile boolean enabled;
+
+	/**
+	 * The rate in bytes per second, 0 if datagrams are not paced.
+	 */
+	private long rate;
+
+	/**
+	 * How far in nanoseconds the {@link #fullAt} time may be ahead before
+	 * datagrams wait - the burst size at the rate, and at least a tick of
+	 * the timer wheel.
+	 */
+	private long tolerance;
+
+	/**
+	 * The {@link System#nanoTime()} at which every datagram sent so far would
+	 * have been sent at the rate.
+	 */
+	private long fullAt = System.nanoTime();
+
+	/**
+	 * The queued datagrams, grown as needed and reused.
+	 */
+	private final ByteBuffer[] queue = new ByteBuffer[QUEUE_CAPACITY];
+
+	/**
+	 * The index of the oldest queued datagram.
+	 */
+	private int head;
+
+	/**
+	 * The number of queued datagrams.
+	 */
+	private int count;
+
+	/**
+	 * The socket's timer wheel.
+	 */
+	private final TimerWheel timer;
+
+	/**
+	 * The timeout sending queued datagrams.
+	 */
+	private final TimerWheel.Timeout releaseTimer = new TimerWheel.Timeout(new Runnable() {
+
+		@Override
+		public void run() {
+			release();
+		}
+	});
+
+	/**
+	 * Constructs a pacer for the peer, initially not pacing.
+	 *
+	 * @param peer
+	 *            the peer whose datagrams are paced
+	 */
+	SendPacer(SocketPeerConnection peer) {
+		this.peer = peer;
+		timer = peer.getSocket().getTimerWheel();
+	}
+
+	/**
+	 * Returns whether datagrams are paced.
+	 *
+	 * @return {@code true} if a rate is set
+	 */
+	boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Returns the rate.
+	 *
+	 * @return the rate in bytes per second, 0 if datagrams are not paced
+	 */
+	synchronized long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Sets the rate. Stopping pacing sends any queued datagrams immediately.
+	 *
+	 * @param bytesPerSecond
+	 *            the rate in bytes per second, or 0 to stop pacing
+	 * @param burst
+	 *            the number of bytes that may be sent at once after an idle
+	 *            period
+	 */
+	synchronized void setRate(long bytesPerSecond, int burst) {
+		rate = Math.max(bytesPerSecond, 0);
+		enabled = rate > 0;
+		if (!enabled) {
+			timer.cancel(releaseTimer);
+			while (count > 0)
+				sendHead();
+			return;
+		}
+		tolerance = Math.max(cost(burst), timer.getTick(TimeUnit.NANOSECONDS));
+		if (count > 0)
+			scheduleRelease(System.nanoTime());
+	}
+
+	/**
+	 * Returns the time the rate allows for a datagram.
+	 */
+	private long cost(int bytes) {
+		return bytes * 1000000000L / rate;
+	}
+
+	/**
+	 * Sends the remaining bytes of the buffer to the peer as one datagram if
+	 * the rate allows, or queues a copy to send later. The buffer's position
+	 * is unchanged.
+	 *
+	 * @param datagram
+	 *            the datagram to send
+	 * @throws IOException
+	 *             if an I/O error occurs, or the queue is full
+	 */
+	synchronized void send(ByteBuffer datagram) throws IOException {
+		if (!enabled) {
+			peer.transmitNow(datagram);
+			return;
+		}
+		long now = System.nanoTime();
+		if (count == 0 && fullAt - now <= tolerance) {
+			fullAt = Math.max(fullAt, now) + cost(datagram.remaining());
+			peer.transmitNow(datagram);
+			return;
+		}
+		if (count == QUEUE_CAPACITY)
+			throw new IOException("Send pacing queue full");
+		int slot = (head + count) % QUEUE_CAPACITY;
+		ByteBuffer copy = queue[slot];
+		if (copy == null || copy.capacity() < datagram.remaining())
+			queue[slot] = copy = ByteBuffer.allocate(Math.max(datagram.remaining(), 64));
+		copy.clear();
+		int position = datagram.position();
+		copy.put(datagram);
+		datagram.position(position);
+		copy.flip();
+		if (count++ == 0)
+			scheduleRelease(now);
+	}
+
+	/**
+	 * Sends the queued datagrams the rate allows, then schedules the rest.
+	 */
+	private synchronized void release() {
+		if (!enabled)
+			return;
+		long now = System.nanoTime();
+		while (count > 0 && fullAt - now <= tolerance) {
+			fullAt = Math.max(fullAt, now) + cost(queue[head].remaining());
+			sendHead();
+		}
+		if (count > 0)
+			scheduleRelease(now);
+	}
+
+	/**
+	 * Sends the oldest queued datagram, discarding it if it cannot be sent.
+	 */
+	private void sendHead() {
+		try {
+			peer.transmitNow(queue[head]);
+		} catch (IOException e) {
+			// lost, as a datagram may be anywhere along the way
+		}
+		head = (head + 1) % QUEUE_CAPACITY;
+		count--;
+	}
+
+	/**
+	 * Schedules {@link #release()} for when the oldest queued datagram may be
+	 * sent.
+	 */
+	private void scheduleRelease(long now) {
+		timer.schedule(releaseTimer, fullAt - tolerance - now, TimeUnit.NANOSECONDS);
+	}
+}
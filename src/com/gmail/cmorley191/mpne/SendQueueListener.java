@@ -0,0 +1,36 @@
+package com.gmail.cmorley191.mpne;
+
+/**
+ * The listener interface for applying backpressure to asynchronous sending.
+ * Notified when the number of messages waiting in an {@link MPNESocket}'s
+ * outbound queue rises to a high-water mark, and again when it falls to half of
+ * it.
+ * 
+ * @author Charlie Morley
+ * @see MPNESocket#setSendQueueListener(SendQueueListener, int)
+ * @see PeerConnection#sendAsync(byte[])
+ */
+public interface SendQueueListener {
+
+	/**
+	 * Called when the socket's outbound queue reaches the high-water mark.
+	 * Called on the thread that queued the message reaching the mark.
+	 * 
+	 * @param socket
+	 *            the socket whose queue is full
+	 * @param depth
+	 *            the number of messages waiting to be sent
+	 */
+	public void sendQueueHigh(MPNESocket socket, int depth);
+
+	/**
+	 * Called when the socket's outbound queue falls to half of the high-water
+	 * mark after having reached it. Called on the socket's sending thread.
+	 * 
+	 * @param socket
+	 *            the socket whose queue has drained
+	 * @param depth
+	 *            the number of messages waiting to be sent
+	 */
+	public void sendQueueDrained(MPNESocket socket, int depth);
+}
@@ -0,0 +1,571 @@
+package com.gmail.cmorley191.mpne;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.gmail.cmorley191.mpne.MPNESocket.SocketPeerConnection;
+
+/**
+ * A stream of snapshots of some state to and from a
+ * {@link SocketPeerConnection}, each sent as the difference from a snapshot
+ * the peer is known to have. Suited to state that is sent repeatedly and
+ * changes little between sends - the positions of a game's objects, for
+ * example - where only the latest snapshot matters.
+ * <p>
+ * The receiver acknowledges the last snapshot it received - on its own
+ * outgoing snapshots, or once per batch of received datagrams if it has none
+ * - and the sender encodes each snapshot against the last acknowledged one,
+ * its baseline: the snapshot is XORed with the baseline, and the runs of
+ * unchanged bytes are left out. A snapshot is sent in full instead while no
+ * baseline is acknowledged, once the baseline is older than the history of
+ * snapshots either end keeps, when the receiver reports it no longer has the
+ * baseline, or when the difference would be no smaller.
+ * <p>
+ * Snapshots are not retransmitted - a lost snapshot is superseded by the
+ * next. Listeners receive each snapshot newer than the last they received,
+ * in full; older snapshots arriving late are discarded. Each snapshot must
+ * fit in one datagram. Sent and received snapshots are kept in fixed rings of
+ * reusable buffers.
+ * <p>
+ * Snapshot channels have ids of their own - a snapshot channel and a
+ * {@link ReliableChannel} may share an id on the same peer.
+ *
+ * @author Charlie Morley
+ *
+ */
+public final class SnapshotChannel implements PeerConnection {
+
+	/**
+	 * The number of bytes a snapshot frame carries before the snapshot - the
+	 * frame header, channel id, sequence number, acknowledgement and baseline.
+	 */
+	static final int OVERHEAD = Frames.HEADER_LENGTH + 1 + 4 + 4 + 4;
+
+	/**
+	 * The length of an acknowledgement frame.
+	 */
+	static final int ACK_LENGTH = Frames.HEADER_LENGTH + 1 + 4;
+
+	/**
+	 * The default number of snapshots kept by each end.
+	 */
+	public static final int DEFAULT_HISTORY = 32;
+
+	/**
+	 * The largest history.
+	 */
+	private static final int MAX_HISTORY = 1 << 14;
+
+	/**
+	 * The peer this channel sends to and receives from.
+	 */
+	private final SocketPeerConnection peer;
+
+	/**
+	 * The id distinguishing this channel from the peer's other snapshot
+	 * channels.
+	 */
+	final byte id;
+
+	/**
+	 * {@code (history) - 1}, for indexing the rings.
+	 */
+	private final int mask;
+
+	/**
+	 * The snapshots sent, grown as needed and reused.
+	 */
+	private final byte[][] sendData;
+
+	/**
+	 * The length of each snapshot in {@link #sendData}.
+	 */
+	private final int[] sendLengths;
+
+	/**
+	 * The sequence number of each snapshot in {@link #sendData}, 0 if none.
+	 */
+	private final int[] sendSequences;
+
+	/**
+	 * The sequence number of the last snapshot sent. Starts at random, so
+	 * that the snapshots and acknowledgements of a channel closed and opened
+	 * again are not mistaken for those of the previous channel.
+	 */
+	private int sendSequence = ThreadLocalRandom.current().nextInt();
+
+	/**
+	 * The sequence number of the last snapshot the peer acknowledged, 0 if
+	 * the next snapshot must be sent in full.
+	 */
+	private int baseline;
+
+	/**
+	 * The snapshots received, grown as needed and reused.
+	 */
+	private final byte[][] receiveData;
+
+	/**
+	 * The length of each snapshot in {@link #receiveData}.
+	 */
+	private final int[] receiveLengths;
+
+	/**
+	 * The sequence number of each snapshot in {@link #receiveData}, 0 if
+	 * none.
+	 */
+	private final int[] receiveSequences;
+
+	/**
+	 * The sequence number of the last snapshot received, 0 if none - or if
+	 * a snapshot could not be decoded since, so that the peer sends the next
+	 * in full.
+	 */
+	private int receiveSequence;
+
+	/**
+	 * The sequence number of the last snapshot delivered to listeners, 0 if
+	 * none.
+	 */
+	private int delivered;
+
+	/**
+	 * Whether snapshots have been received since the last acknowledgement was
+	 * sent.
+	 */
+	private volatile boolean ackPending;
+
+	/**
+	 * The number of snapshots sent in full.
+	 */
+	private long fullSnapshots;
+
+	/**
+	 * The number of snapshots sent as the difference from a baseline.
+	 */
+	private long deltaSnapshots;
+
+	/**
+	 * The number of bytes of snapshots sent, before encoding.
+	 */
+	private long snapshotBytes;
+
+	/**
+	 * The number of bytes of snapshots sent, after encoding.
+	 */
+	private long encodedBytes;
+
+	/**
+	 * Flag set by {@link #close()}.
+	 */
+	private boolean closed;
+
+	/**
+	 * The listeners receiving this channel's snapshots. Never modified - a
+	 * new array replaces the old one when listeners change.
+	 */
+	private volatile ConnectionListener[] listeners = new ConnectionListener[0];
+
+	/**
+	 * Opens a snapshot channel to the peer with the default history.
+	 *
+	 * @param peer
+	 *            the peer to send to and receive from
+	 * @param id
+	 *            the id of the channel, from 0 to 255 - the peer's snapshot
+	 *            channel with the same id receives this channel's snapshots
+	 * @throws IllegalStateException
+	 *             if the peer already has an open snapshot channel with the id
+	 */
+	public SnapshotChannel(SocketPeerConnection peer, int id) {
+		this(peer, id, DEFAULT_HISTORY);
+	}
+
+	/**
+	 * Opens a snapshot channel to the peer. Both ends should use the same
+	 * history, long enough to cover the snapshots sent in a round trip -
+	 * while the last acknowledged snapshot is further back, snapshots are
+	 * sent in full.
+	 *
+	 * @param peer
+	 *            the peer to send to and receive from
+	 * @param id
+	 *            the id of the channel, from 0 to 255 - the peer's snapshot
+	 *            channel with the same id receives this channel's snapshots
+	 * @param history
+	 *            the number of snapshots kept by each end, rounded up to a
+	 *            power of 2
+	 * @throws IllegalArgumentException
+	 *             if {@code id} is not from 0 to 255, or {@code history} is
+	 *             not from 1 to 16384
+	 * @throws IllegalStateException
+	 *             if the peer already has an open snapshot channel with the id
+	 */
+	public SnapshotChannel(SocketPeerConnection peer, int id, int history) {
+		if (id < 0 || id > 255)
+			throw new IllegalArgumentException("id must be from 0 to 255: " + id);
+		if (history < 1 || history > MAX_HISTORY)
+			throw new IllegalArgumentException("history must be from 1 to " + MAX_HISTORY + ": " + history);
+		this.peer = peer;
+		this.id = (byte) id;
+		int size = history == 1 ? 1 : Integer.highestOneBit(history - 1) << 1;
+		mask = size - 1;
+		sendData = new byte[size][];
+		sendLengths = new int[size];
+		sendSequences = new int[size];
+		receiveData = new byte[size][];
+		receiveLengths = new int[size];
+		receiveSequences = new int[size];
+		peer.openSnapshotChannel(this);
+	}
+
+	/**
+	 * Returns the peer this channel sends to and receives from.
+	 *
+	 * @return the peer
+	 */
+	public SocketPeerConnection getPeer() {
+		return peer;
+	}
+
+	/**
+	 * Returns the id of this channel.
+	 *
+	 * @return the id, from 0 to 255
+	 */
+	public int getId() {
+		return id & 0xFF;
+	}
+
+	/**
+	 * Returns the largest snapshot this channel can send - the peer's
+	 * {@link MPNESocket#getMaxDatagramSize(java.net.InetAddress) maximum
+	 * datagram size} less the channel's framing.
+	 *
+	 * @return the largest snapshot in bytes
+	 */
+	public int getMaxSnapshotSize() {
+		return Math.min(peer.maxDatagramSize() - OVERHEAD, 0xFFFF);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The data is sent as the next snapshot, encoded against the last
+	 * snapshot the peer acknowledged if that makes it smaller, and copied
+	 * into this channel's history as a possible baseline for later
+	 * snapshots.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs, the channel is closed, or the data
+	 *             is longer than {@link #getMaxSnapshotSize()}
+	 */
+	@Override
+	public void send(byte[] data) throws IOException {
+		int max = getMaxSnapshotSize();
+		if (data.length > max)
+			throw new IOException("Snapshot too long for a datagram: " + data.length + " bytes");
+		synchronized (this) {
+			if (closed || peer.getSocket().isClosed())
+				throw new IOException("Channel closed");
+			if (++sendSequence == 0)
+				sendSequence = 1;
+			ByteBuffer frame = peer.frameBuffer(OVERHEAD + max);
+			Frames.putHeader(frame, Frames.SNAPSHOT);
+			frame.put(id);
+			frame.putInt(sendSequence);
+			frame.putInt(receiveSequence);
+			ackPending = false;
+			int base = baseline == 0 ? -1 : baseline & mask;
+			if (base >= 0 && (sendSequences[base] != baseline || sendSequence - baseline > mask))
+				base = -1;
+			boolean delta = false;
+			if (base >= 0) {
+				frame.putInt(baseline);
+				delta = putDelta(frame, data, sendData[base], sendLengths[base], OVERHEAD + data.length);
+				if (!delta)
+					frame.position(OVERHEAD - 4);
+			}
+			if (delta)
+				deltaSnapshots++;
+			else {
+				frame.putInt(0);
+				frame.put(data);
+				fullSnapshots++;
+			}
+			frame.flip();
+			snapshotBytes += data.length;
+			encodedBytes += frame.remaining() - OVERHEAD;
+			int slot = sendSequence & mask;
+			if (sendData[slot] == null || sendData[slot].length < data.length)
+				sendData[slot] = new byte[Math.max(data.length, 64)];
+			System.arraycopy(data, 0, sendData[slot], 0, data.length);
+			sendLengths[slot] = data.length;
+			sendSequences[slot] = sendSequence;
+			peer.transmit(frame);
+		}
+	}
+
+	/**
+	 * Writes the snapshot as runs of its XOR with the baseline, unless that
+	 * would take the frame to {@code limit} bytes or more.
+	 *
+	 * @return {@code true} if the runs were written, {@code false} if they
+	 *         would not be shorter than the snapshot itself
+	 */
+	private static boolean putDelta(ByteBuffer out, byte[] data, byte[] base, int baseLength, int limit) {
+		int length = data.length;
+		out.putShort((short) length);
+		int i = 0;
+		while (true) {
+			int unchanged = i;
+			while (i < length && xor(data, base, baseLength, i) == 0)
+				i++;
+			if (i == length)
+				return out.position() < limit;
+			unchanged = i - unchanged;
+			int start = i;
+			// a lone unchanged byte costs less as a literal than as a run
+			while (i < length && (xor(data, base, baseLength, i) != 0
+					|| i + 1 < length && xor(data, base, baseLength, i + 1) != 0))
+				i++;
+			if (out.position() + 10 + (i - start) >= limit)
+				return false;
+			Frames.putVarint(out, unchanged);
+			Frames.putVarint(out, i - start);
+			for (int j = start; j < i; j++)
+				out.put((byte) xor(data, base, baseLength, j));
+		}
+	}
+
+	private static int xor(byte[] data, byte[] base, int baseLength, int i) {
+		return i < baseLength ? data[i] ^ base[i] : data[i];
+	}
+
+	/**
+	 * Called by the peer for each snapshot or acknowledgement frame addressed
+	 * to this channel, in the order received. Delivers the snapshot to the
+	 * listeners if it is newer than the last delivered. An exception thrown
+	 * by a listener is passed to the current thread's uncaught exception
+	 * handler.
+	 *
+	 * @param p
+	 *            the received frame
+	 */
+	void frameReceived(ReceivedPacket p) {
+		int type = p.get(2);
+		int offset = Frames.HEADER_LENGTH + 1;
+		byte[] snapshot = null;
+		synchronized (this) {
+			if (closed)
+				return;
+			if (type == Frames.SNAPSHOT_ACK) {
+				if (p.length >= ACK_LENGTH)
+					baseline = u32(p, offset);
+				return;
+			}
+			if (p.length < OVERHEAD)
+				return;
+			int sequence = u32(p, offset);
+			baseline = u32(p, offset + 4);
+			int baseSequence = u32(p, offset + 8);
+			if (sequence == 0)
+				return;
+			if (delivered != 0 && sequence - delivered <= 0
+					&& (baseSequence != 0 || delivered - sequence <= mask))
+				// late - unless the full snapshot of a channel opened again
+				return;
+			ackPending = true;
+			if (!decode(p, sequence, baseSequence)) {
+				// ask for the next snapshot in full
+				receiveSequence = 0;
+				return;
+			}
+			receiveSequence = delivered = sequence;
+			int slot = sequence & mask;
+			snapshot = Arrays.copyOf(receiveData[slot], receiveLengths[slot]);
+		}
+		for (ConnectionListener l : listeners)
+			try {
+				l.dataReceived(snapshot);
+			} catch (RuntimeException e) {
+				Thread thread = Thread.currentThread();
+				thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+			}
+	}
+
+	private static int u16(ReceivedPacket p, int offset) {
+		return ((p.get(offset) & 0xFF) << 8) | (p.get(offset + 1) & 0xFF);
+	}
+
+	private static int u32(ReceivedPacket p, int offset) {
+		return (u16(p, offset) << 16) | u16(p, offset + 2);
+	}
+
+	/**
+	 * Decodes a received snapshot into the receive history. Must be called
+	 * while synchronized.
+	 *
+	 * @return {@code false} if the snapshot is malformed, or its baseline is
+	 *         no longer in the history
+	 */
+	private boolean decode(ReceivedPacket p, int sequence, int baseSequence) {
+		int slot = sequence & mask;
+		int offset = OVERHEAD;
+		if (baseSequence == 0) {
+			int length = p.length - offset;
+			byte[] out = receiveBuffer(slot, length);
+			for (int i = 0; i < length; i++)
+				out[i] = p.get(offset + i);
+			receiveLengths[slot] = length;
+			receiveSequences[slot] = sequence;
+			return true;
+		}
+		int base = baseSequence & mask;
+		int ahead = sequence - baseSequence;
+		if (ahead <= 0 || ahead > mask || receiveSequences[base] != baseSequence || p.length < offset + 2)
+			return false;
+		byte[] baseData = receiveData[base];
+		int baseLength = receiveLengths[base];
+		int length = u16(p, offset);
+		offset += 2;
+		byte[] out = receiveBuffer(slot, length);
+		int i = 0;
+		while (offset < p.length) {
+			int unchanged = 0, literal = 0;
+			for (int shift = 0;; shift += 7) {
+				if (offset == p.length || shift > 28)
+					return false;
+				byte b = p.get(offset++);
+				unchanged |= (b & 0x7F) << shift;
+				if (b >= 0)
+					break;
+			}
+			for (int shift = 0;; shift += 7) {
+				if (offset == p.length || shift > 28)
+					return false;
+				byte b = p.get(offset++);
+				literal |= (b & 0x7F) << shift;
+				if (b >= 0)
+					break;
+			}
+			if (unchanged < 0 || literal < 0 || unchanged > length - i || literal > length - i - unchanged
+					|| literal > p.length - offset)
+				return false;
+			for (int end = i + unchanged; i < end; i++)
+				out[i] = i < baseLength ? baseData[i] : 0;
+			for (int end = i + literal; i < end; i++)
+				out[i] = (byte) (p.get(offset++) ^ (i < baseLength ? baseData[i] : 0));
+		}
+		for (; i < length; i++)
+			out[i] = i < baseLength ? baseData[i] : 0;
+		receiveLengths[slot] = length;
+		receiveSequences[slot] = sequence;
+		return true;
+	}
+
+	/**
+	 * Returns the buffer of a slot of the receive history, grown to hold at
+	 * least {@code length} bytes. Must be called while synchronized.
+	 */
+	private byte[] receiveBuffer(int slot, int length) {
+		// the slot no longer holds its previous snapshot, even if decoding fails
+		receiveSequences[slot] = 0;
+		if (receiveData[slot] == null || receiveData[slot].length < length)
+			receiveData[slot] = new byte[Math.max(length, 64)];
+		return receiveData[slot];
+	}
+
+	/**
+	 * Called by the peer once it has distributed a batch of received data -
+	 * sends an acknowledgement frame if snapshots were received that no
+	 * outgoing snapshot has acknowledged.
+	 */
+	void flushAck() {
+		if (!ackPending)
+			return;
+		synchronized (this) {
+			if (!ackPending || closed)
+				return;
+			ByteBuffer frame = peer.frameBuffer(ACK_LENGTH);
+			Frames.putHeader(frame, Frames.SNAPSHOT_ACK);
+			frame.put(id);
+			frame.putInt(receiveSequence);
+			frame.flip();
+			ackPending = false;
+			try {
+				peer.transmit(frame);
+			} catch (IOException e) {
+				// the next snapshot received is acknowledged again
+			}
+		}
+	}
+
+	@Override
+	public synchronized void addConnectionListener(ConnectionListener l) {
+		for (ConnectionListener existing : listeners)
+			if (existing == l)
+				return;
+		ConnectionListener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+		updated[listeners.length] = l;
+		listeners = updated;
+	}
+
+	@Override
+	public synchronized void removeConnectionListener(ConnectionListener l) {
+		for (int i = 0; i < listeners.length; i++)
+			if (listeners[i] == l) {
+				ConnectionListener[] updated = new ConnectionListener[listeners.length - 1];
+				System.arraycopy(listeners, 0, updated, 0, i);
+				System.arraycopy(listeners, i + 1, updated, i, updated.length - i);
+				listeners = updated;
+				return;
+			}
+	}
+
+	/**
+	 * Returns the number of snapshots sent in full.
+	 *
+	 * @return the number of full snapshots since the channel was opened
+	 */
+	public synchronized long getFullSnapshotCount() {
+		return fullSnapshots;
+	}
+
+	/**
+	 * Returns the number of snapshots sent as the difference from a
+	 * baseline.
+	 *
+	 * @return the number of delta snapshots since the channel was opened
+	 */
+	public synchronized long getDeltaSnapshotCount() {
+		return deltaSnapshots;
+	}
+
+	/**
+	 * Returns the size of the snapshots sent after encoding, relative to
+	 * their size before - the fraction of the bandwidth this channel uses
+	 * compared to sending every snapshot in full, not counting framing.
+	 *
+	 * @return the compression ratio, 1 if no snapshots have been sent
+	 */
+	public synchronized double getCompressionRatio() {
+		return snapshotBytes == 0 ? 1 : (double) encodedBytes / snapshotBytes;
+	}
+
+	/**
+	 * Closes this channel. Snapshots received on this channel's id are
+	 * discarded. The id may then be used by a new snapshot channel, which
+	 * starts with full snapshots.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		peer.closeSnapshotChannel(this);
+	}
+}
@@ -0,0 +1,420 @@
+package com.gmail.cmorley191.mpne;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hierarchical timer wheel, running the timeouts of a socket's peers and
+ * listeners on the socket's own receiving thread or event loop - see
+ * {@link MPNESocket#getTimerWheel()}. Retransmission, pacing, keepalives and
+ * idle peer eviction can each keep a timeout per peer, for thousands of
+ * peers, without a thread or scheduled executor task each.
+ * <p>
+ * Timeouts are kept in four levels of 256 slots. The first level has a slot
+ * per tick, each further level a slot per turn of the level below, so the
+ * wheel reaches about 50 days ahead at the default tick of 1 millisecond.
+ * Each slot is a doubly linked list, so scheduling and cancelling take
+ * constant time however many timeouts are pending, and a {@link Timeout} is
+ * reused rather than allocating a task per scheduling. As each slot of an
+ * upper level comes due, its timeouts move down to the levels below.
+ * <p>
+ * Timeouts run up to one tick late, on the thread driving the wheel, which
+ * receives no data while they run - so they must be quick, and hand longer
+ * work to another thread. Each level keeps a bitmap of its occupied slots, so
+ * the driving thread sleeps until the next timeout expires or the next
+ * occupied upper slot comes due, rather than waking every tick.
+ *
+ * @author Charlie Morley
+ *
+ */
+public final class TimerWheel {
+
+	/**
+	 * The base 2 logarithm of the number of slots in each level.
+	 */
+	private static final int SLOT_BITS = 8;
+
+	/**
+	 * The number of slots in each level.
+	 */
+	private static final int SLOTS = 1 << SLOT_BITS;
+
+	/**
+	 * The number of levels.
+	 */
+	private static final int LEVELS = 4;
+
+	/**
+	 * A reusable task for a {@link TimerWheel}. A timeout may be scheduled
+	 * any number of times, but only on one wheel.
+	 *
+	 * @author Charlie Morley
+	 *
+	 */
+	public static final class Timeout {
+
+		/**
+		 * The task run when the timeout expires.
+		 */
+		private final Runnable task;
+
+		/**
+		 * The wheel the timeout was first scheduled on, {@code null} if none.
+		 */
+		private TimerWheel wheel;
+
+		/**
+		 * The tick at which the timeout expires. Only accessed while
+		 * synchronized on the wheel.
+		 */
+		private long tick;
+
+		/**
+		 * The level of the slot holding the timeout, {@link #LEVELS} if it is
+		 * beyond the last level. Only accessed while synchronized on the
+		 * wheel.
+		 */
+		private int level;
+
+		/**
+		 * The neighbours of the timeout in its slot, {@code null} if it is not
+		 * scheduled. Only accessed while synchronized on the wheel.
+		 */
+		private Timeout previous, next;
+
+		/**
+		 * Constructs a timeout running the task.
+		 *
+		 * @param task
+		 *            the task to run on the wheel's driving thread each time
+		 *            the timeout expires
+		 */
+		public Timeout(Runnable task) {
+			this.task = task;
+		}
+	}
+
+	/**
+	 * The length of a tick in nanoseconds.
+	 */
+	private final long tickNanos;
+
+	/**
+	 * The {@link System#nanoTime()} of tick 0.
+	 */
+	private final long start = System.nanoTime();
+
+	/**
+	 * The sentinel heading each slot's list, by level.
+	 */
+	private final Timeout[][] slots = new Timeout[LEVELS][SLOTS];
+
+	/**
+	 * The sentinel heading the list of timeouts beyond the last level.
+	 */
+	private final Timeout overflow = sentinel();
+
+	/**
+	 * A bit for each non-empty slot, by level.
+	 */
+	private final long[][] occupied = new long[LEVELS][SLOTS / 64];
+
+	/**
+	 * The number of scheduled timeouts beyond the last level.
+	 */
+	private int overflowCount;
+
+	/**
+	 * The last tick whose timeouts have been expired.
+	 */
+	private long currentTick;
+
+	/**
+	 * The tick the driving thread will next wake at by itself,
+	 * {@link Long#MAX_VALUE} if it waits for {@link #wakeup}.
+	 */
+	private long wakeTick = Long.MAX_VALUE;
+
+	/**
+	 * Wakes the driving thread, for a timeout due before {@link #wakeTick}.
+	 */
+	private final Runnable wakeup;
+
+	/**
+	 * Flag set by {@link #close()}.
+	 */
+	private boolean closed;
+
+	/**
+	 * The timeouts being run by {@link #advance()}, reused.
+	 */
+	private final ArrayList<Timeout> expired = new ArrayList<Timeout>();
+
+	/**
+	 * Constructs a wheel.
+	 *
+	 * @param tick
+	 *            the length of a tick
+	 * @param unit
+	 *            the unit of {@code tick}
+	 * @param wakeup
+	 *            the task waking the driving thread to {@link #advance()}
+	 *            sooner than it planned
+	 */
+	TimerWheel(long tick, TimeUnit unit, Runnable wakeup) {
+		tickNanos = Math.max(unit.toNanos(tick), 1);
+		this.wakeup = wakeup;
+		for (int level = 0; level < LEVELS; level++)
+			for (int i = 0; i < SLOTS; i++)
+				slots[level][i] = sentinel();
+	}
+
+	private static Timeout sentinel() {
+		Timeout sentinel = new Timeout(null);
+		sentinel.previous = sentinel.next = sentinel;
+		return sentinel;
+	}
+
+	/**
+	 * Returns the length of a tick - the precision of the wheel.
+	 *
+	 * @param unit
+	 *            the unit of the returned length
+	 * @return the tick length
+	 */
+	public long getTick(TimeUnit unit) {
+		return unit.convert(tickNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Schedules the timeout to expire after the delay, replacing its previous
+	 * schedule if it is already scheduled. Does nothing once the wheel's
+	 * socket is closed.
+	 *
+	 * @param timeout
+	 *            the timeout to schedule
+	 * @param delay
+	 *            the delay, rounded up to a whole number of ticks
+	 * @param unit
+	 *            the unit of {@code delay}
+	 * @throws IllegalArgumentException
+	 *             if the timeout has been scheduled on another wheel
+	 */
+	public void schedule(Timeout timeout, long delay, TimeUnit unit) {
+		long nanos = Math.max(unit.toNanos(delay), 0);
+		boolean wake;
+		synchronized (this) {
+			if (timeout.wheel != this) {
+				if (timeout.wheel != null)
+					throw new IllegalArgumentException("Timeout belongs to another wheel");
+				timeout.wheel = this;
+			}
+			if (closed)
+				return;
+			if (timeout.next != null)
+				unlink(timeout);
+			long tick = (System.nanoTime() - start + nanos + tickNanos - 1) / tickNanos;
+			timeout.tick = Math.max(tick, currentTick + 1);
+			place(timeout);
+			wake = timeout.tick < wakeTick;
+			if (wake)
+				wakeTick = timeout.tick;
+		}
+		if (wake)
+			wakeup.run();
+	}
+
+	/**
+	 * Cancels the timeout if it is scheduled.
+	 *
+	 * @param timeout
+	 *            the timeout to cancel
+	 * @return {@code true} if the timeout was scheduled
+	 */
+	public synchronized boolean cancel(Timeout timeout) {
+		if (timeout.wheel != this || timeout.next == null)
+			return false;
+		unlink(timeout);
+		return true;
+	}
+
+	/**
+	 * Returns whether the timeout is scheduled and has not yet expired.
+	 *
+	 * @param timeout
+	 *            the timeout
+	 * @return {@code true} if the timeout is scheduled
+	 */
+	public synchronized boolean isScheduled(Timeout timeout) {
+		return timeout.wheel == this && timeout.next != null;
+	}
+
+	/**
+	 * Links the timeout into the slot of the lowest level whose current turn
+	 * includes its tick. Must be called while synchronized.
+	 */
+	private void place(Timeout timeout) {
+		Timeout sentinel = overflow;
+		timeout.level = LEVELS;
+		for (int level = 0; level < LEVELS; level++) {
+			int shift = SLOT_BITS * (level + 1);
+			if (timeout.tick >>> shift == currentTick >>> shift) {
+				int index = slotIndex(timeout.tick, level);
+				sentinel = slots[level][index];
+				occupied[level][index >>> 6] |= 1L << index;
+				timeout.level = level;
+				break;
+			}
+		}
+		if (timeout.level == LEVELS)
+			overflowCount++;
+		timeout.previous = sentinel.previous;
+		timeout.next = sentinel;
+		sentinel.previous.next = timeout;
+		sentinel.previous = timeout;
+	}
+
+	private void unlink(Timeout timeout) {
+		// both neighbours are the sentinel if the timeout is alone in its slot
+		boolean emptied = timeout.previous == timeout.next;
+		timeout.previous.next = timeout.next;
+		timeout.next.previous = timeout.previous;
+		timeout.previous = timeout.next = null;
+		if (timeout.level == LEVELS)
+			overflowCount--;
+		else if (emptied) {
+			int index = slotIndex(timeout.tick, timeout.level);
+			occupied[timeout.level][index >>> 6] &= ~(1L << index);
+		}
+	}
+
+	/**
+	 * Returns the index of the slot of the level that holds the tick.
+	 */
+	private static int slotIndex(long tick, int level) {
+		return (int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+	}
+
+	/**
+	 * Returns the first occupied slot of the level from the index on, -1 if
+	 * there is none. Must be called while synchronized.
+	 */
+	private int nextOccupied(int level, int from) {
+		long[] bits = occupied[level];
+		for (int word = from >>> 6; word < bits.length; word++) {
+			long b = bits[word];
+			if (word == from >>> 6)
+				b &= -1L << from;
+			if (b != 0)
+				return (word << 6) | Long.numberOfTrailingZeros(b);
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the next tick at which {@link #tick()} has work to do - the tick
+	 * of the first timeout in the first level, or else the tick at which the
+	 * first occupied slot of an upper level cascades - {@link Long#MAX_VALUE}
+	 * if no timeouts are scheduled. Must be called while synchronized.
+	 */
+	private long nextTick() {
+		for (int level = 0; level < LEVELS; level++) {
+			// every slot of this level from the current one back belongs to
+			// the levels below
+			int index = nextOccupied(level, slotIndex(currentTick, level) + 1);
+			if (index >= 0) {
+				int shift = SLOT_BITS * (level + 1);
+				return ((currentTick >>> shift) << shift) | ((long) index << (SLOT_BITS * level));
+			}
+		}
+		if (overflowCount > 0)
+			return ((currentTick >>> (SLOT_BITS * LEVELS)) + 1) << (SLOT_BITS * LEVELS);
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Called by the driving thread - runs the timeouts due, then returns how
+	 * long the thread may wait before calling again.
+	 *
+	 * @return the time to wait in nanoseconds, or -1 to wait until woken
+	 */
+	long advance() {
+		synchronized (this) {
+			if (closed)
+				return -1;
+			long now = (System.nanoTime() - start) / tickNanos;
+			while (currentTick < now) {
+				long next = nextTick();
+				if (next > now) {
+					// nothing to expire or cascade in the ticks between
+					currentTick = now;
+					break;
+				}
+				currentTick = next - 1;
+				tick();
+			}
+		}
+		for (int i = 0; i < expired.size(); i++)
+			try {
+				expired.get(i).task.run();
+			} catch (RuntimeException e) {
+				Thread thread = Thread.currentThread();
+				thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+			}
+		expired.clear();
+		synchronized (this) {
+			long now = System.nanoTime() - start;
+			wakeTick = nextTick();
+			if (wakeTick == Long.MAX_VALUE)
+				return -1;
+			return Math.max(wakeTick * tickNanos - now, 0);
+		}
+	}
+
+	/**
+	 * Advances one tick - moves the timeouts of each upper level slot coming
+	 * due down, then moves the timeouts of the tick to {@link #expired}. Must
+	 * be called while synchronized.
+	 */
+	private void tick() {
+		currentTick++;
+		if ((currentTick & 0xFFFFFFFFL) == 0) {
+			overflowCount = 0;
+			cascade(overflow);
+		}
+		for (int level = LEVELS - 1; level > 0; level--)
+			if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+				int index = slotIndex(currentTick, level);
+				occupied[level][index >>> 6] &= ~(1L << index);
+				cascade(slots[level][index]);
+			}
+		Timeout sentinel = slots[0][slotIndex(currentTick, 0)];
+		while (sentinel.next != sentinel) {
+			Timeout timeout = sentinel.next;
+			unlink(timeout);
+			expired.add(timeout);
+		}
+	}
+
+	/**
+	 * Moves every timeout of the slot, whose occupancy has been cleared, to
+	 * the level its tick now falls in.
+	 */
+	private void cascade(Timeout sentinel) {
+		Timeout timeout = sentinel.next;
+		sentinel.previous = sentinel.next = sentinel;
+		while (timeout != sentinel) {
+			Timeout next = timeout.next;
+			place(timeout);
+			timeout = next;
+		}
+	}
+
+	/**
+	 * Stops the wheel. Pending timeouts never run, and later scheduling is
+	 * ignored.
+	 */
+	synchronized void close() {
+		closed = true;
+	}
+}
@@ -0,0 +1,105 @@
+package com.gmail.cmorley191.mpne;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link HeaderKey} equality and hashing - by value, for packed and
+ * unpacked lengths - and its copying of the header bytes.
+ *
+ * @author Charlie Morley
+ *
+ */
+public class HeaderKeyTest {
+
+	@Test
+	public void equalBytesMakeEqualKeys() {
+		Random random = new Random(8);
+		for (int length = 0; length <= 20; length++) {
+			byte[] bytes = new byte[length];
+			random.nextBytes(bytes);
+			HeaderKey a = HeaderKey.of(bytes), b = HeaderKey.of(bytes.clone());
+			assertEquals(a, b);
+			assertEquals(a.hashCode(), b.hashCode());
+			assertEquals(length, a.length());
+		}
+	}
+
+	@Test
+	public void differentBytesMakeDifferentKeys() {
+		Random random = new Random(9);
+		for (int length = 1; length <= 20; length++) {
+			byte[] bytes = new byte[length];
+			random.nextBytes(bytes);
+			for (int i = 0; i < length; i++) {
+				byte[] changed = bytes.clone();
+				changed[i] ^= 0x80;
+				assertFalse(HeaderKey.of(bytes).equals(HeaderKey.of(changed)));
+			}
+		}
+		assertFalse(HeaderKey.of(new byte[] { 1 }).equals(new byte[] { 1 }));
+		assertFalse(HeaderKey.of(new byte[] { 1 }).equals(null));
+	}
+
+	@Test
+	public void leadingZeroBytesAreNotIgnored() {
+		// these pack to the same long, and differ only in length
+		HeaderKey one = HeaderKey.of(new byte[] { 1 });
+		HeaderKey zeroOne = HeaderKey.of(new byte[] { 0, 1 });
+		HeaderKey zeros = HeaderKey.of(new byte[] { 0, 0, 0, 0, 0, 0, 0, 0, 1 });
+		assertFalse(one.equals(zeroOne));
+		assertFalse(zeroOne.equals(one));
+		assertFalse(zeroOne.equals(zeros));
+		assertFalse(HeaderKey.of(new byte[] { 0 }).equals(HeaderKey.EMPTY));
+		Set<HeaderKey> set = new HashSet<HeaderKey>();
+		set.add(one);
+		set.add(zeroOne);
+		set.add(zeros);
+		set.add(HeaderKey.of(new byte[] { 0 }));
+		set.add(HeaderKey.EMPTY);
+		assertEquals(5, set.size());
+	}
+
+	@Test
+	public void worksAsAHashMapKey() {
+		Map<HeaderKey, Integer> map = new HashMap<HeaderKey, Integer>();
+		for (int i = 0; i < 1000; i++)
+			map.put(HeaderKey.of(Integer.toString(i).getBytes()), i);
+		map.put(HeaderKey.of("a header longer than eight bytes".getBytes()), -1);
+		for (int i = 0; i < 1000; i++)
+			assertEquals(Integer.valueOf(i), map.get(HeaderKey.of(Integer.toString(i).getBytes())));
+		assertEquals(Integer.valueOf(-1), map.get(HeaderKey.of("a header longer than eight bytes".getBytes())));
+		assertEquals(null, map.get(HeaderKey.of("a header longer than eight bytez".getBytes())));
+	}
+
+	@Test
+	public void copiesTheHeaderBytes() {
+		byte[] bytes = { 1, 2, 3 };
+		HeaderKey key = HeaderKey.of(bytes);
+		bytes[0] = 9;
+		assertArrayEquals(new byte[] { 1, 2, 3 }, key.toByteArray());
+		key.toByteArray()[1] = 9;
+		assertArrayEquals(new byte[] { 1, 2, 3 }, key.toByteArray());
+		assertEquals(HeaderKey.of(new byte[] { 1, 2, 3 }), key);
+		assertNotSame(key.toByteArray(), key.toByteArray());
+	}
+
+	@Test
+	public void sharesTheEmptyKeyAndFormatsAsHex() {
+		assertSame(HeaderKey.EMPTY, HeaderKey.of(new byte[0]));
+		assertEquals(0, HeaderKey.EMPTY.length());
+		assertEquals("", HeaderKey.EMPTY.toString());
+		assertEquals("4a6f00ff", HeaderKey.of(new byte[] { 0x4a, 0x6f, 0, (byte) 0xff }).toString());
+	}
+}
@@ -0,0 +1,152 @@
+package com.gmail.cmorley191.mpne;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link HeaderTrie} prefix routing, copy-on-write updates and
+ * removal.
+ *
+ * @author Charlie Morley
+ *
+ */
+public class HeaderTrieTest {
+
+	private static byte[] bytes(String s) {
+		return s.getBytes();
+	}
+
+	/**
+	 * Returns the values of every header prefixing the data, shortest first,
+	 * walking the trie as a socket routes a packet.
+	 */
+	private static <V> List<V> route(HeaderTrie<V> trie, byte[] data) {
+		List<V> values = new ArrayList<V>();
+		HeaderTrie.Node<V> node = trie.root();
+		int i = 0;
+		while (node != null) {
+			if (node.value != null)
+				values.add(node.value);
+			node = i < data.length ? node.child(data[i++]) : null;
+		}
+		return values;
+	}
+
+	@Test
+	public void routesDataToEveryPrefixingHeader() {
+		HeaderTrie<String> trie = new HeaderTrie<String>();
+		for (String header : new String[] { "", "a", "ab", "abc", "b", "abd" })
+			trie = trie.with(bytes(header), "<" + header + ">");
+		assertEquals(Arrays.asList("<>", "<a>", "<ab>", "<abc>"), route(trie, bytes("abcd")));
+		assertEquals(Arrays.asList("<>", "<a>", "<ab>"), route(trie, bytes("abx")));
+		assertEquals(Arrays.asList("<>", "<b>"), route(trie, bytes("b")));
+		assertEquals(Arrays.asList("<>"), route(trie, bytes("c")));
+		assertEquals(Arrays.asList("<>"), route(trie, new byte[0]));
+		assertEquals("<abd>", trie.get(bytes("abd")));
+		assertNull(trie.get(bytes("abcd")));
+		assertNull(trie.get(bytes("ac")));
+	}
+
+	@Test
+	public void updatesLeaveEarlierTriesUnchanged() {
+		HeaderTrie<Integer> empty = new HeaderTrie<Integer>();
+		HeaderTrie<Integer> one = empty.with(bytes("a"), 1);
+		HeaderTrie<Integer> two = one.with(bytes("ab"), 2);
+		HeaderTrie<Integer> replaced = two.with(bytes("a"), 3);
+		HeaderTrie<Integer> removed = replaced.with(bytes("ab"), null);
+		assertTrue(empty.isEmpty());
+		assertEquals(Integer.valueOf(1), one.get(bytes("a")));
+		assertNull(one.get(bytes("ab")));
+		assertEquals(Integer.valueOf(1), two.get(bytes("a")));
+		assertEquals(Integer.valueOf(2), two.get(bytes("ab")));
+		assertEquals(Integer.valueOf(3), replaced.get(bytes("a")));
+		assertEquals(Integer.valueOf(2), replaced.get(bytes("ab")));
+		assertEquals(Integer.valueOf(3), removed.get(bytes("a")));
+		assertNull(removed.get(bytes("ab")));
+		assertEquals(Arrays.asList(3, 2), route(replaced, bytes("abc")));
+		assertEquals(Arrays.asList(1, 2), route(two, bytes("abc")));
+	}
+
+	@Test
+	public void removalPrunesEmptyNodes() {
+		HeaderTrie<String> trie = new HeaderTrie<String>().with(bytes("abc"), "abc").with(bytes("ab"), "ab");
+		// removing a header that is only a path to others keeps them
+		HeaderTrie<String> same = trie.with(bytes("a"), null);
+		assertEquals("abc", same.get(bytes("abc")));
+		assertEquals("ab", same.get(bytes("ab")));
+		trie = trie.with(bytes("abc"), null);
+		assertNull(trie.root().child((byte) 'a').child((byte) 'b').child((byte) 'c'));
+		assertEquals("ab", trie.get(bytes("ab")));
+		trie = trie.with(bytes("ab"), null);
+		assertTrue(trie.isEmpty());
+		assertNull(trie.root().child((byte) 'a'));
+		// removing from an empty trie
+		assertTrue(trie.with(bytes("xyz"), null).isEmpty());
+		assertTrue(new HeaderTrie<String>().with(new byte[0], "all").with(new byte[0], null).isEmpty());
+	}
+
+	@Test
+	public void findsChildrenAmongEveryByteValue() {
+		// more children than are scanned linearly, including negative bytes
+		HeaderTrie<Integer> trie = new HeaderTrie<Integer>();
+		Random random = new Random(7);
+		List<Integer> order = new ArrayList<Integer>();
+		for (int b = 0; b < 256; b++)
+			order.add(b);
+		Collections.shuffle(order, random);
+		for (int b : order)
+			trie = trie.with(new byte[] { 1, (byte) b }, b);
+		for (int b = 0; b < 256; b++)
+			assertEquals(Integer.valueOf(b), trie.get(new byte[] { 1, (byte) b }));
+		for (int b = 1; b < 256; b += 2)
+			trie = trie.with(new byte[] { 1, (byte) b }, null);
+		for (int b = 0; b < 256; b++) {
+			Integer expected = b % 2 == 0 ? Integer.valueOf(b) : null;
+			assertEquals(expected, trie.get(new byte[] { 1, (byte) b }));
+			assertEquals(expected == null ? 0 : 1, route(trie, new byte[] { 1, (byte) b, 9 }).size());
+		}
+		// and as few as are scanned linearly
+		for (int b = 0; b < 256; b += 2)
+			if (b != 128 && b != 254)
+				trie = trie.with(new byte[] { 1, (byte) b }, null);
+		assertEquals(Integer.valueOf(128), trie.get(new byte[] { 1, (byte) 128 }));
+		assertEquals(Integer.valueOf(254), trie.get(new byte[] { 1, (byte) 254 }));
+		assertNull(trie.get(new byte[] { 1, 0 }));
+		assertNull(trie.get(new byte[] { 1, 127 }));
+	}
+
+	@Test
+	public void matchesAReferenceMapUnderRandomUpdates() {
+		Random random = new Random(11);
+		HeaderTrie<Integer> trie = new HeaderTrie<Integer>();
+		Map<HeaderKey, Integer> expected = new HashMap<HeaderKey, Integer>();
+		for (int op = 0; op < 20000; op++) {
+			byte[] header = new byte[random.nextInt(4)];
+			for (int i = 0; i < header.length; i++)
+				header[i] = (byte) (random.nextInt(5) - 2);
+			Integer value = random.nextInt(3) == 0 ? null : Integer.valueOf(op);
+			trie = trie.with(header, value);
+			if (value == null)
+				expected.remove(HeaderKey.of(header));
+			else
+				expected.put(HeaderKey.of(header), value);
+			assertEquals(expected.get(HeaderKey.of(header)), trie.get(header));
+			assertEquals(expected.isEmpty(), trie.isEmpty());
+		}
+		for (Map.Entry<HeaderKey, Integer> entry : expected.entrySet())
+			assertEquals(entry.getValue(), trie.get(entry.getKey().toByteArray()));
+		assertFalse(trie.isEmpty());
+	}
+}
@@ -0,0 +1,211 @@
+package com.gmail.cmorley191.mpne;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link LZ4Codec} round trips - through heap and direct buffers, with
+ * and without a dictionary - and that malformed input is rejected rather
+ * than decoded past its end.
+ *
+ * @author Charlie Morley
+ *
+ */
+public class LZ4CodecTest {
+
+	private final Random random = new Random(24);
+
+	private final LZ4Codec codec = new LZ4Codec(1);
+
+	private byte[] randomBytes(int length) {
+		byte[] data = new byte[length];
+		random.nextBytes(data);
+		return data;
+	}
+
+	private static ByteBuffer buffer(int capacity, boolean direct) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * Compresses the data from a position other than 0 of a heap or direct
+	 * buffer, checking that the source is left unchanged.
+	 */
+	private static byte[] compress(PayloadCodec codec, byte[] data, boolean direct) {
+		ByteBuffer src = buffer(data.length + 3, direct);
+		src.position(3);
+		src.put(data).position(3);
+		ByteBuffer dst = buffer(codec.maxCompressedLength(data.length) + 2, direct);
+		dst.position(2);
+		codec.compress(src, dst);
+		assertEquals(3, src.position());
+		assertTrue(dst.position() - 2 <= codec.maxCompressedLength(data.length));
+		byte[] compressed = new byte[dst.position() - 2];
+		dst.position(2);
+		dst.get(compressed);
+		return compressed;
+	}
+
+	/**
+	 * Decompresses into a heap or direct buffer with exactly {@code length}
+	 * bytes remaining, returning {@code null} if the codec rejects the data.
+	 */
+	private static byte[] decompress(PayloadCodec codec, byte[] compressed, int length, boolean direct) {
+		ByteBuffer src = buffer(compressed.length + 1, direct);
+		src.position(1);
+		src.put(compressed).position(1);
+		ByteBuffer dst = buffer(length + 4, direct);
+		dst.position(1).limit(1 + length);
+		if (!codec.decompress(src, dst))
+			return null;
+		assertEquals(dst.limit(), dst.position());
+		byte[] data = new byte[length];
+		dst.position(1);
+		dst.get(data);
+		return data;
+	}
+
+	/**
+	 * Round trips the data through heap and direct buffers, returning the
+	 * compressed length.
+	 */
+	private static int roundTrip(PayloadCodec codec, byte[] data) {
+		byte[] compressed = compress(codec, data, false);
+		assertArrayEquals(compressed, compress(codec, data, true));
+		assertArrayEquals(data, decompress(codec, compressed, data.length, false));
+		assertArrayEquals(data, decompress(codec, compressed, data.length, true));
+		return compressed.length;
+	}
+
+	@Test
+	public void roundTripsEmptyMessages() {
+		assertEquals(1, roundTrip(codec, new byte[0]));
+	}
+
+	@Test
+	public void storesShortMessagesAsLiterals() {
+		byte[] same = new byte[12];
+		for (int length = 1; length <= 12; length++) {
+			// too short for a back-reference, however repetitive
+			assertEquals(1 + length, roundTrip(codec, Arrays.copyOf(same, length)));
+			assertEquals(1 + length, roundTrip(codec, randomBytes(length)));
+		}
+	}
+
+	@Test
+	public void roundTripsIncompressibleMessages() {
+		for (int length : new int[] { 13, 14, 15, 16, 100, 270, 1400, 70000 }) {
+			byte[] data = randomBytes(length);
+			assertTrue(roundTrip(codec, data) <= codec.maxCompressedLength(length));
+		}
+	}
+
+	@Test
+	public void compressesRepetitiveMessages() {
+		byte[] zeros = new byte[1400];
+		assertTrue(roundTrip(codec, zeros) < 20);
+		byte[] records = new byte[1400];
+		byte[] record = randomBytes(20);
+		for (int i = 0; i < records.length; i++)
+			records[i] = record[i % record.length];
+		assertTrue(roundTrip(codec, records) < 50);
+		// a long run, then enough random data to push back-references apart
+		byte[] mixed = new byte[100000];
+		System.arraycopy(records, 0, mixed, 0, records.length);
+		System.arraycopy(randomBytes(70000), 0, mixed, records.length, 70000);
+		System.arraycopy(records, 0, mixed, mixed.length - records.length, records.length);
+		assertTrue(roundTrip(codec, mixed) < 72000);
+	}
+
+	@Test
+	public void decodesOverlappingMatches() {
+		// "ab" then a back-reference 2 bytes back, 14 long
+		byte[] block = { (byte) ((2 << 4) | (14 - 4)), 'a', 'b', 2, 0 };
+		byte[] expected = "abababababababab".getBytes();
+		assertArrayEquals(expected, decompress(codec, block, expected.length, false));
+		assertArrayEquals(expected, decompress(codec, block, expected.length, true));
+		// and as the compressor writes them, for each short period
+		for (int period = 1; period <= 8; period++) {
+			byte[] data = new byte[300];
+			byte[] pattern = randomBytes(period);
+			for (int i = 0; i < data.length; i++)
+				data[i] = pattern[i % period];
+			assertTrue(roundTrip(codec, data) < 40);
+		}
+	}
+
+	@Test
+	public void matchesRunFromTheDictionaryIntoTheMessage() {
+		byte[] dictionary = randomBytes(500);
+		LZ4Codec dictionaryCodec = new LZ4Codec(2, dictionary);
+		// the dictionary's last bytes, repeated - one back-reference to the
+		// end of the dictionary that runs on through the message itself
+		byte[] tail = Arrays.copyOfRange(dictionary, dictionary.length - 16, dictionary.length);
+		byte[] data = new byte[600];
+		for (int i = 0; i < data.length; i++)
+			data[i] = tail[i % tail.length];
+		int length = roundTrip(dictionaryCodec, data);
+		assertTrue(length < 20);
+		// without the dictionary, the back-reference reaches before the start
+		assertEquals(null, decompress(codec, compress(dictionaryCodec, data, false), data.length, false));
+		// references within the dictionary, between literals
+		byte[] message = new byte[300];
+		System.arraycopy(randomBytes(40), 0, message, 0, 40);
+		System.arraycopy(dictionary, 100, message, 40, 200);
+		System.arraycopy(randomBytes(60), 0, message, 240, 60);
+		assertTrue(roundTrip(dictionaryCodec, message) < 120);
+		// a dictionary longer than the largest keeps its end
+		byte[] large = randomBytes(LZ4Codec.MAX_DICTIONARY_SIZE + 1000);
+		System.arraycopy(dictionary, 0, large, large.length - dictionary.length, dictionary.length);
+		assertTrue(roundTrip(new LZ4Codec(3, large), data) < 20);
+	}
+
+	@Test
+	public void rejectsTruncatedInput() {
+		byte[] data = new byte[1000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i % 7 == 0 ? random.nextInt() : i / 50);
+		byte[] compressed = compress(codec, data, false);
+		for (int length = 0; length < compressed.length; length++) {
+			byte[] truncated = Arrays.copyOf(compressed, length);
+			assertEquals(null, decompress(codec, truncated, data.length, false));
+			assertEquals(null, decompress(codec, truncated, data.length, true));
+		}
+		// the right data for the wrong length
+		assertEquals(null, decompress(codec, compressed, data.length - 1, false));
+		assertEquals(null, decompress(codec, compressed, data.length + 1, false));
+	}
+
+	@Test
+	public void rejectsCorruptInput() {
+		// a back-reference of distance 0, and one before the start
+		byte[] zeroDistance = { (byte) (1 << 4), 'a', 0, 0 };
+		assertFalse(codec.decompress(ByteBuffer.wrap(zeroDistance), ByteBuffer.allocate(5)));
+		byte[] tooFar = { (byte) (1 << 4), 'a', 2, 0 };
+		assertFalse(codec.decompress(ByteBuffer.wrap(tooFar), ByteBuffer.allocate(5)));
+		// a length extension running off the end
+		byte[] endless = { (byte) 0xF0, (byte) 255, (byte) 255 };
+		assertFalse(codec.decompress(ByteBuffer.wrap(endless), ByteBuffer.allocate(1000)));
+		// random damage never reads or writes out of bounds
+		byte[] data = new byte[1000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i % 5 == 0 ? random.nextInt() : i / 40);
+		byte[] compressed = compress(codec, data, false);
+		for (int trial = 0; trial < 10000; trial++) {
+			byte[] corrupt = compressed.clone();
+			for (int i = 1 + random.nextInt(3); i > 0; i--)
+				corrupt[random.nextInt(corrupt.length)] = (byte) random.nextInt();
+			byte[] result = decompress(codec, corrupt, data.length, trial % 2 == 0);
+			if (result != null)
+				assertEquals(data.length, result.length);
+		}
+	}
+}
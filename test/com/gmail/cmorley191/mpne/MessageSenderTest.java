@@ -0,0 +1,356 @@
+package com.gmail.cmorley191.mpne;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the encoding {@link MessageSender} shares between peers and groups -
+ * bundling, framing of messages that start with the frame marker,
+ * compression and fragmentation - by decoding the datagrams it transmits
+ * according to the formats described in {@link Frames}.
+ *
+ * @author Charlie Morley
+ *
+ */
+public class MessageSenderTest {
+
+	/**
+	 * A sender that records each datagram it transmits.
+	 */
+	private final class RecordingSender extends MessageSender {
+
+		int maxSize;
+
+		final List<byte[]> datagrams = new ArrayList<byte[]>();
+
+		RecordingSender(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		MPNESocket getSocket() {
+			return socket;
+		}
+
+		@Override
+		int maxDatagramSize() {
+			return maxSize;
+		}
+
+		@Override
+		void transmit(ByteBuffer datagram) {
+			assertTrue("datagram over the maximum size", datagram.remaining() <= maxSize);
+			byte[] bytes = new byte[datagram.remaining()];
+			datagram.duplicate().get(bytes);
+			datagrams.add(bytes);
+		}
+	}
+
+	private static final LZ4Codec CODEC = new LZ4Codec(5);
+
+	private MPNESocket socket;
+
+	private final Random random = new Random(12);
+
+	@Before
+	public void setUp() throws Exception {
+		socket = new MPNESocket();
+	}
+
+	@After
+	public void tearDown() {
+		socket.close();
+	}
+
+	private byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		// never starting with the marker by chance
+		if (length > 0 && bytes[0] == Frames.MARKER_0)
+			bytes[0] = 0;
+		return bytes;
+	}
+
+	private static byte[] marked(int length) {
+		byte[] bytes = new byte[length];
+		bytes[0] = Frames.MARKER_0;
+		bytes[1] = Frames.MARKER_1;
+		for (int i = 2; i < length; i++)
+			bytes[i] = (byte) i;
+		return bytes;
+	}
+
+	private static boolean isFrame(byte[] datagram) {
+		return datagram.length >= Frames.HEADER_LENGTH && datagram[0] == Frames.MARKER_0
+				&& datagram[1] == Frames.MARKER_1;
+	}
+
+	/**
+	 * Decodes transmitted datagrams back into the messages they carry, in
+	 * order of completion.
+	 */
+	private static List<byte[]> decode(List<byte[]> datagrams) {
+		List<byte[]> messages = new ArrayList<byte[]>();
+		Map<Integer, byte[]> fragmented = new HashMap<Integer, byte[]>();
+		Map<Integer, Integer> missing = new HashMap<Integer, Integer>();
+		for (byte[] datagram : datagrams) {
+			if (!isFrame(datagram)) {
+				messages.add(datagram);
+				continue;
+			}
+			ByteBuffer in = ByteBuffer.wrap(datagram, Frames.HEADER_LENGTH, datagram.length - Frames.HEADER_LENGTH);
+			switch (datagram[2]) {
+			case Frames.BUNDLE:
+				while (in.hasRemaining()) {
+					byte[] message = new byte[in.getShort() & 0xFFFF];
+					in.get(message);
+					messages.add(message);
+				}
+				break;
+			case Frames.COMPRESSED:
+				messages.add(decompress(in));
+				break;
+			case Frames.FRAGMENT:
+				int id = in.getInt();
+				int length = in.getInt();
+				int size = in.getShort() & 0xFFFF;
+				int index = in.getShort() & 0xFFFF;
+				byte flags = in.get();
+				if (!fragmented.containsKey(id)) {
+					fragmented.put(id, new byte[length]);
+					missing.put(id, (length + size - 1) / size);
+				}
+				assertEquals(Math.min(size, length - index * size), in.remaining());
+				in.get(fragmented.get(id), index * size, in.remaining());
+				missing.put(id, missing.get(id) - 1);
+				if (missing.get(id) == 0) {
+					byte[] message = fragmented.remove(id);
+					if (flags == Frames.FRAGMENT_COMPRESSED)
+						message = decompress(ByteBuffer.wrap(message));
+					messages.add(message);
+				}
+				break;
+			default:
+				fail("unexpected frame type " + datagram[2]);
+			}
+		}
+		assertTrue("incomplete fragmented messages", fragmented.isEmpty());
+		return messages;
+	}
+
+	/**
+	 * Decodes the content of a compressed frame.
+	 */
+	private static byte[] decompress(ByteBuffer in) {
+		assertEquals(CODEC.getId(), in.get() & 0xFF);
+		int length = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = in.get();
+			length |= (b & 0x7F) << shift;
+			if (b >= 0)
+				break;
+		}
+		byte[] message = new byte[length];
+		assertTrue(CODEC.decompress(in, ByteBuffer.wrap(message)));
+		return message;
+	}
+
+	private static void assertMessages(List<byte[]> expected, List<byte[]> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++)
+			assertArrayEquals("message " + i, expected.get(i), actual.get(i));
+	}
+
+	@Test
+	public void sendsMessagesThatFitUnframed() throws IOException {
+		RecordingSender sender = new RecordingSender(100);
+		byte[] message = randomBytes(100);
+		ByteBuffer buffer = ByteBuffer.wrap(message);
+		assertEquals(1, sender.sendMessage(buffer));
+		assertEquals(0, buffer.position());
+		assertEquals(1, sender.datagrams.size());
+		assertArrayEquals(message, sender.datagrams.get(0));
+		// a marker byte alone, or the marker bytes swapped, need no framing
+		sender.sendMessage(ByteBuffer.wrap(new byte[] { Frames.MARKER_0 }));
+		sender.sendMessage(ByteBuffer.wrap(new byte[] { Frames.MARKER_1, Frames.MARKER_0 }));
+		assertArrayEquals(new byte[] { Frames.MARKER_0 }, sender.datagrams.get(1));
+		assertEquals(2, sender.datagrams.get(2).length);
+	}
+
+	@Test
+	public void framesMessagesStartingWithTheMarker() throws IOException {
+		RecordingSender sender = new RecordingSender(100);
+		List<byte[]> expected = new ArrayList<byte[]>();
+		// the largest that fits once framed, and the marker alone
+		expected.add(marked(100 - Frames.HEADER_LENGTH - Frames.BUNDLE_LENGTH_PREFIX));
+		expected.add(marked(2));
+		for (byte[] message : expected)
+			assertEquals(1, sender.sendMessage(ByteBuffer.wrap(message)));
+		// split between the buffers of a gathered message
+		byte[] split = marked(50);
+		sender.sendGathered(new ByteBuffer[] { ByteBuffer.wrap(split, 0, 1).slice(),
+				ByteBuffer.wrap(split, 1, 49).slice() });
+		expected.add(split);
+		// alone in a batch
+		sender.sendBundled(Arrays.asList(ByteBuffer.wrap(marked(10))));
+		expected.add(marked(10));
+		for (byte[] datagram : sender.datagrams) {
+			assertTrue(isFrame(datagram));
+			assertEquals(Frames.BUNDLE, datagram[2]);
+		}
+		assertMessages(expected, decode(sender.datagrams));
+	}
+
+	@Test
+	public void bundlesMessagesUpToTheDatagramSize() throws IOException {
+		// exactly four 22 byte messages fit in 99 bytes
+		RecordingSender sender = new RecordingSender(99);
+		List<byte[]> expected = new ArrayList<byte[]>();
+		List<ByteBuffer> messages = new ArrayList<ByteBuffer>();
+		for (int i = 0; i < 10; i++) {
+			expected.add(randomBytes(22));
+			messages.add(ByteBuffer.wrap(expected.get(i)));
+		}
+		assertEquals(3, sender.sendBundled(messages));
+		assertEquals(99, sender.datagrams.get(0).length);
+		assertEquals(99, sender.datagrams.get(1).length);
+		// the last two are still bundled together
+		assertEquals(Frames.HEADER_LENGTH + 2 * 24, sender.datagrams.get(2).length);
+		assertMessages(expected, decode(sender.datagrams));
+		for (ByteBuffer message : messages)
+			assertEquals(0, message.position());
+	}
+
+	@Test
+	public void sendsALoneBundledMessageUnframed() throws IOException {
+		RecordingSender sender = new RecordingSender(99);
+		byte[] message = randomBytes(80);
+		byte[] other = randomBytes(30);
+		assertEquals(2, sender.sendBundled(Arrays.asList(ByteBuffer.wrap(message), ByteBuffer.wrap(other))));
+		assertArrayEquals(message, sender.datagrams.get(0));
+		assertArrayEquals(other, sender.datagrams.get(1));
+	}
+
+	@Test
+	public void fragmentsMessagesTooLargeToBundle() throws IOException {
+		RecordingSender sender = new RecordingSender(200);
+		List<byte[]> expected = new ArrayList<byte[]>();
+		expected.add(randomBytes(30));
+		expected.add(randomBytes(30));
+		expected.add(randomBytes(1000));
+		expected.add(randomBytes(30));
+		List<ByteBuffer> messages = new ArrayList<ByteBuffer>();
+		for (byte[] message : expected)
+			messages.add(ByteBuffer.wrap(message));
+		int fragments = (1000 + 200 - Frames.FRAGMENT_OVERHEAD - 1) / (200 - Frames.FRAGMENT_OVERHEAD);
+		// the bundle before, the fragments, then the last message alone
+		assertEquals(1 + fragments + 1, sender.sendBundled(messages));
+		assertEquals(Frames.BUNDLE, sender.datagrams.get(0)[2]);
+		for (int i = 1; i <= fragments; i++)
+			assertEquals(Frames.FRAGMENT, sender.datagrams.get(i)[2]);
+		assertMessages(expected, decode(sender.datagrams));
+	}
+
+	@Test
+	public void fragmentsMessagesLargerThanADatagram() throws IOException {
+		RecordingSender sender = new RecordingSender(1000);
+		List<byte[]> expected = new ArrayList<byte[]>();
+		expected.add(randomBytes(1001));
+		expected.add(randomBytes(50000));
+		// framed, this would be one byte too long
+		expected.add(marked(1000 - Frames.HEADER_LENGTH - Frames.BUNDLE_LENGTH_PREFIX + 1));
+		for (byte[] message : expected)
+			sender.sendMessage(ByteBuffer.wrap(message));
+		int size = 1000 - Frames.FRAGMENT_OVERHEAD;
+		assertEquals(2 + (50000 + size - 1) / size + 2, sender.datagrams.size());
+		for (byte[] datagram : sender.datagrams)
+			assertEquals(Frames.FRAGMENT, datagram[2]);
+		assertMessages(expected, decode(sender.datagrams));
+	}
+
+	@Test
+	public void fragmentsGatheredMessagesAcrossBuffers() throws IOException {
+		RecordingSender sender = new RecordingSender(300);
+		byte[] message = randomBytes(2000);
+		ByteBuffer[] parts = { ByteBuffer.wrap(message, 0, 7).slice(), ByteBuffer.wrap(message, 7, 1500).slice(),
+				ByteBuffer.wrap(message, 1507, 0).slice(), ByteBuffer.wrap(message, 1507, 493).slice() };
+		sender.sendGathered(parts);
+		byte[] small = randomBytes(40);
+		sender.sendGathered(new ByteBuffer[] { ByteBuffer.wrap(small, 0, 20).slice(),
+				ByteBuffer.wrap(small, 20, 20).slice() });
+		List<byte[]> decoded = decode(sender.datagrams);
+		assertMessages(Arrays.asList(message, small), decoded);
+		assertArrayEquals(small, sender.datagrams.get(sender.datagrams.size() - 1));
+		for (ByteBuffer part : parts)
+			assertEquals(0, part.position());
+	}
+
+	@Test
+	public void rejectsMessagesWithTooManyFragments() {
+		RecordingSender sender = new RecordingSender(Frames.FRAGMENT_OVERHEAD + 1);
+		try {
+			sender.sendMessage(ByteBuffer.allocate(Frames.MAX_FRAGMENTS + 1));
+			fail("sent a message needing too many fragments");
+		} catch (IOException e) {
+			assertTrue(sender.datagrams.isEmpty());
+		}
+	}
+
+	@Test
+	public void compressesMessagesWithACodec() throws IOException {
+		RecordingSender sender = new RecordingSender(500);
+		sender.putCodec(new byte[] { 'z' }, CODEC);
+		List<byte[]> expected = new ArrayList<byte[]>();
+		byte[] repetitive = new byte[400];
+		Arrays.fill(repetitive, (byte) 'z');
+		expected.add(repetitive);
+		// compresses to more than a datagram, so is fragmented compressed
+		byte[] block = randomBytes(2000);
+		block[0] = 'z';
+		byte[] large = new byte[20000];
+		for (int i = 0; i < large.length; i += block.length)
+			System.arraycopy(block, 0, large, i, block.length);
+		expected.add(large);
+		// does not compress, so is sent as it is
+		byte[] incompressible = randomBytes(300);
+		incompressible[0] = 'z';
+		expected.add(incompressible);
+		// has no codec
+		expected.add(new byte[400]);
+		for (byte[] message : expected)
+			sender.sendMessage(ByteBuffer.wrap(message));
+		assertEquals(Frames.COMPRESSED, sender.datagrams.get(0)[2]);
+		assertTrue(sender.datagrams.get(0).length < 100);
+		assertEquals(Frames.FRAGMENT, sender.datagrams.get(1)[2]);
+		assertEquals(Frames.FRAGMENT_COMPRESSED, sender.datagrams.get(1)[Frames.FRAGMENT_OVERHEAD - 1]);
+		int last = sender.datagrams.size() - 1;
+		assertArrayEquals(incompressible, sender.datagrams.get(last - 1));
+		assertArrayEquals(new byte[400], sender.datagrams.get(last));
+		assertMessages(expected, decode(sender.datagrams));
+		// gathered and bundled messages are compressed too
+		sender.datagrams.clear();
+		sender.sendGathered(new ByteBuffer[] { ByteBuffer.wrap(repetitive, 0, 200).slice(),
+				ByteBuffer.wrap(repetitive, 200, 200).slice() });
+		byte[] a = randomBytes(20), b = randomBytes(20);
+		sender.sendBundled(Arrays.asList(ByteBuffer.wrap(a), ByteBuffer.wrap(repetitive), ByteBuffer.wrap(b)));
+		assertEquals(Frames.COMPRESSED, sender.datagrams.get(0)[2]);
+		assertEquals(4, sender.datagrams.size());
+		assertEquals(Frames.COMPRESSED, sender.datagrams.get(2)[2]);
+		assertMessages(Arrays.asList(repetitive, a, repetitive, b), decode(sender.datagrams));
+	}
+}
@@ -0,0 +1,158 @@
+package com.gmail.cmorley191.mpne;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link PacketMailbox} ordering with concurrent producers, its
+ * capacity limit and its scheduling flag.
+ *
+ * @author Charlie Morley
+ *
+ */
+public class PacketMailboxTest {
+
+	private static ReceivedPacket packet(int producer, int sequence) {
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.putInt(producer).putInt(sequence);
+		return new ReceivedPacket(buffer, 8);
+	}
+
+	@Test
+	public void pollsInOrderOfferedAndEmpties() {
+		PacketMailbox mailbox = new PacketMailbox();
+		assertTrue(mailbox.isEmpty());
+		assertNull(mailbox.poll());
+		// alternating, so the placeholder node is unlinked and linked again
+		for (int i = 0; i < 1000; i++) {
+			ReceivedPacket packet = packet(0, i);
+			assertTrue(mailbox.offer(packet, 10));
+			assertSame(packet, mailbox.poll());
+			assertNull(mailbox.poll());
+			assertTrue(mailbox.isEmpty());
+		}
+		ReceivedPacket[] packets = new ReceivedPacket[5];
+		for (int i = 0; i < packets.length; i++)
+			assertTrue(mailbox.offer(packets[i] = packet(0, i), 10));
+		assertEquals(5, mailbox.size());
+		for (ReceivedPacket packet : packets)
+			assertSame(packet, mailbox.poll());
+		assertNull(mailbox.poll());
+		assertEquals(0, mailbox.size());
+	}
+
+	@Test
+	public void keepsEachProducersOrderWithConcurrentProducers() throws Exception {
+		final PacketMailbox mailbox = new PacketMailbox();
+		final int producers = 4;
+		final int count = 200000;
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			threads[p] = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < count; i++)
+						mailbox.offer(packet(producer, i), Integer.MAX_VALUE);
+				}
+			};
+			threads[p].start();
+		}
+		start.countDown();
+		int[] next = new int[producers];
+		int polled = 0;
+		long deadline = System.nanoTime() + 30000000000L;
+		while (polled < producers * count) {
+			ReceivedPacket packet = mailbox.poll();
+			if (packet == null) {
+				assertTrue("producers stalled", System.nanoTime() - deadline < 0);
+				Thread.yield();
+				continue;
+			}
+			int producer = packet.buffer.getInt(0);
+			assertEquals("out of order for producer " + producer, next[producer], packet.buffer.getInt(4));
+			next[producer]++;
+			polled++;
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertNull(mailbox.poll());
+		assertTrue(mailbox.isEmpty());
+	}
+
+	@Test
+	public void rejectsPacketsBeyondTheCapacity() {
+		PacketMailbox mailbox = new PacketMailbox();
+		for (int i = 0; i < 3; i++)
+			assertTrue(mailbox.offer(packet(0, i), 3));
+		assertFalse(mailbox.offer(packet(0, 3), 3));
+		assertEquals(3, mailbox.size());
+		assertEquals(0, mailbox.poll().buffer.getInt(4));
+		assertTrue(mailbox.offer(packet(0, 4), 3));
+		assertFalse(mailbox.offer(packet(0, 5), 3));
+		for (int expected : new int[] { 1, 2, 4 })
+			assertEquals(expected, mailbox.poll().buffer.getInt(4));
+		assertNull(mailbox.poll());
+	}
+
+	@Test
+	public void acceptsExactlyTheCapacityFromConcurrentProducers() throws Exception {
+		final PacketMailbox mailbox = new PacketMailbox();
+		final int capacity = 1000;
+		final AtomicInteger accepted = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[4];
+		for (int p = 0; p < threads.length; p++) {
+			final int producer = p;
+			threads[p] = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < capacity; i++)
+						if (mailbox.offer(packet(producer, i), capacity))
+							accepted.incrementAndGet();
+				}
+			};
+			threads[p].start();
+		}
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(capacity, accepted.get());
+		assertEquals(capacity, mailbox.size());
+		int polled = 0;
+		while (mailbox.poll() != null)
+			polled++;
+		assertEquals(capacity, polled);
+	}
+
+	@Test
+	public void schedulesOneThreadAtATime() {
+		PacketMailbox mailbox = new PacketMailbox();
+		assertTrue(mailbox.schedule());
+		assertFalse(mailbox.schedule());
+		mailbox.unschedule();
+		assertTrue(mailbox.schedule());
+	}
+}
@@ -0,0 +1,265 @@
+package com.gmail.cmorley191.mpne;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gmail.cmorley191.mpne.MPNESocket.SocketPeerConnection;
+
+/**
+ * Tests {@link PeerGroup} membership, the moving of its listeners onto
+ * members that join and off members that leave, and its fan-out of each
+ * encoded datagram to every member. Members are plain
+ * {@link DatagramSocket DatagramSockets}, and another {@link MPNESocket} to
+ * decode what the group sends.
+ *
+ * @author Charlie Morley
+ *
+ */
+public class PeerGroupTest {
+
+	private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+	private MPNESocket socket;
+
+	private DatagramSocket[] remotes = new DatagramSocket[3];
+
+	private SocketPeerConnection[] peers = new SocketPeerConnection[remotes.length];
+
+	private PeerGroup group;
+
+	@Before
+	public void setUp() throws Exception {
+		socket = new MPNESocket();
+		for (int i = 0; i < remotes.length; i++) {
+			remotes[i] = new DatagramSocket(0, LOOPBACK);
+			remotes[i].setSoTimeout(5000);
+			peers[i] = socket.new SocketPeerConnection(LOOPBACK, remotes[i].getLocalPort());
+		}
+		group = new PeerGroup(socket);
+	}
+
+	@After
+	public void tearDown() {
+		socket.close();
+		for (DatagramSocket remote : remotes)
+			remote.close();
+	}
+
+	/**
+	 * Returns a listener that adds the data it receives to a queue.
+	 */
+	private static ConnectionListener collector(final BlockingQueue<byte[]> queue) {
+		return new ConnectionListener() {
+
+			@Override
+			public void dataReceived(byte[] data) {
+				queue.add(data);
+			}
+		};
+	}
+
+	/**
+	 * Sends data to the socket from the remote end of a peer.
+	 */
+	private void sendFrom(int remote, String data) throws Exception {
+		byte[] bytes = data.getBytes();
+		remotes[remote].send(new DatagramPacket(bytes, bytes.length, new InetSocketAddress(LOOPBACK, socket.getPort())));
+	}
+
+	/**
+	 * Sends data from the remote end of a peer and waits until a listener
+	 * added directly to the peer has received it - so that the peer has
+	 * dispatched everything sent before it.
+	 */
+	private void sync(int remote) throws Exception {
+		BlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+		ConnectionListener l = collector(queue);
+		peers[remote].addConnectionListener(l, "sync".getBytes());
+		sendFrom(remote, "sync");
+		assertNotNull("sync not received", queue.poll(5, TimeUnit.SECONDS));
+		peers[remote].removeConnectionListener(l);
+	}
+
+	private byte[] receive(int remote) throws Exception {
+		DatagramPacket p = new DatagramPacket(new byte[2048], 2048);
+		remotes[remote].receive(p);
+		return Arrays.copyOf(p.getData(), p.getLength());
+	}
+
+	private static List<String> strings(BlockingQueue<byte[]> queue) {
+		List<String> strings = new ArrayList<String>();
+		for (byte[] data : queue)
+			strings.add(new String(data));
+		return strings;
+	}
+
+	@Test
+	public void tracksMembersInOrderOfJoining() throws Exception {
+		assertEquals(0, group.size());
+		assertTrue(group.add(peers[1]));
+		assertTrue(group.add(peers[0]));
+		assertFalse(group.add(peers[1]));
+		assertTrue(group.add(peers[2]));
+		assertArrayEquals(new SocketPeerConnection[] { peers[1], peers[0], peers[2] }, group.getMembers());
+		assertTrue(group.remove(peers[0]));
+		assertFalse(group.remove(peers[0]));
+		assertFalse(group.contains(peers[0]));
+		assertTrue(group.contains(peers[2]));
+		assertArrayEquals(new SocketPeerConnection[] { peers[1], peers[2] }, group.getMembers());
+		group.getMembers()[0] = null;
+		assertEquals(2, group.size());
+		MPNESocket other = new MPNESocket();
+		try {
+			group.add(other.new SocketPeerConnection(LOOPBACK, 9));
+			fail("added a peer of another socket");
+		} catch (IllegalArgumentException e) {
+			assertEquals(2, group.size());
+		} finally {
+			other.close();
+		}
+	}
+
+	@Test
+	public void movesListenersOntoJoiningMembersAndOffLeavingOnes() throws Exception {
+		BlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+		ConnectionListener l = collector(queue);
+		group.add(peers[0]);
+		group.addConnectionListener(l, "g".getBytes());
+		// added twice, still received once
+		group.addConnectionListener(l, "g".getBytes());
+		group.add(peers[1]);
+		sendFrom(0, "g0");
+		sendFrom(1, "g1");
+		sendFrom(1, "x1");
+		sendFrom(2, "g2");
+		for (int i = 0; i < 3; i++)
+			sync(i);
+		assertEquals(2, queue.size());
+		assertTrue(strings(queue).containsAll(Arrays.asList("g0", "g1")));
+		queue.clear();
+		// a member that leaves no longer reaches the listener
+		group.remove(peers[0]);
+		group.add(peers[2]);
+		sendFrom(0, "g0");
+		sendFrom(2, "g2");
+		sync(0);
+		sync(2);
+		assertEquals(Arrays.asList("g2"), strings(queue));
+		queue.clear();
+		// nor does anything, once the listener is removed from the group
+		group.removeConnectionListener(l);
+		for (int i = 0; i < 3; i++)
+			sendFrom(i, "g" + i);
+		for (int i = 0; i < 3; i++)
+			sync(i);
+		assertTrue(queue.isEmpty());
+		group.add(peers[0]);
+		sendFrom(0, "g0");
+		sync(0);
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void keepsListenersAddedToMembersDirectly() throws Exception {
+		BlockingQueue<byte[]> own = new LinkedBlockingQueue<byte[]>();
+		BlockingQueue<byte[]> shared = new LinkedBlockingQueue<byte[]>();
+		ConnectionListener l = collector(own);
+		peers[0].addConnectionListener(l, "g".getBytes());
+		group.add(peers[0]);
+		group.addConnectionListener(collector(shared), "g".getBytes());
+		group.remove(peers[0]);
+		sendFrom(0, "g0");
+		sync(0);
+		assertEquals(Arrays.asList("g0"), strings(own));
+		assertTrue(shared.isEmpty());
+		peers[0].removeConnectionListener(l);
+	}
+
+	@Test
+	public void sendsEachDatagramToEveryMember() throws Exception {
+		MPNESocket other = new MPNESocket();
+		try {
+			BlockingQueue<byte[]> decoded = new LinkedBlockingQueue<byte[]>();
+			other.new SocketPeerConnection(LOOPBACK, socket.getPort()).addConnectionListener(collector(decoded));
+			group.add(peers[0]);
+			group.add(socket.new SocketPeerConnection(LOOPBACK, other.getPort()));
+			group.add(peers[1]);
+			byte[] large = new byte[5000];
+			new Random(3).nextBytes(large);
+			large[0] = 1;
+			byte[] marked = { Frames.MARKER_0, Frames.MARKER_1, 7 };
+			group.send(large);
+			group.send(ByteBuffer.wrap("gath".getBytes()), ByteBuffer.wrap("ered".getBytes()));
+			assertEquals(1, group.sendBatch(Arrays.asList(ByteBuffer.wrap(marked), ByteBuffer.wrap("b".getBytes()))));
+			int fragments = (5000 + MPNESocket.IPV4_DATAGRAM_SIZE - Frames.FRAGMENT_OVERHEAD - 1)
+					/ (MPNESocket.IPV4_DATAGRAM_SIZE - Frames.FRAGMENT_OVERHEAD);
+			// the members receive the same datagrams
+			for (int i = 0; i < fragments + 2; i++)
+				assertArrayEquals(receive(0), receive(1));
+			remotes[0].setSoTimeout(200);
+			try {
+				receive(0);
+				fail("received more datagrams than were sent");
+			} catch (SocketTimeoutException e) {
+				// expected
+			}
+			// and they decode as the messages sent
+			List<byte[]> expected = Arrays.asList(large, "gathered".getBytes(), marked, "b".getBytes());
+			for (byte[] message : expected)
+				assertArrayEquals(message, decoded.poll(5, TimeUnit.SECONDS));
+			assertNull(decoded.poll(200, TimeUnit.MILLISECONDS));
+		} finally {
+			other.close();
+		}
+	}
+
+	@Test
+	public void stopsSendingToMembersThatLeave() throws Exception {
+		group.add(peers[0]);
+		group.add(peers[1]);
+		group.remove(peers[0]);
+		group.send("after".getBytes());
+		assertArrayEquals("after".getBytes(), receive(1));
+		remotes[0].setSoTimeout(200);
+		try {
+			receive(0);
+			fail("sent to a member that left");
+		} catch (SocketTimeoutException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void fitsDatagramsToTheSmallestMember() throws Exception {
+		group.add(peers[0]);
+		assertEquals(MPNESocket.IPV4_DATAGRAM_SIZE, group.maxDatagramSize());
+		SocketPeerConnection ipv6 = socket.new SocketPeerConnection(InetAddress.getByName("::1"), 9);
+		group.add(ipv6);
+		assertEquals(MPNESocket.IPV6_DATAGRAM_SIZE, group.maxDatagramSize());
+		group.remove(ipv6);
+		assertEquals(MPNESocket.IPV4_DATAGRAM_SIZE, group.maxDatagramSize());
+	}
+}
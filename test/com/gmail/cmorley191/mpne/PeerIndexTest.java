@@ -0,0 +1,227 @@
+package com.gmail.cmorley191.mpne;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gmail.cmorley191.mpne.MPNESocket.SocketPeerConnection;
+
+/**
+ * Tests {@link PeerIndex} lookups through additions, removals and growth of
+ * its IPv4 table - including keys that probe the same slots - and with IPv4
+ * and IPv6 peers side by side.
+ *
+ * @author Charlie Morley
+ *
+ */
+public class PeerIndexTest {
+
+	private MPNESocket socket;
+
+	private PeerIndex index;
+
+	@Before
+	public void setUp() throws Exception {
+		socket = new MPNESocket();
+		index = new PeerIndex();
+	}
+
+	@After
+	public void tearDown() {
+		socket.close();
+	}
+
+	private static InetAddress address(int a, int b, int c, int d) throws Exception {
+		return InetAddress.getByAddress(new byte[] { (byte) a, (byte) b, (byte) c, (byte) d });
+	}
+
+	private static InetAddress ipv6(int last) throws Exception {
+		byte[] bytes = new byte[16];
+		bytes[0] = 0x20;
+		bytes[1] = 0x01;
+		bytes[15] = (byte) last;
+		return InetAddress.getByAddress(bytes);
+	}
+
+	private SocketPeerConnection peer(InetAddress address, int port) {
+		return socket.new SocketPeerConnection(address, port);
+	}
+
+	/**
+	 * Returns IPv4 peers whose keys all start probing from the same slot of
+	 * any table of up to {@code slots} slots.
+	 */
+	private List<SocketPeerConnection> colliding(int count, int slots) throws Exception {
+		List<SocketPeerConnection> peers = new ArrayList<SocketPeerConnection>();
+		InetAddress address = address(10, 0, 0, 1);
+		long first = -1;
+		for (int port = 1; peers.size() < count; port++) {
+			long slot = PeerIndex.hash(address, port) & (slots - 1);
+			if (first < 0)
+				first = slot;
+			if (slot == first)
+				peers.add(peer(address, port));
+		}
+		return peers;
+	}
+
+	@Test
+	public void findsPeersSharingAnAddressAndPort() throws Exception {
+		InetAddress address = address(192, 168, 1, 2);
+		SocketPeerConnection a = peer(address, 5000), b = peer(address, 5000), other = peer(address, 5001);
+		index.add(a);
+		index.add(b);
+		index.add(other);
+		assertEquals(2, index.size());
+		assertArrayEquals(new SocketPeerConnection[] { a, b }, index.get(address(192, 168, 1, 2), 5000));
+		assertArrayEquals(new SocketPeerConnection[] { other }, index.get(address, 5001));
+		assertNull(index.get(address, 5002));
+		assertNull(index.get(address(192, 168, 1, 3), 5000));
+		assertTrue(index.remove(a));
+		assertFalse(index.remove(a));
+		assertArrayEquals(new SocketPeerConnection[] { b }, index.get(address, 5000));
+		assertTrue(index.remove(b));
+		assertNull(index.get(address, 5000));
+		assertEquals(1, index.size());
+		assertFalse(index.remove(peer(address, 5003)));
+	}
+
+	@Test
+	public void probesPastRemovedKeysThatCollide() throws Exception {
+		List<SocketPeerConnection> peers = colliding(7, 64);
+		for (SocketPeerConnection peer : peers)
+			index.add(peer);
+		for (SocketPeerConnection peer : peers)
+			assertArrayEquals(new SocketPeerConnection[] { peer }, index.get(peer.getAddress(), peer.getPort()));
+		// removing keys early in the probe sequence must not hide later ones
+		for (int i = 0; i < peers.size() - 1; i += 2)
+			assertTrue(index.remove(peers.get(i)));
+		for (int i = 0; i < peers.size(); i++)
+			if (i % 2 == 0 && i < peers.size() - 1)
+				assertNull(index.get(peers.get(i).getAddress(), peers.get(i).getPort()));
+			else
+				assertArrayEquals(new SocketPeerConnection[] { peers.get(i) },
+						index.get(peers.get(i).getAddress(), peers.get(i).getPort()));
+		// and re-adding them reuses their slots
+		for (int i = 0; i < peers.size() - 1; i += 2)
+			index.add(peers.get(i));
+		assertEquals(peers.size(), index.size());
+		for (SocketPeerConnection peer : peers)
+			assertArrayEquals(new SocketPeerConnection[] { peer }, index.get(peer.getAddress(), peer.getPort()));
+	}
+
+	@Test
+	public void staysFindableThroughRepeatedAddAndRemove() throws Exception {
+		// churn fills the table with removed keys, forcing rebuilds at a
+		// constant size
+		SocketPeerConnection resident = peer(address(10, 1, 1, 1), 1);
+		index.add(resident);
+		for (int i = 0; i < 5000; i++) {
+			SocketPeerConnection peer = peer(address(10, 2, i >> 8, i), 2000 + i);
+			index.add(peer);
+			assertArrayEquals(new SocketPeerConnection[] { peer }, index.get(peer.getAddress(), peer.getPort()));
+			assertTrue(index.remove(peer));
+			assertNull(index.get(peer.getAddress(), peer.getPort()));
+			assertArrayEquals(new SocketPeerConnection[] { resident }, index.get(resident.getAddress(), 1));
+		}
+		assertEquals(1, index.size());
+	}
+
+	@Test
+	public void growsToHoldManyPeers() throws Exception {
+		List<SocketPeerConnection> peers = new ArrayList<SocketPeerConnection>();
+		for (int i = 0; i < 5000; i++) {
+			SocketPeerConnection peer = peer(address(172, 16, i >> 8, i), 40000 + i % 7);
+			peers.add(peer);
+			index.add(peer);
+		}
+		assertEquals(5000, index.size());
+		for (SocketPeerConnection peer : peers)
+			assertArrayEquals(new SocketPeerConnection[] { peer }, index.get(peer.getAddress(), peer.getPort()));
+		for (int i = 0; i < peers.size(); i += 2)
+			assertTrue(index.remove(peers.get(i)));
+		assertEquals(2500, index.size());
+		for (int i = 0; i < peers.size(); i++) {
+			SocketPeerConnection peer = peers.get(i);
+			if (i % 2 == 0)
+				assertNull(index.get(peer.getAddress(), peer.getPort()));
+			else
+				assertArrayEquals(new SocketPeerConnection[] { peer }, index.get(peer.getAddress(), peer.getPort()));
+		}
+		for (int i = 0; i < 5000; i++)
+			assertNull(index.get(address(172, 17, i >> 8, i), 40000));
+	}
+
+	@Test
+	public void keepsIpv4AndIpv6PeersApart() throws Exception {
+		InetAddress v4 = InetAddress.getByName("127.0.0.1");
+		InetAddress v6 = InetAddress.getByName("::1");
+		SocketPeerConnection a = peer(v4, 7000), b = peer(v6, 7000), c = peer(v6, 7001), d = peer(v6, 7002);
+		for (SocketPeerConnection peer : new SocketPeerConnection[] { a, b, c, d })
+			index.add(peer);
+		assertEquals(4, index.size());
+		assertArrayEquals(new SocketPeerConnection[] { a }, index.get(v4, 7000));
+		assertArrayEquals(new SocketPeerConnection[] { b }, index.get(InetAddress.getByName("::1"), 7000));
+		assertArrayEquals(new SocketPeerConnection[] { c }, index.get(v6, 7001));
+		// removing a port from the middle of an address's ports
+		assertTrue(index.remove(c));
+		assertNull(index.get(v6, 7001));
+		assertArrayEquals(new SocketPeerConnection[] { d }, index.get(v6, 7002));
+		assertArrayEquals(new SocketPeerConnection[] { a }, index.get(v4, 7000));
+		assertTrue(index.remove(b));
+		assertTrue(index.remove(d));
+		assertNull(index.get(v6, 7000));
+		assertArrayEquals(new SocketPeerConnection[] { a }, index.get(v4, 7000));
+		assertEquals(1, index.size());
+	}
+
+	@Test
+	public void matchesAReferenceMapUnderRandomOperations() throws Exception {
+		Random random = new Random(1);
+		InetAddress[] addresses = new InetAddress[40];
+		for (int i = 0; i < addresses.length; i++)
+			addresses[i] = i % 4 == 0 ? ipv6(i) : address(10, 9, 0, i);
+		Map<String, List<SocketPeerConnection>> expected = new HashMap<String, List<SocketPeerConnection>>();
+		List<SocketPeerConnection> added = new ArrayList<SocketPeerConnection>();
+		for (int op = 0; op < 20000; op++) {
+			if (added.isEmpty() || random.nextInt(3) != 0) {
+				SocketPeerConnection peer = peer(addresses[random.nextInt(addresses.length)], 1 + random.nextInt(8));
+				index.add(peer);
+				added.add(peer);
+				String key = peer.getAddress() + ":" + peer.getPort();
+				if (!expected.containsKey(key))
+					expected.put(key, new ArrayList<SocketPeerConnection>());
+				expected.get(key).add(peer);
+			} else {
+				SocketPeerConnection peer = added.remove(random.nextInt(added.size()));
+				assertTrue(index.remove(peer));
+				String key = peer.getAddress() + ":" + peer.getPort();
+				expected.get(key).remove(peer);
+				if (expected.get(key).isEmpty())
+					expected.remove(key);
+			}
+			InetAddress address = addresses[random.nextInt(addresses.length)];
+			int port = 1 + random.nextInt(8);
+			List<SocketPeerConnection> peers = expected.get(address + ":" + port);
+			SocketPeerConnection[] found = index.get(address, port);
+			if (peers == null)
+				assertNull(found);
+			else
+				assertArrayEquals(peers.toArray(), found);
+		}
+		assertEquals(expected.size(), index.size());
+	}
+}
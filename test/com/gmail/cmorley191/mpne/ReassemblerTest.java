@@ -0,0 +1,169 @@
+package com.gmail.cmorley191.mpne;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link Reassembler} with fragments built as a sending peer frames
+ * them: reordering, duplicates, malformed fragments, eviction from the full
+ * table, and the reassembly timeout.
+ *
+ * @author Charlie Morley
+ *
+ */
+public class ReassemblerTest {
+
+	private MPNESocket socket;
+
+	private Reassembler reassembler;
+
+	@Before
+	public void setUp() throws Exception {
+		socket = new MPNESocket();
+		reassembler = new Reassembler(socket.new SocketPeerConnection(InetAddress.getLoopbackAddress(), 9));
+	}
+
+	@After
+	public void tearDown() {
+		socket.close();
+	}
+
+	private static byte[] message(int length, int seed) {
+		byte[] message = new byte[length];
+		new Random(seed).nextBytes(message);
+		return message;
+	}
+
+	/**
+	 * Builds the fragment of the message with the index, as a peer would
+	 * send it.
+	 */
+	private static ReceivedPacket fragment(int id, byte[] message, int size, int index) {
+		int length = Math.min(size, message.length - index * size);
+		ByteBuffer frame = ByteBuffer.allocate(Frames.FRAGMENT_OVERHEAD + length);
+		Frames.putFragmentHeader(frame, id, message.length, size, index, (byte) 0);
+		frame.put(message, index * size, length);
+		return new ReceivedPacket(frame, frame.position());
+	}
+
+	private static void assertMessage(byte[] expected, ReceivedPacket message) {
+		assertNotNull("message not completed", message);
+		assertEquals(expected.length, message.length);
+		assertArrayEquals(expected, message.copy(0, message.length));
+		message.release();
+	}
+
+	@Test
+	public void reassemblesFragmentsInAnyOrder() {
+		byte[] message = message(1000, 1);
+		int[] order = { 3, 0, 2 };
+		for (int index : order)
+			assertNull(reassembler.fragmentReceived(fragment(7, message, 300, index)));
+		assertMessage(message, reassembler.fragmentReceived(fragment(7, message, 300, 1)));
+	}
+
+	@Test
+	public void reassemblesInterleavedMessages() {
+		byte[] a = message(700, 1), b = message(500, 2);
+		assertNull(reassembler.fragmentReceived(fragment(1, a, 256, 0)));
+		assertNull(reassembler.fragmentReceived(fragment(2, b, 256, 1)));
+		assertNull(reassembler.fragmentReceived(fragment(1, a, 256, 2)));
+		assertMessage(b, reassembler.fragmentReceived(fragment(2, b, 256, 0)));
+		assertMessage(a, reassembler.fragmentReceived(fragment(1, a, 256, 1)));
+	}
+
+	@Test
+	public void ignoresDuplicateFragments() {
+		byte[] message = message(900, 3);
+		assertNull(reassembler.fragmentReceived(fragment(4, message, 300, 0)));
+		assertNull(reassembler.fragmentReceived(fragment(4, message, 300, 0)));
+		assertNull(reassembler.fragmentReceived(fragment(4, message, 300, 1)));
+		assertNull(reassembler.fragmentReceived(fragment(4, message, 300, 1)));
+		assertMessage(message, reassembler.fragmentReceived(fragment(4, message, 300, 2)));
+		assertEquals(0, socket.getIncompleteMessageCount());
+	}
+
+	@Test
+	public void ignoresDuplicateFragmentsAfterCompletion() throws Exception {
+		socket.setReassemblyTimeout(50, TimeUnit.MILLISECONDS);
+		byte[] message = message(600, 8);
+		assertNull(reassembler.fragmentReceived(fragment(11, message, 300, 0)));
+		assertMessage(message, reassembler.fragmentReceived(fragment(11, message, 300, 1)));
+		byte[][] messages = new byte[Reassembler.TABLE_SIZE][];
+		for (int i = 0; i < messages.length; i++) {
+			messages[i] = message(200, 20 + i);
+			assertNull(reassembler.fragmentReceived(fragment(20 + i, messages[i], 100, 0)));
+		}
+		// the late duplicate neither starts the message again nor evicts one
+		assertNull(reassembler.fragmentReceived(fragment(11, message, 300, 0)));
+		assertEquals(0, socket.getIncompleteMessageCount());
+		for (int i = 0; i < messages.length; i++)
+			assertMessage(messages[i], reassembler.fragmentReceived(fragment(20 + i, messages[i], 100, 1)));
+		Thread.sleep(200);
+		assertEquals(0, socket.getIncompleteMessageCount());
+	}
+
+	@Test
+	public void ignoresMalformedFragments() {
+		byte[] message = message(600, 4);
+		ReceivedPacket truncated = fragment(5, message, 300, 0);
+		truncated.length--;
+		assertNull(reassembler.fragmentReceived(truncated));
+		// an index past the last fragment
+		ByteBuffer frame = ByteBuffer.allocate(Frames.FRAGMENT_OVERHEAD + 300);
+		Frames.putFragmentHeader(frame, 5, 600, 300, 2, (byte) 0);
+		assertNull(reassembler.fragmentReceived(new ReceivedPacket(frame, frame.capacity())));
+		// longer than the socket reassembles
+		socket.setMaxMessageSize(500);
+		assertNull(reassembler.fragmentReceived(fragment(5, message, 300, 0)));
+		socket.setMaxMessageSize(1 << 20);
+		// a fragment of the same id with a different message length
+		assertNull(reassembler.fragmentReceived(fragment(5, message, 300, 0)));
+		assertNull(reassembler.fragmentReceived(fragment(5, message(900, 4), 300, 1)));
+		assertMessage(message, reassembler.fragmentReceived(fragment(5, message, 300, 1)));
+	}
+
+	@Test
+	public void evictsTheMessageStartedLongestAgo() {
+		byte[][] messages = new byte[Reassembler.TABLE_SIZE + 1][];
+		for (int i = 0; i < messages.length; i++) {
+			messages[i] = message(200, i);
+			assertNull(reassembler.fragmentReceived(fragment(i, messages[i], 100, 0)));
+		}
+		assertEquals(1, socket.getIncompleteMessageCount());
+		// the rest of the evicted message is ignored rather than started again
+		assertNull(reassembler.fragmentReceived(fragment(0, messages[0], 100, 1)));
+		assertEquals(1, socket.getIncompleteMessageCount());
+		for (int i = 1; i < messages.length; i++)
+			assertMessage(messages[i], reassembler.fragmentReceived(fragment(i, messages[i], 100, 1)));
+	}
+
+	@Test
+	public void discardsMessagesIncompleteAfterTheTimeout() throws Exception {
+		socket.setReassemblyTimeout(50, TimeUnit.MILLISECONDS);
+		byte[] message = message(400, 6);
+		assertNull(reassembler.fragmentReceived(fragment(9, message, 200, 0)));
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (socket.getIncompleteMessageCount() == 0 && System.nanoTime() - end < 0)
+			Thread.sleep(10);
+		assertEquals(1, socket.getIncompleteMessageCount());
+		assertNull(reassembler.fragmentReceived(fragment(9, message, 200, 1)));
+		// a message completed in time is not discarded
+		byte[] other = message(400, 7);
+		assertNull(reassembler.fragmentReceived(fragment(10, other, 200, 1)));
+		assertMessage(other, reassembler.fragmentReceived(fragment(10, other, 200, 0)));
+		Thread.sleep(200);
+		assertEquals(1, socket.getIncompleteMessageCount());
+	}
+}
@@ -0,0 +1,301 @@
+package com.gmail.cmorley191.mpne;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gmail.cmorley191.mpne.MPNESocket.SocketPeerConnection;
+
+/**
+ * Tests {@link ReliableChannel} delivery across sequence number wrap, loss,
+ * duplication and reordering. Received frames are fed to a channel directly;
+ * sent frames are captured by a plain {@link DatagramSocket} standing in for
+ * the peer.
+ *
+ * @author Charlie Morley
+ *
+ */
+public class ReliableChannelTest {
+
+	private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+	private MPNESocket socket;
+
+	private DatagramSocket remote;
+
+	private SocketPeerConnection peer;
+
+	private final List<byte[]> received = new ArrayList<byte[]>();
+
+	private final ConnectionListener collector = new ConnectionListener() {
+
+		@Override
+		public void dataReceived(byte[] data) {
+			received.add(data);
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		socket = new MPNESocket();
+		remote = new DatagramSocket(0, LOOPBACK);
+		remote.setSoTimeout(5000);
+		peer = socket.new SocketPeerConnection(LOOPBACK, remote.getLocalPort());
+	}
+
+	@After
+	public void tearDown() {
+		socket.close();
+		remote.close();
+	}
+
+	/**
+	 * Builds a data frame of the channel as the peer would send it.
+	 */
+	private static ReceivedPacket dataFrame(int id, int sequence, byte[] message) {
+		ByteBuffer frame = ByteBuffer.allocate(ReliableChannel.DATA_OVERHEAD + message.length);
+		Frames.putHeader(frame, Frames.RELIABLE);
+		frame.put((byte) id).putShort((short) sequence).putInt(1);
+		frame.putShort((short) 0).putInt(0).putInt(0);
+		frame.put(message);
+		return new ReceivedPacket(frame, frame.position());
+	}
+
+	/**
+	 * Builds an acknowledgement frame as the peer would send it.
+	 */
+	private static ReceivedPacket ackFrame(int id, int next, int bits) {
+		ByteBuffer frame = ByteBuffer.allocate(ReliableChannel.ACK_LENGTH);
+		Frames.putHeader(frame, Frames.RELIABLE_ACK);
+		frame.put((byte) id).putShort((short) next).putInt(bits).putInt(0);
+		return new ReceivedPacket(frame, frame.position());
+	}
+
+	private static byte[] message(int i) {
+		return ByteBuffer.allocate(4).putInt(i).array();
+	}
+
+	/**
+	 * Receives the next datagram the channel sent, returning its sequence
+	 * number.
+	 */
+	private int receiveSequence() throws Exception {
+		DatagramPacket p = new DatagramPacket(new byte[2048], 2048);
+		remote.receive(p);
+		assertEquals(Frames.RELIABLE, p.getData()[2]);
+		return ByteBuffer.wrap(p.getData(), Frames.HEADER_LENGTH + 1, 2).getShort() & 0xFFFF;
+	}
+
+	@Test
+	public void deliversInOrderAcrossSequenceWrap() {
+		ReliableChannel channel = new ReliableChannel(peer, 1);
+		channel.addConnectionListener(collector);
+		int count = 70000;
+		// each pair arrives swapped, and the first of each pair twice
+		for (int i = 0; i < count; i += 2) {
+			channel.frameReceived(dataFrame(1, i + 1, message(i + 1)));
+			channel.frameReceived(dataFrame(1, i, message(i)));
+			channel.frameReceived(dataFrame(1, i + 1, message(i + 1)));
+		}
+		assertEquals(count, received.size());
+		for (int i = 0; i < count; i++)
+			assertArrayEquals(message(i), received.get(i));
+	}
+
+	@Test
+	public void holdsMessagesBehindAGap() {
+		ReliableChannel channel = new ReliableChannel(peer, 1);
+		channel.addConnectionListener(collector);
+		for (int i = 1; i < 10; i++)
+			channel.frameReceived(dataFrame(1, i, message(i)));
+		assertEquals(0, received.size());
+		channel.frameReceived(dataFrame(1, 0, message(0)));
+		assertEquals(10, received.size());
+		for (int i = 0; i < 10; i++)
+			assertArrayEquals(message(i), received.get(i));
+		// already delivered
+		channel.frameReceived(dataFrame(1, 4, message(4)));
+		assertEquals(10, received.size());
+	}
+
+	@Test
+	public void discardsMessagesBeyondTheWindow() {
+		ReliableChannel channel = new ReliableChannel(peer, 1, 8, 8);
+		channel.addConnectionListener(collector);
+		channel.frameReceived(dataFrame(1, 8, message(8)));
+		for (int i = 0; i < 8; i++)
+			channel.frameReceived(dataFrame(1, i, message(i)));
+		assertEquals(8, received.size());
+		channel.frameReceived(dataFrame(1, 8, message(8)));
+		assertEquals(9, received.size());
+	}
+
+	@Test
+	public void slidesTheSendWindowAcrossSequenceWrap() throws Exception {
+		ReliableChannel channel = new ReliableChannel(peer, 1);
+		for (int i = 0; i < 70000; i++) {
+			channel.send(message(i));
+			channel.frameReceived(ackFrame(1, i + 1, 0));
+		}
+		assertEquals(0, channel.getUnacknowledgedCount());
+		assertEquals(0, channel.getRetransmissionCount());
+	}
+
+	@Test
+	public void retransmitsMessagesReportedMissing() throws Exception {
+		ReliableChannel channel = new ReliableChannel(peer, 1);
+		for (int i = 0; i < 6; i++)
+			channel.send(message(i));
+		for (int i = 0; i < 6; i++)
+			assertEquals(i, receiveSequence());
+		// 1 to 5 received, 0 missing
+		channel.frameReceived(ackFrame(1, 0, 0x1F));
+		assertEquals(0, receiveSequence());
+		assertEquals(1, channel.getRetransmissionCount());
+		assertEquals(6, channel.getUnacknowledgedCount());
+		channel.frameReceived(ackFrame(1, 6, 0));
+		assertEquals(0, channel.getUnacknowledgedCount());
+	}
+
+	@Test
+	public void retransmitsAfterTimeout() throws Exception {
+		ReliableChannel channel = new ReliableChannel(peer, 1);
+		channel.send(message(0));
+		assertEquals(0, receiveSequence());
+		assertEquals(0, receiveSequence());
+		assertEquals(1, channel.getRetransmissionCount());
+		channel.frameReceived(ackFrame(1, 1, 0));
+		assertEquals(0, channel.getUnacknowledgedCount());
+		channel.close();
+		remote.setSoTimeout(1500);
+		try {
+			remote.receive(new DatagramPacket(new byte[2048], 2048));
+			throw new AssertionError("retransmitted after acknowledgement");
+		} catch (SocketTimeoutException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void deliversEveryMessageOverALossyLink() throws Exception {
+		MPNESocket other = new MPNESocket();
+		LossyLink link = new LossyLink(socket.getPort(), other.getPort(), 0.1);
+		try {
+			SocketPeerConnection a = socket.new SocketPeerConnection(LOOPBACK, link.port(0));
+			SocketPeerConnection b = other.new SocketPeerConnection(LOOPBACK, link.port(1));
+			ReliableChannel sender = new ReliableChannel(a, 2);
+			ReliableChannel receiver = new ReliableChannel(b, 2);
+			int count = 2000;
+			final List<byte[]> got = new ArrayList<byte[]>();
+			final CountDownLatch done = new CountDownLatch(count);
+			receiver.addConnectionListener(new ConnectionListener() {
+
+				@Override
+				public void dataReceived(byte[] data) {
+					got.add(data);
+					done.countDown();
+				}
+			});
+			for (int i = 0; i < count; i++) {
+				while (sender.getUnacknowledgedCount() >= ReliableChannel.DEFAULT_SEND_BUFFER)
+					Thread.sleep(1);
+				sender.send(message(i));
+			}
+			assertTrue("messages lost", done.await(30, TimeUnit.SECONDS));
+			for (int i = 0; i < count; i++)
+				assertArrayEquals(message(i), got.get(i));
+			assertTrue(sender.getRetransmissionCount() > 0);
+		} finally {
+			link.close();
+			other.close();
+		}
+	}
+
+	/**
+	 * A relay between two local ports that drops, duplicates and delays -
+	 * and so reorders - datagrams at random.
+	 */
+	private static final class LossyLink {
+
+		private final DatagramSocket[] ends = new DatagramSocket[2];
+
+		private final Thread[] threads = new Thread[2];
+
+		LossyLink(int port0, int port1, final double loss) throws Exception {
+			final int[] targets = { port1, port0 };
+			for (int i = 0; i < 2; i++)
+				ends[i] = new DatagramSocket(0, LOOPBACK);
+			for (int i = 0; i < 2; i++) {
+				final DatagramSocket in = ends[i];
+				final DatagramSocket out = ends[1 - i];
+				final InetSocketAddress target = new InetSocketAddress(LOOPBACK, targets[i]);
+				final Random random = new Random(i);
+				threads[i] = new Thread() {
+
+					@Override
+					public void run() {
+						DatagramPacket held = null;
+						byte[] buffer = new byte[65536];
+						try {
+							while (true) {
+								DatagramPacket p = new DatagramPacket(buffer, buffer.length);
+								in.receive(p);
+								DatagramPacket copy = new DatagramPacket(Arrays.copyOf(buffer, p.getLength()),
+										p.getLength(), target);
+								double x = random.nextDouble();
+								if (x < loss)
+									continue;
+								if (x < loss + 0.05)
+									out.send(copy);
+								if (held == null && random.nextDouble() < 0.1) {
+									// sent after the next datagram
+									held = copy;
+									continue;
+								}
+								out.send(copy);
+								if (held != null) {
+									out.send(held);
+									held = null;
+								}
+							}
+						} catch (Exception e) {
+							// closed
+						}
+					}
+				};
+				threads[i].setDaemon(true);
+				threads[i].start();
+			}
+		}
+
+		/**
+		 * Returns the port that relays to the other end's target - the
+		 * address the peer at that end must send to.
+		 */
+		int port(int end) {
+			return ends[end].getLocalPort();
+		}
+
+		void close() {
+			for (DatagramSocket end : ends)
+				end.close();
+		}
+	}
+}
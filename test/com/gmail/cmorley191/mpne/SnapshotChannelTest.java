@@ -0,0 +1,270 @@
+package com.gmail.cmorley191.mpne;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gmail.cmorley191.mpne.MPNESocket.SocketPeerConnection;
+
+/**
+ * Tests {@link SnapshotChannel} delta encoding and recovery from lost
+ * snapshots and baselines. Two channels of the same socket stand in for the
+ * two ends: the frames each sends are captured by a plain
+ * {@link DatagramSocket} and fed to the other directly, or dropped.
+ *
+ * @author Charlie Morley
+ *
+ */
+public class SnapshotChannelTest {
+
+	private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+	private MPNESocket socket;
+
+	private DatagramSocket senderLink;
+
+	private DatagramSocket receiverLink;
+
+	private SnapshotChannel sender;
+
+	private SnapshotChannel receiver;
+
+	private final List<byte[]> received = new ArrayList<byte[]>();
+
+	private final Random random = new Random(23);
+
+	@Before
+	public void setUp() throws Exception {
+		socket = new MPNESocket();
+		senderLink = new DatagramSocket(0, LOOPBACK);
+		senderLink.setSoTimeout(5000);
+		receiverLink = new DatagramSocket(0, LOOPBACK);
+		receiverLink.setSoTimeout(5000);
+		SocketPeerConnection senderPeer = socket.new SocketPeerConnection(LOOPBACK, senderLink.getLocalPort());
+		SocketPeerConnection receiverPeer = socket.new SocketPeerConnection(LOOPBACK, receiverLink.getLocalPort());
+		sender = new SnapshotChannel(senderPeer, 1, 8);
+		receiver = new SnapshotChannel(receiverPeer, 1, 8);
+		receiver.addConnectionListener(new ConnectionListener() {
+
+			@Override
+			public void dataReceived(byte[] data) {
+				received.add(data);
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		socket.close();
+		senderLink.close();
+		receiverLink.close();
+	}
+
+	/**
+	 * Receives the next frame a channel sent on a link.
+	 */
+	private static ReceivedPacket capture(DatagramSocket link) throws Exception {
+		DatagramPacket p = new DatagramPacket(new byte[2048], 2048);
+		link.receive(p);
+		return new ReceivedPacket(ByteBuffer.wrap(Arrays.copyOf(p.getData(), p.getLength())), p.getLength());
+	}
+
+	/**
+	 * Sends a snapshot, returning the frame the sender sent for it.
+	 */
+	private ReceivedPacket send(byte[] snapshot) throws Exception {
+		sender.send(snapshot);
+		ReceivedPacket frame = capture(senderLink);
+		assertEquals(Frames.SNAPSHOT, frame.get(2));
+		return frame;
+	}
+
+	/**
+	 * Has the receiver acknowledge what it has received, and delivers the
+	 * acknowledgement to the sender.
+	 */
+	private void acknowledge() throws Exception {
+		receiver.flushAck();
+		ReceivedPacket ack = capture(receiverLink);
+		assertEquals(Frames.SNAPSHOT_ACK, ack.get(2));
+		sender.frameReceived(ack);
+	}
+
+	private static int sequence(ReceivedPacket frame) {
+		int offset = Frames.HEADER_LENGTH + 1;
+		return ((frame.get(offset) & 0xFF) << 24) | ((frame.get(offset + 1) & 0xFF) << 16)
+				| ((frame.get(offset + 2) & 0xFF) << 8) | (frame.get(offset + 3) & 0xFF);
+	}
+
+	private static boolean isDelta(ReceivedPacket frame) {
+		int offset = Frames.HEADER_LENGTH + 1 + 8;
+		for (int i = 0; i < 4; i++)
+			if (frame.get(offset + i) != 0)
+				return true;
+		return false;
+	}
+
+	private byte[] snapshot(int length) {
+		byte[] data = new byte[length];
+		random.nextBytes(data);
+		return data;
+	}
+
+	/**
+	 * Returns a copy of the snapshot with a few bytes changed.
+	 */
+	private byte[] change(byte[] snapshot, int changes) {
+		byte[] data = snapshot.clone();
+		for (int i = 0; i < changes; i++)
+			data[random.nextInt(data.length)] ^= 1 + random.nextInt(255);
+		return data;
+	}
+
+	@Test
+	public void sendsDeltasAgainstTheAcknowledgedSnapshot() throws Exception {
+		byte[] snapshot = snapshot(400);
+		ReceivedPacket frame = send(snapshot);
+		assertFalse(isDelta(frame));
+		receiver.frameReceived(frame);
+		acknowledge();
+		for (int i = 0; i < 20; i++) {
+			snapshot = change(snapshot, 5);
+			frame = send(snapshot);
+			assertTrue(isDelta(frame));
+			assertTrue(frame.length < SnapshotChannel.OVERHEAD + snapshot.length / 4);
+			receiver.frameReceived(frame);
+			acknowledge();
+			assertArrayEquals(snapshot, received.get(received.size() - 1));
+		}
+		assertEquals(21, received.size());
+		assertEquals(1, sender.getFullSnapshotCount());
+		assertEquals(20, sender.getDeltaSnapshotCount());
+		assertTrue(sender.getCompressionRatio() < 0.25);
+	}
+
+	@Test
+	public void decodesDeltasThatChangeTheLength() throws Exception {
+		byte[] base = snapshot(300);
+		receiver.frameReceived(send(base));
+		acknowledge();
+		// longer than the baseline, with changes at both ends and past its end
+		byte[] longer = Arrays.copyOf(base, 340);
+		longer[0] ^= 1;
+		longer[299] ^= 1;
+		longer[320] = 7;
+		ReceivedPacket frame = send(longer);
+		assertTrue(isDelta(frame));
+		receiver.frameReceived(frame);
+		assertArrayEquals(longer, received.get(received.size() - 1));
+		// shorter than the baseline, the baseline staying the first snapshot
+		byte[] shorter = change(Arrays.copyOf(base, 250), 3);
+		frame = send(shorter);
+		assertTrue(isDelta(frame));
+		receiver.frameReceived(frame);
+		assertArrayEquals(shorter, received.get(received.size() - 1));
+	}
+
+	@Test
+	public void lostSnapshotsAreSupersededByDeltasAgainstTheBaseline() throws Exception {
+		byte[] snapshot = snapshot(200);
+		receiver.frameReceived(send(snapshot));
+		acknowledge();
+		// every snapshot but the last is lost, each encoded against the first
+		for (int i = 0; i < 5; i++) {
+			snapshot = change(snapshot, 2);
+			ReceivedPacket frame = send(snapshot);
+			assertTrue(isDelta(frame));
+			if (i == 4)
+				receiver.frameReceived(frame);
+		}
+		assertEquals(2, received.size());
+		assertArrayEquals(snapshot, received.get(1));
+	}
+
+	@Test
+	public void lateSnapshotsAreDiscarded() throws Exception {
+		byte[] first = snapshot(100);
+		byte[] second = change(first, 4);
+		ReceivedPacket firstFrame = send(first);
+		ReceivedPacket secondFrame = send(second);
+		receiver.frameReceived(secondFrame);
+		receiver.frameReceived(firstFrame);
+		receiver.frameReceived(secondFrame);
+		assertEquals(1, received.size());
+		assertArrayEquals(second, received.get(0));
+	}
+
+	@Test
+	public void lostBaselineIsReplacedByAFullSnapshot() throws Exception {
+		// the first snapshot is lost, but the sender is told it arrived
+		byte[] snapshot = snapshot(200);
+		int lost = sequence(send(snapshot));
+		ByteBuffer ack = ByteBuffer.allocate(SnapshotChannel.ACK_LENGTH);
+		Frames.putHeader(ack, Frames.SNAPSHOT_ACK);
+		ack.put((byte) 1).putInt(lost);
+		sender.frameReceived(new ReceivedPacket(ack, ack.position()));
+		// so the next is encoded against a baseline the receiver lacks
+		snapshot = change(snapshot, 3);
+		ReceivedPacket frame = send(snapshot);
+		assertTrue(isDelta(frame));
+		receiver.frameReceived(frame);
+		assertEquals(0, received.size());
+		// the receiver's acknowledgement asks for the next in full
+		acknowledge();
+		snapshot = change(snapshot, 3);
+		frame = send(snapshot);
+		assertFalse(isDelta(frame));
+		receiver.frameReceived(frame);
+		assertEquals(1, received.size());
+		assertArrayEquals(snapshot, received.get(0));
+		acknowledge();
+		snapshot = change(snapshot, 3);
+		frame = send(snapshot);
+		assertTrue(isDelta(frame));
+		receiver.frameReceived(frame);
+		assertArrayEquals(snapshot, received.get(1));
+	}
+
+	@Test
+	public void baselineOlderThanTheHistoryIsReplacedByAFullSnapshot() throws Exception {
+		byte[] snapshot = snapshot(200);
+		receiver.frameReceived(send(snapshot));
+		acknowledge();
+		// no acknowledgements arrive for longer than the history of 8
+		for (int i = 0; i < 7; i++)
+			assertTrue(isDelta(send(snapshot = change(snapshot, 2))));
+		ReceivedPacket frame = send(snapshot = change(snapshot, 2));
+		assertFalse(isDelta(frame));
+		receiver.frameReceived(frame);
+		assertArrayEquals(snapshot, received.get(received.size() - 1));
+	}
+
+	@Test
+	public void malformedDeltasAreDiscarded() throws Exception {
+		byte[] snapshot = snapshot(200);
+		receiver.frameReceived(send(snapshot));
+		acknowledge();
+		ReceivedPacket frame = send(change(snapshot, 10));
+		assertTrue(isDelta(frame));
+		// cut short in the last literal run
+		ByteBuffer truncated = ByteBuffer.allocate(frame.length - 1);
+		for (int i = 0; i < truncated.capacity(); i++)
+			truncated.put(frame.get(i));
+		receiver.frameReceived(new ReceivedPacket(truncated, truncated.position()));
+		assertEquals(1, received.size());
+	}
+}
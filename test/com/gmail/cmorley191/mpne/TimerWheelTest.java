@@ -0,0 +1,160 @@
+package com.gmail.cmorley191.mpne;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link TimerWheel} expiry across the cascades between its levels, and
+ * how long it lets its driving thread sleep. Each test drives its own wheel
+ * by calling {@link TimerWheel#advance()} as a socket's thread would.
+ *
+ * @author Charlie Morley
+ *
+ */
+public class TimerWheelTest {
+
+	private static final Runnable NO_WAKEUP = new Runnable() {
+
+		@Override
+		public void run() {
+		}
+	};
+
+	/**
+	 * A timeout recording the order and time it ran.
+	 */
+	private static TimerWheel.Timeout recorder(final int id, final List<Integer> order, final long[] ranAt) {
+		return new TimerWheel.Timeout(new Runnable() {
+
+			@Override
+			public void run() {
+				order.add(id);
+				ranAt[id] = System.nanoTime();
+			}
+		});
+	}
+
+	/**
+	 * Advances the wheel, sleeping as it asks, until it has nothing scheduled
+	 * or the time limit passes.
+	 *
+	 * @return the number of calls to {@code advance()}
+	 */
+	private static int drive(TimerWheel wheel, long limitMillis) {
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(limitMillis);
+		int calls = 0;
+		long wait;
+		while ((wait = wheel.advance()) >= 0 && System.nanoTime() - end < 0) {
+			calls++;
+			if (wait > 0)
+				LockSupport.parkNanos(wait);
+		}
+		return calls;
+	}
+
+	@Test
+	public void runsTimeoutsOfEveryLevelInDueOrder() {
+		// with 1 ns ticks the levels end at 256 ns, 65 us, 16 ms and 4.3 s
+		TimerWheel wheel = new TimerWheel(1, TimeUnit.NANOSECONDS, NO_WAKEUP);
+		long[] delays = { TimeUnit.MILLISECONDS.toNanos(50), TimeUnit.MILLISECONDS.toNanos(5),
+				TimeUnit.MICROSECONDS.toNanos(10), 100, TimeUnit.MILLISECONDS.toNanos(20),
+				TimeUnit.MICROSECONDS.toNanos(300) };
+		List<Integer> order = new ArrayList<Integer>();
+		long[] ranAt = new long[delays.length];
+		long[] due = new long[delays.length];
+		for (int i = 0; i < delays.length; i++) {
+			due[i] = System.nanoTime() + delays[i];
+			wheel.schedule(recorder(i, order, ranAt), delays[i], TimeUnit.NANOSECONDS);
+		}
+		drive(wheel, 5000);
+		assertEquals(delays.length, order.size());
+		for (int i = 1; i < order.size(); i++)
+			assertTrue(delays[order.get(i - 1)] < delays[order.get(i)]);
+		for (int i = 0; i < delays.length; i++)
+			assertTrue("expired early", ranAt[i] - due[i] >= 0);
+	}
+
+	@Test
+	public void sleepsUntilTheNextTimeoutInTheFirstLevel() {
+		TimerWheel wheel = new TimerWheel(1, TimeUnit.MILLISECONDS, NO_WAKEUP);
+		List<Integer> order = new ArrayList<Integer>();
+		wheel.schedule(recorder(0, order, new long[1]), 200, TimeUnit.MILLISECONDS);
+		long wait = wheel.advance();
+		assertTrue("woke after " + wait + " ns", wait > TimeUnit.MILLISECONDS.toNanos(150));
+		assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(201));
+		assertTrue(drive(wheel, 2000) <= 3);
+		assertEquals(1, order.size());
+	}
+
+	@Test
+	public void sleepsUntilTheCascadeOfAnUpperSlot() {
+		TimerWheel wheel = new TimerWheel(1, TimeUnit.MILLISECONDS, NO_WAKEUP);
+		List<Integer> order = new ArrayList<Integer>();
+		long[] ranAt = new long[1];
+		long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+		// beyond the first level's 256 ticks, so cascaded at tick 256
+		wheel.schedule(recorder(0, order, ranAt), 300, TimeUnit.MILLISECONDS);
+		long wait = wheel.advance();
+		assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(200));
+		assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(256));
+		assertTrue(drive(wheel, 2000) <= 4);
+		assertEquals(1, order.size());
+		assertTrue("expired early", ranAt[0] - due >= 0);
+	}
+
+	@Test
+	public void cancelledTimeoutsNeverRun() {
+		TimerWheel wheel = new TimerWheel(1, TimeUnit.MICROSECONDS, NO_WAKEUP);
+		List<Integer> order = new ArrayList<Integer>();
+		long[] ranAt = new long[3];
+		TimerWheel.Timeout[] timeouts = new TimerWheel.Timeout[3];
+		// one each in the first, second and third levels
+		long[] delays = { 100, 10000, 200000 };
+		for (int i = 0; i < 3; i++) {
+			timeouts[i] = recorder(i, order, ranAt);
+			wheel.schedule(timeouts[i], delays[i], TimeUnit.MICROSECONDS);
+		}
+		assertTrue(wheel.cancel(timeouts[1]));
+		assertFalse(wheel.cancel(timeouts[1]));
+		assertFalse(wheel.isScheduled(timeouts[1]));
+		drive(wheel, 5000);
+		assertEquals(2, order.size());
+		assertEquals(0, (int) order.get(0));
+		assertEquals(2, (int) order.get(1));
+		assertEquals(-1, wheel.advance());
+	}
+
+	@Test
+	public void reschedulingReplacesThePreviousSchedule() {
+		TimerWheel wheel = new TimerWheel(1, TimeUnit.MICROSECONDS, NO_WAKEUP);
+		List<Integer> order = new ArrayList<Integer>();
+		long[] ranAt = new long[1];
+		TimerWheel.Timeout timeout = recorder(0, order, ranAt);
+		wheel.schedule(timeout, 10, TimeUnit.SECONDS);
+		long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(30);
+		wheel.schedule(timeout, 30, TimeUnit.MILLISECONDS);
+		drive(wheel, 5000);
+		assertEquals(1, order.size());
+		assertTrue(ranAt[0] - due >= 0);
+		assertTrue(ranAt[0] - due < TimeUnit.SECONDS.toNanos(1));
+	}
+
+	@Test
+	public void waitsForWakeupWithNothingScheduled() {
+		TimerWheel wheel = new TimerWheel(1, TimeUnit.MILLISECONDS, NO_WAKEUP);
+		assertEquals(-1, wheel.advance());
+		TimerWheel.Timeout timeout = new TimerWheel.Timeout(NO_WAKEUP);
+		wheel.schedule(timeout, 1, TimeUnit.HOURS);
+		assertTrue(wheel.advance() > 0);
+		wheel.cancel(timeout);
+		assertEquals(-1, wheel.advance());
+	}
+}